@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+/**
+ * Serializer configurations and event shapes shared by the benchmarks.</p>
+ *
+ * Events are generated from a fixed seed so runs are comparable. Every event
+ * carries the logstash headers (timestamp, host, source, type, src_path),
+ * a couple of JSON valued headers, dot notated headers for collation and
+ * plain string headers up to the requested header count.
+ */
+public class BenchmarkEvents {
+
+	public static final String PLAIN = "plain";
+	public static final String REMOVE_FIELDS_PREFIX = "removeFieldsPrefix";
+	public static final String OBJECT_FIELDS = "objectFields";
+	public static final String COLLATE_DEPTH_1 = "collateDepth1";
+	public static final String COLLATE_UNLIMITED = "collateUnlimited";
+	public static final String COLLATE_STREAMED = "collateStreamed";
+	public static final String GENERATE_ID = "generateId";
+	public static final String ID_FIELDS = "idFields";
+	public static final String REUSE_BUFFERS = "reuseBuffers";
+	public static final String PARALLEL = "parallel";
+	public static final String BODY_OBJECT_FIELD = "bodyObjectField";
+	public static final String BODY_AS_DOCUMENT = "bodyAsDocument";
+
+	/** Content types, see {@link ContentTypeBenchmark} */
+	public static final String JSON = "json";
+	public static final String SMILE = "smile";
+	public static final String CBOR = "cbor";
+
+	public static final String SMALL_BODY = "small";
+	public static final String LARGE_BODY = "large";
+	/** A JSON object body, see {@link #BODY_AS_DOCUMENT} */
+	public static final String OBJECT_BODY = "object";
+
+	/** JSON valued headers, configured as object fields */
+	static final String[] JSON_HEADERS = { "params", "context" };
+
+	private static final Charset charset = Charset.forName("UTF-8");
+	private static final long SEED = 0x5eed;
+	private static final int LARGE_BODY_SIZE = 64 * 1024;
+
+	private BenchmarkEvents() {
+	}
+
+	/**
+	 * @return the serializer context for one of the named configurations
+	 */
+	public static Context context(String config) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		switch (config) {
+		case PLAIN:
+			break;
+		case REMOVE_FIELDS_PREFIX:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.REMOVE_FIELDS_PREFIX, "true");
+			break;
+		case OBJECT_FIELDS:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.OBJECT_FIELDS, "params, context");
+			break;
+		case COLLATE_DEPTH_1:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.OBJECT_FIELDS, "params, context");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.COLLATE_OBJECTS, "true");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.COLLATE_DEPTH, "1");
+			break;
+		case COLLATE_UNLIMITED:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.OBJECT_FIELDS, "params, context");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.COLLATE_OBJECTS, "true");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.COLLATE_DEPTH, "-1");
+			break;
+		case COLLATE_STREAMED:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.OBJECT_FIELDS, "params, context");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.COLLATE_OBJECTS, "true");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.COLLATE_DEPTH, "-1");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.STREAM_COLLATED_FIELDS, "true");
+			break;
+		case GENERATE_ID:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.GENERATE_ID, "true");
+			break;
+		case ID_FIELDS:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.ID_FIELDS, "timestamp, host");
+			break;
+		case REUSE_BUFFERS:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.REUSE_BUFFERS, "true");
+			break;
+		case BODY_OBJECT_FIELD:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.OBJECT_FIELDS, "body");
+			break;
+		case BODY_AS_DOCUMENT:
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.REMOVE_FIELDS_PREFIX, "true");
+			parameters.put(ExtendedElasticSearchLogStashEventSerializer.BODY_AS_DOCUMENT, "true");
+			break;
+		case PARALLEL:
+			parameters.put(ExtendedElasticSearchIndexRequestBuilderFactory.PARALLELISM,
+					String.valueOf(Runtime.getRuntime().availableProcessors()));
+			parameters.put(ExtendedElasticSearchIndexRequestBuilderFactory.PARALLEL_THRESHOLD, "100");
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown benchmark configuration: " + config);
+		}
+		return new Context(parameters);
+	}
+
+	/**
+	 * Creates <code>count</code> events, each with <code>headerCount</code> headers.
+	 */
+	public static List<Event> events(int count, int headerCount, String bodySize) {
+		Random random = new Random(SEED);
+		List<Event> events = new ArrayList<Event>(count);
+		long timestamp = 1415000000000L;
+		for (int i = 0; i < count; i++) {
+			// events arrive roughly in timestamp order
+			timestamp += random.nextInt(50);
+			events.add(EventBuilder.withBody(body(random, bodySize), headers(random, headerCount, timestamp)));
+		}
+		return events;
+	}
+
+	static Map<String, String> headers(Random random, int headerCount, long timestamp) {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("timestamp", String.valueOf(timestamp));
+		headers.put("host", "app-server-" + random.nextInt(20) + ".example.com");
+		headers.put("source", "flume_tail_src");
+		headers.put("type", "api_call");
+		headers.put("src_path", "/var/log/app/api.log");
+		if (headers.size() < headerCount)
+			headers.put(JSON_HEADERS[0], "{\"cmd\":\"accounts.getUserInfo\",\"email\":\"user" + random.nextInt(100000)
+					+ "@example.com\",\"nested\":{\"sub\":" + random.nextInt(1000) + ",\"flag\":true}}");
+		if (headers.size() < headerCount)
+			headers.put(JSON_HEADERS[1], "{\"client\":\"sdk-js\",\"version\":\"6.2." + random.nextInt(10)
+					+ "\",\"tags\":[\"a\",\"b\"]}");
+		int i = 0;
+		while (headers.size() < headerCount) {
+			switch (i % 3) {
+			case 0:
+				headers.put("field" + i, randomText(random, 8 + random.nextInt(24)));
+				break;
+			case 1:
+				headers.put("req.group" + (i % 7) + ".field" + i, String.valueOf(random.nextInt(1000000)));
+				break;
+			default:
+				headers.put("stats.timer" + i, String.valueOf(random.nextLong()));
+				break;
+			}
+			i++;
+		}
+		return headers;
+	}
+
+	static byte[] body(Random random, String bodySize) {
+		if (LARGE_BODY.equals(bodySize)) {
+			// a multi line stack trace like body
+			StringBuilder sb = new StringBuilder(LARGE_BODY_SIZE + 128);
+			sb.append("java.lang.IllegalStateException: request failed\n");
+			int frame = 0;
+			while (sb.length() < LARGE_BODY_SIZE) {
+				sb.append("\tat com.example.service.Handler").append(frame % 17).append(".process")
+						.append("(Handler").append(frame % 17).append(".java:").append(random.nextInt(900))
+						.append(")\n");
+				frame++;
+			}
+			return sb.toString().getBytes(charset);
+		}
+		if (OBJECT_BODY.equals(bodySize)) {
+			// an application event, with a field the headers also have
+			StringBuilder sb = new StringBuilder(1024);
+			sb.append("{\"host\":\"client-").append(random.nextInt(20)).append("\",\"event\":\"login\",")
+					.append("\"user\":{\"id\":").append(random.nextInt(100000)).append(",\"name\":\"")
+					.append(randomText(random, 12)).append("\",\"roles\":[\"admin\",\"user\"]},\"attributes\":{");
+			for (int i = 0; i < 20; i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append("\"attr").append(i).append("\":\"").append(randomText(random, 16)).append('"');
+			}
+			sb.append("},\"duration\":").append(random.nextInt(5000)).append(",\"ok\":true}");
+			return sb.toString().getBytes(charset);
+		}
+		return ("GET /accounts.getUserInfo?apiKey=" + randomText(random, 32) + " 200 " + random.nextInt(5000) + "ms")
+				.getBytes(charset);
+	}
+
+	private static String randomText(Random random, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) ('a' + random.nextInt(26));
+		return new String(chars);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.flume.Event;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the body of a bulk request for a batch of events, either 
+ * by serializing each event on its own and copying it into the body, or with
+ * {@link ExtendedElasticSearchIndexRequestBuilderFactory#createBulkRequestBody}.
+ * Each operation is a whole batch. The parallel configuration uses a thread
+ * per available processor for bulk request bodies.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkRequestBodyBenchmark {
+
+	private static final String INDEX_PREFIX = "flume";
+	private static final String INDEX_TYPE = "log";
+	private static final byte[] NEW_LINE = { '\n' };
+	private static final FastDateFormat DATE_FORMAT = FastDateFormat.getInstance("yyyy.MM.dd",
+			TimeZone.getTimeZone("Etc/UTC"));
+
+	@Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.GENERATE_ID, BenchmarkEvents.PARALLEL })
+	public String config;
+
+	@Param({ "5", "50" })
+	public int headerCount;
+
+	@Param({ BenchmarkEvents.SMALL_BODY, BenchmarkEvents.LARGE_BODY })
+	public String bodySize;
+
+	@Param({ "1000" })
+	public int batchSize;
+
+	private ExtendedElasticSearchIndexRequestBuilderFactory factory;
+	private ExtendedElasticSearchLogStashEventSerializer serializer;
+	private List<Event> events;
+
+	@Setup
+	public void setup() {
+		serializer = new ExtendedElasticSearchLogStashEventSerializer();
+		factory = new ExtendedElasticSearchIndexRequestBuilderFactory(serializer);
+		factory.configure(BenchmarkEvents.context(config));
+		events = BenchmarkEvents.events(batchSize, headerCount, bodySize);
+	}
+
+	@Benchmark
+	public BytesReference perEventCopy() throws IOException {
+		BytesStreamOutput out = new BytesStreamOutput();
+		for (Event event : events) {
+			BytesReference document = serializer.getContentBuilder(event).bytes();
+			String id = serializer.getDocumentId(document);
+			String action = "{\"index\":{\"_index\":\"" + INDEX_PREFIX + '-'
+					+ DATE_FORMAT.format(timestamp(event))
+					+ "\",\"_type\":\"" + INDEX_TYPE + (null != id ? "\",\"_id\":\"" + id : "") + "\"}}\n";
+			out.write(action.getBytes(Charsets.UTF_8));
+			document.writeTo(out);
+			out.write(NEW_LINE);
+		}
+		return out.bytes();
+	}
+
+	@Benchmark
+	public BytesReference bulkRequestBody() throws IOException {
+		return factory.createBulkRequestBody(events, INDEX_PREFIX, INDEX_TYPE, 0).bytes();
+	}
+
+	private static long timestamp(Event event) {
+		return Long.parseLong(event.getHeaders().get("timestamp"));
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the JSON, SMILE and CBOR encodings: the throughput of serializing 
+ * events, and of parsing them back the way Elasticsearch does when indexing.
+ * The document bytes of each encoding are reported along with the scores, 
+ * see {@link DocumentBytes}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentTypeBenchmark {
+
+	private static final int EVENT_COUNT = 64;
+
+	@Param({ BenchmarkEvents.JSON, BenchmarkEvents.SMILE, BenchmarkEvents.CBOR })
+	public String contentType;
+
+	@Param({ "5", "50", "200" })
+	public int headerCount;
+
+	@Param({ BenchmarkEvents.SMALL_BODY, BenchmarkEvents.LARGE_BODY })
+	public String bodySize;
+
+	private ExtendedElasticSearchLogStashEventSerializer serializer;
+	private List<Event> events;
+	private List<BytesReference> documents;
+	private int next;
+
+	/**
+	 * Counts the bytes of the documents serialized or parsed, reported as the
+	 * <code>documentBytes</code> per second of each benchmark. Divided by the
+	 * score, it's the average document size of the encoding.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class DocumentBytes {
+		public long documentBytes;
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		serializer = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = BenchmarkEvents.context(BenchmarkEvents.OBJECT_FIELDS);
+		context.put(ExtendedElasticSearchLogStashEventSerializer.CONTENT_TYPE, contentType);
+		serializer.configure(context);
+		events = BenchmarkEvents.events(EVENT_COUNT, headerCount, bodySize);
+		documents = new ArrayList<BytesReference>(EVENT_COUNT);
+		for (Event event : events)
+			documents.add(serializer.getContentBuilder(event).bytes());
+	}
+
+	@Benchmark
+	public BytesReference serialize(DocumentBytes counters) throws IOException {
+		Event event = events.get(next);
+		next = (next + 1) % EVENT_COUNT;
+		BytesReference document = serializer.getContentBuilder(event).bytes();
+		counters.documentBytes += document.length();
+		return document;
+	}
+
+	@Benchmark
+	public int parse(DocumentBytes counters) throws IOException {
+		BytesReference document = documents.get(next);
+		next = (next + 1) % EVENT_COUNT;
+		counters.documentBytes += document.length();
+		XContentParser parser = XContentFactory.xContent(document).createParser(document);
+		try {
+			int tokens = 0;
+			while (null != parser.nextToken()) {
+				if (parser.currentToken().isValue())
+					parser.text();
+				tokens++;
+			}
+			return tokens;
+		} finally {
+			parser.close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Event;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ExtendedElasticSearchIndexRequestBuilderFactory#prepareIndexRequest}, 
+ * the per event work the transport client path does: serializing the event, 
+ * setting it as the request source and generating the document ID.</p>
+ * 
+ * The benchmark lives in the factory package so it can call the protected method 
+ * directly. The index requests are created with a client stub, nothing is sent.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IndexRequestBuilderFactoryBenchmark {
+
+	private static final int EVENT_COUNT = 64;
+	private static final String INDEX_NAME = "flume-2014.11.03";
+	private static final String INDEX_TYPE = "log";
+
+	@Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.REMOVE_FIELDS_PREFIX, BenchmarkEvents.OBJECT_FIELDS,
+			BenchmarkEvents.COLLATE_DEPTH_1, BenchmarkEvents.COLLATE_UNLIMITED, BenchmarkEvents.GENERATE_ID,
+			BenchmarkEvents.ID_FIELDS, BenchmarkEvents.REUSE_BUFFERS })
+	public String config;
+
+	@Param({ "5", "50", "200" })
+	public int headerCount;
+
+	@Param({ BenchmarkEvents.SMALL_BODY, BenchmarkEvents.LARGE_BODY })
+	public String bodySize;
+
+	private ExtendedElasticSearchIndexRequestBuilderFactory factory;
+	private Client client;
+	private List<Event> events;
+	private int next;
+
+	@Setup
+	public void setup() {
+		factory = new ExtendedElasticSearchIndexRequestBuilderFactory();
+		factory.configure(BenchmarkEvents.context(config));
+		client = stubClient();
+		events = BenchmarkEvents.events(EVENT_COUNT, headerCount, bodySize);
+	}
+
+	@Benchmark
+	public IndexRequestBuilder prepareIndexRequest() throws IOException {
+		Event event = events.get(next);
+		next = (next + 1) % EVENT_COUNT;
+		IndexRequestBuilder indexRequest = new IndexRequestBuilder(client);
+		factory.prepareIndexRequest(indexRequest, INDEX_NAME, INDEX_TYPE, event);
+		return indexRequest;
+	}
+
+	/**
+	 * A client that answers every call with null. Request builders only ask
+	 * it for its thread pool when created.
+	 */
+	static Client stubClient() {
+		return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[] { Client.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Event;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ExtendedElasticSearchLogStashEventSerializer#getContentBuilder(Event)}
+ * for each serializer configuration and event shape.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+	private static final int EVENT_COUNT = 64;
+
+	@Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.REMOVE_FIELDS_PREFIX, BenchmarkEvents.OBJECT_FIELDS,
+			BenchmarkEvents.COLLATE_DEPTH_1, BenchmarkEvents.COLLATE_UNLIMITED, BenchmarkEvents.COLLATE_STREAMED,
+			BenchmarkEvents.GENERATE_ID, BenchmarkEvents.REUSE_BUFFERS, BenchmarkEvents.BODY_OBJECT_FIELD,
+			BenchmarkEvents.BODY_AS_DOCUMENT })
+	public String config;
+
+	@Param({ "5", "50", "200" })
+	public int headerCount;
+
+	@Param({ BenchmarkEvents.SMALL_BODY, BenchmarkEvents.LARGE_BODY, BenchmarkEvents.OBJECT_BODY })
+	public String bodySize;
+
+	private ExtendedElasticSearchLogStashEventSerializer serializer;
+	private List<Event> events;
+	private int next;
+
+	@Setup
+	public void setup() {
+		serializer = new ExtendedElasticSearchLogStashEventSerializer();
+		serializer.configure(BenchmarkEvents.context(config));
+		events = BenchmarkEvents.events(EVENT_COUNT, headerCount, bodySize);
+	}
+
+	@Benchmark
+	public BytesReference getContentBuilder() throws IOException {
+		Event event = events.get(next);
+		next = (next + 1) % EVENT_COUNT;
+		return serializer.getContentBuilder(event).bytes();
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.Event;
+
+/**
+ * Splits a batch of events into chunks that are processed in parallel, with
+ * the results returned in the order of the chunks.</p>
+ *
+ * The calling thread works on the chunks along with a fixed pool of daemon
+ * threads, so a batch always makes progress even when the pool is busy.
+ * Batches below the threshold are processed on the calling thread alone.
+ */
+class BatchExecutor {
+
+	/**
+	 * The work done on each chunk of a batch.
+	 */
+	interface ChunkTask<T> {
+		T run(List<Event> chunk) throws IOException;
+	}
+
+	// chunks per thread, so threads that finish early take on more work
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private final int parallelism;
+	private final int threshold;
+	private final ExecutorService pool;
+
+	/**
+	 * @param parallelism the number of threads working on a batch, including
+	 * the calling thread
+	 * @param threshold the smallest batch that is split
+	 */
+	BatchExecutor(int parallelism, int threshold) {
+		this.parallelism = parallelism;
+		this.threshold = Math.max(threshold, 2);
+		final String prefix = "es-serializer-" + poolNumber.incrementAndGet() + "-";
+		this.pool = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	boolean isParallel(int batchSize) {
+		return batchSize >= threshold;
+	}
+
+	/**
+	 * Runs the task on each chunk of the events.
+	 * @return the result of each chunk, in order
+	 */
+	<T> List<T> run(List<Event> events, final ChunkTask<T> task) throws IOException {
+		int size = events.size();
+		int chunkCount = Math.min(parallelism * CHUNKS_PER_THREAD, size);
+		final List<List<Event>> chunks = new ArrayList<List<Event>>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			chunks.add(events.subList((int) ((long) size * i / chunkCount), (int) ((long) size * (i + 1) / chunkCount)));
+		}
+
+		final Object[] results = new Object[chunkCount];
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(chunkCount);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int chunk;
+				while ((chunk = nextChunk.getAndIncrement()) < chunks.size()) {
+					try {
+						if (null == failure.get())
+							results[chunk] = task.run(chunks.get(chunk));
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		for (int i = 1; i < parallelism && i < chunkCount; i++) {
+			try {
+				pool.execute(worker);
+			} catch (RejectedExecutionException e) {
+				// shut down, the calling thread does the rest
+				break;
+			}
+		}
+		worker.run();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while serializing a batch");
+		}
+
+		Throwable t = failure.get();
+		if (t instanceof IOException)
+			throw (IOException) t;
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		@SuppressWarnings("unchecked")
+		List<T> list = (List<T>) Arrays.asList(results);
+		return list;
+	}
+
+	void shutdown() {
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.BytesStream;
+
+/**
+ * The body of an Elasticsearch <code>_bulk</code> request, with the action line
+ * and the document of each event written back to back into one buffer.</p>
+ *
+ * Each item is added with {@link #startItem}, which writes the action line,
+ * then the document is written into this stream and the item is completed
+ * with {@link #endItem()}. When the document ID is a hash of the document
+ * itself, room for it is reserved in the action line and the document is
+ * hashed while it is written, so neither the document nor the action line
+ * is copied.
+ */
+public class BulkRequestBody extends OutputStream implements BytesStream {
+
+	static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	private static final byte[] INDEX_ACTION = bytes("{\"index\":{\"_index\":\"");
+	private static final byte[] TYPE = bytes("\",\"_type\":\"");
+	private static final byte[] ROUTING = bytes("\",\"_routing\":\"");
+	private static final byte[] TTL = bytes("\",\"_ttl\":\"");
+	private static final byte[] ID = bytes("\",\"_id\":\"");
+	private static final byte[] ACTION_END = bytes("\"}}\n");
+	private static final byte[] HEX = bytes("0123456789abcdef");
+
+	private byte[] buffer;
+	private int count;
+	private int itemCount;
+	// where each item's action line starts
+	private int[] itemOffsets = new int[16];
+
+	// the item being written
+	private DocumentHasher hasher;
+	private int reservedIdOffset = -1;
+	private boolean inItem;
+
+	// the last index and type, which usually repeat from one item to the next
+	private String lastIndex;
+	private String lastType;
+	private byte[] lastIndexAndType;
+
+	public BulkRequestBody() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public BulkRequestBody(int initialCapacity) {
+		this.buffer = new byte[Math.max(initialCapacity, 64)];
+	}
+
+	/**
+	 * Writes the action line of an item. The item's document is written next.
+	 *
+	 * @param ttl the document's TTL in milliseconds, or 0 for none
+	 * @param documentId the document ID, or null if not known yet
+	 * @param hasher a hasher to generate the document ID with, by hashing the
+	 * document while it's written. Only used when the ID isn't given, null
+	 * for no document ID.
+	 */
+	public void startItem(String index, String type, long ttl, String documentId, DocumentHasher hasher) {
+		startItem(index, type, null, null, ttl, documentId, hasher);
+	}
+
+	/**
+	 * Same as {@link #startItem(String, String, long, String, DocumentHasher)},
+	 * for an index and type whose part of the action line was rendered before.
+	 *
+	 * @param indexAction the start of the action line, see {@link #indexAction}
+	 * @param routing the item's routing value, or null for none
+	 */
+	public void startItem(byte[] indexAction, String routing, long ttl, String documentId, DocumentHasher hasher) {
+		startItem(null, null, indexAction, routing, ttl, documentId, hasher);
+	}
+
+	/**
+	 * Renders the start of the action line of the items of an index and type,
+	 * to be reused by {@link #startItem(byte[], String, long, String, DocumentHasher)}.
+	 */
+	public static byte[] indexAction(String index, String type) {
+		BulkRequestBody body = new BulkRequestBody(64);
+		body.writeIndexAndType(index, type);
+		return body.lastIndexAndType;
+	}
+
+	private void startItem(String index, String type, byte[] indexAction, String routing, long ttl,
+			String documentId, DocumentHasher hasher) {
+		if (inItem)
+			throw new IllegalStateException("The previous item was not completed");
+		inItem = true;
+		if (itemCount == itemOffsets.length)
+			itemOffsets = Arrays.copyOf(itemOffsets, itemCount << 1);
+		itemOffsets[itemCount] = count;
+		if (null != indexAction)
+			writeBytes(indexAction);
+		else
+			writeIndexAndType(index, type);
+		if (null != routing) {
+			writeBytes(ROUTING);
+			writeJsonString(routing);
+		}
+		if (ttl > 0) {
+			writeBytes(TTL);
+			writeAscii(Long.toString(ttl));
+		}
+		reservedIdOffset = -1;
+		this.hasher = null;
+		if (null != documentId) {
+			writeBytes(ID);
+			writeJsonString(documentId);
+		} else if (null != hasher) {
+			writeBytes(ID);
+			// the ID is filled in once the document is written
+			reservedIdOffset = count;
+			ensureCapacity(count + DocumentHasher.DOCUMENT_ID_LENGTH);
+			count += DocumentHasher.DOCUMENT_ID_LENGTH;
+		}
+		writeBytes(ACTION_END);
+		if (reservedIdOffset >= 0) {
+			hasher.reset();
+			this.hasher = hasher;
+		}
+	}
+
+	/**
+	 * Completes the item whose document was written.
+	 * @return the generated document ID, or null if the ID was given or none
+	 * is generated
+	 */
+	public String endItem() {
+		if (!inItem)
+			throw new IllegalStateException("No item was started");
+		String documentId = null;
+		if (null != hasher) {
+			documentId = DocumentHasher.toDocumentId(hasher.digest());
+			hasher = null;
+			byte[] id = bytes(documentId);
+			if (id.length != DocumentHasher.DOCUMENT_ID_LENGTH)
+				throw new IllegalStateException("Unexpected document ID length: " + documentId);
+			System.arraycopy(id, 0, buffer, reservedIdOffset, id.length);
+		}
+		reservedIdOffset = -1;
+		inItem = false;
+		itemCount++;
+		write('\n');
+		return documentId;
+	}
+
+	/**
+	 * Grows the buffer once to fit the expected number of items, estimated
+	 * from the size of the items written so far, instead of doubling it over
+	 * and over as it fills up.
+	 */
+	public void expectItems(int totalItems) {
+		if (itemCount == 0 || inItem || totalItems <= itemCount)
+			return;
+		long estimate = (long) count * totalItems / itemCount;
+		// some headroom, since items vary in size
+		estimate += estimate >> 3;
+		if (estimate < Integer.MAX_VALUE - 8)
+			ensureCapacity((int) estimate);
+	}
+
+	/**
+	 * Appends the items of another body, which was written separately.
+	 */
+	public void append(BulkRequestBody other) {
+		if (inItem || other.inItem)
+			throw new IllegalStateException("An item was not completed");
+		ensureCapacity(count + other.count);
+		System.arraycopy(other.buffer, 0, buffer, count, other.count);
+		if (itemOffsets.length < itemCount + other.itemCount)
+			itemOffsets = Arrays.copyOf(itemOffsets, Math.max(itemOffsets.length << 1, itemCount + other.itemCount));
+		for (int i = 0; i < other.itemCount; i++)
+			itemOffsets[itemCount + i] = count + other.itemOffsets[i];
+		count += other.count;
+		itemCount += other.itemCount;
+	}
+
+	/**
+	 * Appends a single item of another body, e.g. to send it again.
+	 * @param item the item's position in the other body
+	 */
+	public void appendItem(BulkRequestBody other, int item) {
+		if (inItem || other.inItem)
+			throw new IllegalStateException("An item was not completed");
+		if (item < 0 || item >= other.itemCount)
+			throw new IndexOutOfBoundsException("No item " + item + " in a body of " + other.itemCount + " items");
+		int start = other.itemOffsets[item];
+		int end = item + 1 < other.itemCount ? other.itemOffsets[item + 1] : other.count;
+		if (itemCount == itemOffsets.length)
+			itemOffsets = Arrays.copyOf(itemOffsets, itemCount << 1);
+		itemOffsets[itemCount++] = count;
+		writeBytes(other.buffer, start, end - start);
+	}
+
+	/**
+	 * Removes the last completed item, e.g. when its document turns out to be
+	 * a duplicate once its ID is known.
+	 */
+	public void removeLastItem() {
+		if (inItem || itemCount == 0)
+			throw new IllegalStateException("No completed item to remove");
+		count = itemOffsets[--itemCount];
+	}
+
+	/**
+	 * @return the document of an item, without its action line, wrapped
+	 * without copying
+	 */
+	public BytesReference itemDocument(int item) {
+		if (item < 0 || item >= itemCount)
+			throw new IndexOutOfBoundsException("No item " + item + " in a body of " + itemCount + " items");
+		int start = itemOffsets[item];
+		int end = item + 1 < itemCount ? itemOffsets[item + 1] : count;
+		while (buffer[start++] != '\n') {
+		}
+		// without the trailing line break
+		return new BytesArray(buffer, start, end - 1 - start);
+	}
+
+	/**
+	 * @return the number of items in the body
+	 */
+	public int itemCount() {
+		return itemCount;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buffer[count++] = (byte) b;
+		if (null != hasher)
+			hasher.update(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+		if (null != hasher)
+			hasher.update(b, off, len);
+	}
+
+	@Override
+	public void close() {
+		// closing a document's builder closes the stream, the body is still needed
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the body, wrapped without copying
+	 */
+	@Override
+	public BytesReference bytes() {
+		if (inItem)
+			throw new IllegalStateException("The last item was not completed");
+		return new BytesArray(buffer, 0, count);
+	}
+
+	private void writeIndexAndType(String index, String type) {
+		if (!index.equals(lastIndex) || !type.equals(lastType)) {
+			int start = count;
+			writeBytes(INDEX_ACTION);
+			writeJsonString(index);
+			writeBytes(TYPE);
+			writeJsonString(type);
+			lastIndex = index;
+			lastType = type;
+			lastIndexAndType = Arrays.copyOfRange(buffer, start, count);
+		} else {
+			writeBytes(lastIndexAndType);
+		}
+	}
+
+	private void writeBytes(byte[] b) {
+		writeBytes(b, 0, b.length);
+	}
+
+	private void writeBytes(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	private void writeAscii(String s) {
+		ensureCapacity(count + s.length());
+		for (int i = 0; i < s.length(); i++)
+			buffer[count++] = (byte) s.charAt(i);
+	}
+
+	/**
+	 * Writes the contents of a JSON string, escaped and UTF-8 encoded.
+	 */
+	private void writeJsonString(String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			ensureCapacity(count + 6);
+			if (c == '"' || c == '\\') {
+				buffer[count++] = '\\';
+				buffer[count++] = (byte) c;
+			} else if (c < 0x20) {
+				buffer[count++] = '\\';
+				buffer[count++] = 'u';
+				buffer[count++] = '0';
+				buffer[count++] = '0';
+				buffer[count++] = HEX[c >> 4];
+				buffer[count++] = HEX[c & 0xf];
+			} else if (c < 0x80) {
+				buffer[count++] = (byte) c;
+			} else {
+				int end = i + 1;
+				if (Character.isHighSurrogate(c) && end < length && Character.isLowSurrogate(s.charAt(end)))
+					end++;
+				writeBytes(bytes(s.substring(i, end)));
+				i = end - 1;
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, capacity));
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(Charsets.UTF_8);
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends bulk request bodies to the <code>_bulk</code> endpoint, with a bounded
+ * number of requests in flight.</p>
+ *
+ * Each body is sent on a pool thread, to the next host in turn, moving on to
+ * the other hosts when a host can't be reached. {@link #send} blocks while
+ * the maximum number of requests is in flight, so a caller that produces
+ * bodies faster than they are sent is held back. {@link #await()} waits for
+ * all the bodies sent so far, and fails if any of them failed.</p>
+ *
+ * The items of a response are checked one by one. Items rejected because
+ * the cluster is busy (429 or 503) are sent again, alone, after a growing
+ * backoff. Items whose document can never be indexed (status 400, e.g.
+ * mapping conflicts or documents that fail to parse) are diverted instead of
+ * failing the body: they are logged, or written to a dead letter index with
+ * their document as a string. Any other failure, including other 4xx such as
+ * a blocked (403) or missing (404) index,
+ * items still rejected after the last retry, or diverted items that couldn't
+ * be written to the dead letter index, fail the body.</p>
+ *
+ * Bodies can be gzip compressed. Connections are pooled and kept alive by
+ * the HTTP client.
+ */
+class BulkRequestSender {
+
+	static final String BULK_ENDPOINT = "/_bulk";
+	static final String DEAD_LETTER_TYPE = "failed";
+	static final int DEFAULT_MAX_RETRIES = 3;
+	static final long DEFAULT_RETRY_BACKOFF_MS = 100;
+	private static final long MAX_RETRY_BACKOFF_MS = 10000;
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkRequestSender.class);
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private final String[] hosts;
+	private final HttpClient httpClient;
+	private final boolean compress;
+	private final Semaphore inFlight;
+	private final ExecutorService pool;
+	private final AtomicInteger nextHost = new AtomicInteger();
+	private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long retryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+	private String deadLetterIndex;
+
+	private final AtomicLong indexedItems = new AtomicLong();
+	private final AtomicLong retriedItems = new AtomicLong();
+	private final AtomicLong divertedItems = new AtomicLong();
+
+	/**
+	 * @param hosts the hosts' base URLs, e.g. "http://host1:9200"
+	 * @param maxInFlight the most requests sent at the same time
+	 * @param compress whether to gzip the bodies
+	 */
+	BulkRequestSender(String[] hosts, HttpClient httpClient, int maxInFlight, boolean compress) {
+		this.hosts = hosts;
+		this.httpClient = httpClient;
+		this.compress = compress;
+		this.inFlight = new Semaphore(maxInFlight);
+		final String prefix = "es-bulk-sender-" + poolNumber.incrementAndGet() + "-";
+		this.pool = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param maxRetries how many times rejected items are sent again
+	 * @param retryBackoffMs the wait before the first retry, doubled for
+	 * each retry after it
+	 */
+	void setRetries(int maxRetries, long retryBackoffMs) {
+		this.maxRetries = maxRetries;
+		this.retryBackoffMs = retryBackoffMs;
+	}
+
+	/**
+	 * @param deadLetterIndex the index to divert items that can't be indexed
+	 * to, or null to only log them
+	 */
+	void setDeadLetterIndex(String deadLetterIndex) {
+		this.deadLetterIndex = deadLetterIndex;
+	}
+
+	/**
+	 * @return the number of items indexed so far
+	 */
+	long getIndexedItems() {
+		return indexedItems.get();
+	}
+
+	/**
+	 * @return the number of items sent again so far
+	 */
+	long getRetriedItems() {
+		return retriedItems.get();
+	}
+
+	/**
+	 * @return the number of items diverted so far
+	 */
+	long getDivertedItems() {
+		return divertedItems.get();
+	}
+
+	/**
+	 * Sends a body in the background, blocking while the maximum number of
+	 * requests is in flight.
+	 */
+	void send(final BulkRequestBody body) throws InterruptedException {
+		inFlight.acquire();
+		try {
+			pending.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						deliver(body);
+						return null;
+					} finally {
+						inFlight.release();
+					}
+				}
+			}));
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for all the bodies sent since the last call.
+	 * @throws IOException the first failure, once all requests completed
+	 */
+	void await() throws IOException, InterruptedException {
+		IOException failure = null;
+		try {
+			for (Future<?> future : pending) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (null == failure)
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+								: new IOException("Bulk request failed", e.getCause());
+				}
+			}
+		} finally {
+			pending.clear();
+		}
+		if (null != failure)
+			throw failure;
+	}
+
+	void close() {
+		pool.shutdownNow();
+		httpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Sends a body and the items of it that were rejected, until all items
+	 * are indexed or diverted.
+	 * @throws IOException if the body or any of its items failed
+	 */
+	void deliver(BulkRequestBody body) throws IOException, InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			Response response = post(body.bytes());
+			BulkRequestBody rejected = body;
+			if (!isRetryable(response.status)) {
+				rejected = checkItems(body, BulkResponseItems.parse(response.content));
+				if (null == rejected)
+					return;
+			}
+			if (attempt >= maxRetries)
+				throw new IOException(rejected.itemCount() + " bulk items still rejected after " + maxRetries
+						+ " retries");
+			retriedItems.addAndGet(rejected.itemCount());
+			Thread.sleep(Math.min(retryBackoffMs << Math.min(attempt, 16), MAX_RETRY_BACKOFF_MS));
+			body = rejected;
+		}
+	}
+
+	/**
+	 * Counts the indexed items and diverts the ones that can't be indexed.
+	 * @return the items to send again, or null if there are none
+	 * @throws IOException if any item failed otherwise
+	 */
+	private BulkRequestBody checkItems(BulkRequestBody body, BulkResponseItems items) throws IOException {
+		if (!items.hasErrors()) {
+			indexedItems.addAndGet(body.itemCount());
+			return null;
+		}
+		if (items.size() != body.itemCount())
+			throw new IOException("Bulk response has " + items.size() + " items for " + body.itemCount()
+					+ " requested");
+		BulkRequestBody rejected = null;
+		List<Integer> diverted = null;
+		int indexed = 0;
+		IOException failure = null;
+		for (int i = 0; i < items.size(); i++) {
+			int status = items.status(i);
+			if (status >= 200 && status < 300) {
+				indexed++;
+			} else if (isRetryable(status)) {
+				if (null == rejected)
+					rejected = new BulkRequestBody(body.size() / body.itemCount() * (items.size() - i) + 64);
+				rejected.appendItem(body, i);
+			} else if (status == 400) {
+				// the document itself can't be indexed, e.g. a mapping conflict.
+				// other 4xx (a blocked or missing index) fail like any error
+				if (null == diverted)
+					diverted = new ArrayList<Integer>();
+				diverted.add(i);
+			} else if (null == failure) {
+				failure = new IOException("Bulk item " + items.failedDocument(i) + " failed with status " + status
+						+ ": " + items.failure(i));
+			}
+		}
+		indexedItems.addAndGet(indexed);
+		if (null != diverted)
+			divert(body, items, diverted);
+		if (null != failure)
+			throw failure;
+		return rejected;
+	}
+
+	/**
+	 * Logs the items that can't be indexed, and writes them to the dead
+	 * letter index if there is one.
+	 * @throws IOException if they couldn't be written to the dead letter index
+	 */
+	private void divert(BulkRequestBody body, BulkResponseItems items, List<Integer> diverted) throws IOException {
+		int first = diverted.get(0);
+		logger.warn("Diverting {} bulk items that can't be indexed, first {} with status {}: {}", new Object[] {
+				diverted.size(), items.failedDocument(first), items.status(first), items.failure(first) });
+		if (null == deadLetterIndex) {
+			if (logger.isDebugEnabled()) {
+				for (int i : diverted)
+					logger.debug("Dropped bulk item {}: {}", items.failedDocument(i), body.itemDocument(i).toUtf8());
+			}
+			divertedItems.addAndGet(diverted.size());
+			return;
+		}
+		BulkRequestBody letters = new BulkRequestBody();
+		for (int i : diverted) {
+			letters.startItem(deadLetterIndex, DEAD_LETTER_TYPE, 0, null, null);
+			XContentBuilder builder = XContentFactory.jsonBuilder(letters);
+			builder.startObject()
+					.field("@timestamp", System.currentTimeMillis())
+					.field("document", items.failedDocument(i))
+					.field("status", items.status(i))
+					.field("error", items.failure(i))
+					.field("source", body.itemDocument(i).toUtf8())
+					.endObject();
+			builder.close();
+			letters.endItem();
+		}
+		Response response;
+		try {
+			response = post(letters.bytes());
+		} catch (IOException e) {
+			throw new IOException("Failed writing " + diverted.size() + " items to dead letter index "
+					+ deadLetterIndex, e);
+		}
+		// the items would be lost, so the body fails and is sent again
+		if (isRetryable(response.status))
+			throw new IOException("Failed writing " + diverted.size() + " items to dead letter index "
+					+ deadLetterIndex + " with status " + response.status);
+		if (BulkResponseItems.parse(response.content).hasErrors())
+			throw new IOException("Failed writing " + diverted.size() + " items to dead letter index "
+					+ deadLetterIndex + ": the items were rejected");
+		divertedItems.addAndGet(diverted.size());
+	}
+
+	private static boolean isRetryable(int status) {
+		return status == 429 || status == 503;
+	}
+
+	/**
+	 * Posts a body to the next host, moving on to the other hosts when a host
+	 * can't be reached.
+	 * @return the response, with a successful status or one to retry on
+	 */
+	Response post(BytesReference body) throws IOException {
+		ByteArrayEntity entity = entity(body);
+		int first = (nextHost.getAndIncrement() & Integer.MAX_VALUE) % hosts.length;
+		IOException failure = null;
+		for (int i = 0; i < hosts.length; i++) {
+			String host = hosts[(first + i) % hosts.length];
+			HttpPost post = new HttpPost(host + BULK_ENDPOINT);
+			post.setEntity(entity);
+			HttpResponse response;
+			try {
+				response = httpClient.execute(post);
+			} catch (IOException e) {
+				// the host can't be reached, try the next one
+				post.abort();
+				failure = e;
+				continue;
+			}
+			// reading the response in full releases the connection back to the pool
+			byte[] content = null != response.getEntity() ? EntityUtils.toByteArray(response.getEntity()) : new byte[0];
+			int status = response.getStatusLine().getStatusCode();
+			if ((status < 200 || status >= 300) && !isRetryable(status))
+				throw new IOException("Bulk request to " + host + " failed with status " + status + ": "
+						+ new String(content, "UTF-8"));
+			return new Response(status, new BytesArray(content));
+		}
+		throw failure;
+	}
+
+	private ByteArrayEntity entity(BytesReference body) throws IOException {
+		ByteArrayEntity entity;
+		if (compress) {
+			ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(body.length() / 4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(out, 8192) {
+				{
+					// bulk bodies compress well even at the fastest level
+					def.setLevel(Deflater.BEST_SPEED);
+				}
+			};
+			body.writeTo(gzip);
+			gzip.close();
+			entity = new ByteArrayEntity(out.buffer(), 0, out.size());
+			entity.setContentEncoding("gzip");
+		} else {
+			BytesReference bytes = body.toBytesArray();
+			entity = new ByteArrayEntity(bytes.array(), bytes.arrayOffset(), bytes.length());
+		}
+		entity.setContentType("application/json");
+		return entity;
+	}
+
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		ExposedByteArrayOutputStream(int size) {
+			super(size);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	static final class Response {
+		final int status;
+		final BytesReference content;
+
+		Response(int status, BytesReference content) {
+			this.status = status;
+			this.content = content;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+/**
+ * The per-item results of a <code>_bulk</code> response, in the order of the
+ * request's items.</p>
+ *
+ * When the response says there were no errors the items aren't read at all.
+ */
+final class BulkResponseItems {
+
+	private static final int[] NO_STATUSES = new int[0];
+
+	private final boolean errors;
+	private final int[] statuses;
+	// index, type, ID and error of the failed items
+	private final String[][] failures;
+
+	private BulkResponseItems(boolean errors, int[] statuses, String[][] failures) {
+		this.errors = errors;
+		this.statuses = statuses;
+		this.failures = failures;
+	}
+
+	/**
+	 * @return false if all the items succeeded
+	 */
+	boolean hasErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return the number of items read, 0 when there were no errors
+	 */
+	int size() {
+		return statuses.length;
+	}
+
+	int status(int item) {
+		return statuses[item];
+	}
+
+	/**
+	 * @return the item's error, or null if it succeeded
+	 */
+	String failure(int item) {
+		return null != failures[item] ? failures[item][3] : null;
+	}
+
+	/**
+	 * @return "index/type/id" of a failed item
+	 */
+	String failedDocument(int item) {
+		String[] failure = failures[item];
+		return null != failure ? failure[0] + "/" + failure[1] + "/" + failure[2] : null;
+	}
+
+	static BulkResponseItems parse(BytesReference content) throws IOException {
+		XContentParser parser = JsonXContent.jsonXContent.createParser(content);
+		try {
+			if (parser.nextToken() != Token.START_OBJECT)
+				throw new IOException("Unexpected bulk response: " + content.toUtf8());
+			boolean errors = true;
+			int[] statuses = NO_STATUSES;
+			String[][] failures = new String[0][];
+			Token token;
+			while ((token = parser.nextToken()) == Token.FIELD_NAME) {
+				String field = parser.currentName();
+				token = parser.nextToken();
+				if ("errors".equals(field) && token == Token.VALUE_BOOLEAN) {
+					errors = parser.booleanValue();
+					// "errors" comes before the items
+					if (!errors)
+						return new BulkResponseItems(false, NO_STATUSES, failures);
+				} else if ("items".equals(field) && token == Token.START_ARRAY) {
+					int count = 0;
+					statuses = new int[64];
+					failures = new String[64][];
+					while (parser.nextToken() == Token.START_OBJECT) {
+						if (count == statuses.length) {
+							statuses = Arrays.copyOf(statuses, count << 1);
+							failures = Arrays.copyOf(failures, count << 1);
+						}
+						parseItem(parser, statuses, failures, count++);
+					}
+					statuses = Arrays.copyOf(statuses, count);
+					failures = Arrays.copyOf(failures, count);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return new BulkResponseItems(errors, statuses, failures);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Reads an item, {"index":{..., "status":400, "error":"..."}}.
+	 */
+	private static void parseItem(XContentParser parser, int[] statuses, String[][] failures, int item)
+			throws IOException {
+		while (parser.nextToken() == Token.FIELD_NAME) {
+			if (parser.nextToken() != Token.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			String index = null;
+			String type = null;
+			String id = null;
+			String error = null;
+			while (parser.nextToken() == Token.FIELD_NAME) {
+				String field = parser.currentName();
+				Token token = parser.nextToken();
+				if ("status".equals(field) && token == Token.VALUE_NUMBER) {
+					statuses[item] = parser.intValue();
+				} else if ("error".equals(field) && token == Token.START_OBJECT) {
+					error = parser.map().toString();
+				} else if (token.isValue()) {
+					switch (field) {
+					case "_index":
+						index = parser.text();
+						break;
+					case "_type":
+						type = parser.text();
+						break;
+					case "_id":
+						id = parser.text();
+						break;
+					case "error":
+						error = parser.text();
+						break;
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (null != error)
+				failures[item] = new String[] { index, type, id, error };
+		}
+	}
+}
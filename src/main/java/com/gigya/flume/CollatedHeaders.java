@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The headers of an event that is being collated, sorted by their object
+ * paths (see {@link FieldPlan#segments}) so the headers of an object are next
+ * to each other, and a header comes before the headers below its path. The
+ * objects can then be written in a single pass, without building them as
+ * maps first.</p>
+ *
+ * Comparing paths is the bulk of sorting, so the cached plans are ranked by
+ * their paths whenever plans are added to the cache, and the headers of an
+ * event are sorted by their plans' ranks. Events with plans that weren't
+ * ranked are sorted by comparing paths. Kept per thread and reused for the
+ * next event.
+ */
+final class CollatedHeaders {
+
+	private static final Comparator<Entry> BY_PATH = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return comparePaths(e1.plan.segments, e2.plan.segments);
+		}
+	};
+
+	private static final Comparator<FieldPlan> PLANS_BY_PATH = new Comparator<FieldPlan>() {
+		@Override
+		public int compare(FieldPlan plan1, FieldPlan plan2) {
+			return comparePaths(plan1.segments, plan2.segments);
+		}
+	};
+
+	private Entry[] entries = new Entry[16];
+	private int size;
+	// the sort keys, a rank and an index each, and the entries in their sorted order
+	private long[] keys = new long[16];
+	private Entry[] sorted = new Entry[16];
+
+	void add(FieldPlan plan, String value) {
+		if (size == entries.length)
+			entries = Arrays.copyOf(entries, size << 1);
+		Entry entry = entries[size];
+		if (null == entry) {
+			entry = new Entry();
+			entries[size] = entry;
+		}
+		entry.plan = plan;
+		entry.value = value;
+		size++;
+	}
+
+	/**
+	 * Sorts the headers by their paths. Headers with the same path keep their
+	 * order.
+	 */
+	void sort() {
+		if (size > 1)
+			Arrays.sort(entries, 0, size, BY_PATH);
+	}
+
+	/**
+	 * Sorts the headers by the ranks of their plans, if they were all ranked 
+	 * in the given epoch, or else by their paths.
+	 */
+	void sort(int epoch) {
+		if (size < 2)
+			return;
+		if (keys.length < size) {
+			keys = new long[entries.length];
+			sorted = new Entry[entries.length];
+		}
+		for (int i = 0; i < size; i++) {
+			long rank = entries[i].plan.pathRank;
+			if ((int) (rank >>> 32) != epoch) {
+				sort();
+				return;
+			}
+			keys[i] = (rank << 32) | i;
+		}
+		Arrays.sort(keys, 0, size);
+		for (int i = 0; i < size; i++)
+			sorted[i] = entries[(int) keys[i]];
+		System.arraycopy(sorted, 0, entries, 0, size);
+	}
+
+	/**
+	 * Ranks plans by their paths, for {@link #sort(int)}.
+	 * @param epoch the epoch of the ranking, not 0
+	 */
+	static void rank(Collection<FieldPlan> plans, int epoch) {
+		List<FieldPlan> byPath = new ArrayList<FieldPlan>(plans.size());
+		for (FieldPlan plan : plans) {
+			if (null != plan.segments)
+				byPath.add(plan);
+		}
+		Collections.sort(byPath, PLANS_BY_PATH);
+		for (int i = 0; i < byPath.size(); i++)
+			byPath.get(i).pathRank = ((long) epoch << 32) | i;
+	}
+
+	int size() {
+		return size;
+	}
+
+	FieldPlan plan(int i) {
+		return entries[i].plan;
+	}
+
+	String value(int i) {
+		return entries[i].value;
+	}
+
+	/**
+	 * @return the index of the first header after <code>i</code>, and before
+	 * <code>to</code>, whose path differs from the path of <code>i</code> at 
+	 * the level. The headers in between are below the path of <code>i</code> 
+	 * up to the level.
+	 */
+	int endOfGroup(int i, int level, int to) {
+		String segment = entries[i].plan.segments[level];
+		int end = i + 1;
+		while (end < to) {
+			String[] segments = entries[end].plan.segments;
+			if (segments.length <= level || !segment.equals(segments[level]))
+				break;
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Drops the headers, without keeping references to their values.
+	 */
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			entries[i].plan = null;
+			entries[i].value = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Compares paths segment by segment, a path comes before the paths that
+	 * start with it.
+	 */
+	static int comparePaths(String[] path1, String[] path2) {
+		int length = Math.min(path1.length, path2.length);
+		for (int i = 0; i < length; i++) {
+			int result = path1[i].compareTo(path2[i]);
+			if (result != 0)
+				return result;
+		}
+		return path1.length - path2.length;
+	}
+
+	private static final class Entry {
+		FieldPlan plan;
+		String value;
+	}
+}
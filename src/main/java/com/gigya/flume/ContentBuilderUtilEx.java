@@ -24,12 +24,14 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Map;
 
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.jackson.core.JsonParseException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentBuilderString;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentString;
 import org.elasticsearch.common.xcontent.XContentType;
 
 /**
@@ -37,13 +39,67 @@ import org.elasticsearch.common.xcontent.XContentType;
  */
 public class ContentBuilderUtilEx {
 
+	/** A field size limit of 0 or less means the field is not limited */
+	public static final int UNLIMITED = 0;
+
 	private static final Charset charset = Charset.defaultCharset();
+	private static final boolean defaultCharsetIsUtf8 = Charsets.UTF_8.equals(charset);
+	private static final ThreadLocal<char[]> truncateBuffers = new ThreadLocal<char[]>();
 
 	private ContentBuilderUtilEx() {
 	}
 
 	public static void appendField(XContentBuilder builder, String field, Object data) throws IOException {
-		builder.field(field, data);
+		appendField(builder, field, data, UNLIMITED);
+	}
+
+	/**
+	 * Appends a field of any type. Strings, including the ones nested in maps
+	 * and lists, are truncated to at most <code>maxBytes</code> UTF-8 bytes.
+	 */
+	public static void appendField(XContentBuilder builder, String field, Object data, int maxBytes)
+			throws IOException {
+		if (data instanceof ObjectValue) {
+			((ObjectValue) data).writeTo(builder, field, maxBytes);
+		} else if (data instanceof Map) {
+			// write maps ourselves, they might hold streamed object values
+			builder.startObject(field);
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) data).entrySet()) {
+				appendField(builder, String.valueOf(entry.getKey()), entry.getValue(), maxBytes);
+			}
+			builder.endObject();
+		} else if (data instanceof String) {
+			builder.field(field);
+			writeString(builder, (String) data, maxBytes);
+		} else if (data instanceof Iterable && maxBytes > 0) {
+			builder.startArray(field);
+			for (Object value : (Iterable<?>) data) {
+				appendValue(builder, value, maxBytes);
+			}
+			builder.endArray();
+		} else {
+			builder.field(field, data);
+		}
+	}
+
+	private static void appendValue(XContentBuilder builder, Object value, int maxBytes) throws IOException {
+		if (value instanceof Map) {
+			builder.startObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				appendField(builder, String.valueOf(entry.getKey()), entry.getValue(), maxBytes);
+			}
+			builder.endObject();
+		} else if (value instanceof String) {
+			writeString(builder, (String) value, maxBytes);
+		} else if (value instanceof Iterable) {
+			builder.startArray();
+			for (Object item : (Iterable<?>) value) {
+				appendValue(builder, item, maxBytes);
+			}
+			builder.endArray();
+		} else {
+			builder.value(value);
+		}
 	}
 
 	public static void appendField(XContentBuilder builder, String field, byte[] data) throws IOException {
@@ -52,30 +108,487 @@ public class ContentBuilderUtilEx {
 
 	public static void appendField(XContentBuilder builder, String field, byte[] data, boolean allowObject)
 			throws IOException {
-		XContentType contentType = XContentFactory.xContentType(data);
-		if (contentType == null || !allowObject) {
-			addSimpleField(builder, field, data);
+		appendField(builder, field, data, allowObject, false);
+	}
+
+	/**
+	 * Appends a field that might hold an object. When <code>streamObjects</code> is 
+	 * set the object is streamed into the builder (see {@link #addStreamedField}) 
+	 * instead of being parsed into a map first. 
+	 */
+	public static void appendField(XContentBuilder builder, String field, byte[] data, boolean allowObject,
+			boolean streamObjects) throws IOException {
+		appendField(builder, field, data, allowObject, streamObjects, UNLIMITED);
+	}
+
+	/**
+	 * Same as {@link #appendField(XContentBuilder, String, byte[], boolean, boolean)}, 
+	 * with strings truncated to at most <code>maxBytes</code> UTF-8 bytes.
+	 * @return true if the data was written as an object
+	 */
+	public static boolean appendField(XContentBuilder builder, String field, byte[] data, boolean allowObject,
+			boolean streamObjects, int maxBytes) throws IOException {
+		XContentType contentType = allowObject ? XContentFactory.xContentType(data) : null;
+		if (contentType == XContentType.JSON && !mayBeJsonObject(data)) {
+			rejectObject();
+			contentType = null;
+		}
+		if (contentType == null) {
+			addSimpleField(builder, field, data, maxBytes);
+			return false;
+		} else if (streamObjects) {
+			return addStreamedField(builder, field, contentType, data, maxBytes);
 		} else {
-			addComplexField(builder, field, contentType, data);
+			return addComplexField(builder, field, contentType, data, maxBytes);
 		}
 	}
 
+	/**
+	 * Appends a string field that might hold an object, without converting it to bytes
+	 * unless it is parsed as an object.
+	 */
+	public static void appendField(XContentBuilder builder, String field, String data, boolean allowObject,
+			boolean streamObjects) throws IOException {
+		appendField(builder, field, data, allowObject, streamObjects, UNLIMITED);
+	}
+
+	/**
+	 * Same as {@link #appendField(XContentBuilder, String, String, boolean, boolean)}, 
+	 * with strings truncated to at most <code>maxBytes</code> UTF-8 bytes.
+	 * @return true if the data was written as an object
+	 */
+	public static boolean appendField(XContentBuilder builder, String field, String data, boolean allowObject,
+			boolean streamObjects, int maxBytes) throws IOException {
+		if (!defaultCharsetIsUtf8 && null != data) {
+			// keep the output of the byte[] variant, which decodes with the default charset
+			return appendField(builder, field, data.getBytes(charset), allowObject, streamObjects, maxBytes);
+		}
+		XContentType contentType = (allowObject && null != data) ? XContentFactory.xContentType(data) : null;
+		if (contentType == XContentType.JSON && !mayBeJsonObject(data)) {
+			rejectObject();
+			contentType = null;
+		}
+		if (contentType == null) {
+			addSimpleField(builder, field, data, maxBytes);
+			return false;
+		} else if (streamObjects) {
+			return addStreamedField(builder, field, data, maxBytes);
+		} else {
+			return addComplexField(builder, field, contentType, data, maxBytes);
+		}
+	}
+
+	/**
+	 * A cheap check of data that starts like a JSON object, to skip parsing
+	 * (and the exception it throws) for data that can't be a valid object.
+	 * @return false if the first object in the data never closes, e.g. a
+	 * truncated JSON. True if it closes, or if it can't tell (comments, 
+	 * single quoted strings), which is left for the parser to decide.
+	 */
+	static boolean mayBeJsonObject(CharSequence data) {
+		int length = data.length();
+		int depth = 0;
+		boolean inString = false;
+		for (int i = 0; i < length; i++) {
+			char c = data.charAt(i);
+			if (inString) {
+				if (c == '\\')
+					i++;
+				else if (c == '"')
+					inString = false;
+				continue;
+			}
+			switch (c) {
+			case '"':
+				inString = true;
+				break;
+			case '{':
+			case '[':
+				depth++;
+				break;
+			case '}':
+			case ']':
+				if (--depth <= 0)
+					return true;
+				break;
+			case '/':
+			case '\'':
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Same as {@link #mayBeJsonObject(CharSequence)}, for UTF-8 data, whose
+	 * multi-byte characters never hold ASCII bytes.
+	 */
+	static boolean mayBeJsonObject(byte[] data) {
+		int depth = 0;
+		boolean inString = false;
+		for (int i = 0; i < data.length; i++) {
+			byte c = data[i];
+			if (inString) {
+				if (c == '\\')
+					i++;
+				else if (c == '"')
+					inString = false;
+				continue;
+			}
+			switch (c) {
+			case '"':
+				inString = true;
+				break;
+			case '{':
+			case '[':
+				depth++;
+				break;
+			case '}':
+			case ']':
+				if (--depth <= 0)
+					return true;
+				break;
+			case '/':
+			case '\'':
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the top level fields of a valid JSON object, without parsing their
+	 * values, so they can be written as they are.
+	 * @param offsets an array to reuse, or null
+	 * @return the number of fields, followed by four offsets for each field:
+	 * where its name starts and ends (without the quotes) and where its value
+	 * starts and ends. Null if the names have escapes, or if the values have
+	 * line breaks or comments, which can't be written as they are.
+	 */
+	static int[] jsonFieldOffsets(byte[] data, int[] offsets) {
+		int i = skipWhitespace(data, 0);
+		if (i >= data.length || data[i] != '{')
+			return null;
+		int count = 0;
+		i = skipWhitespace(data, i + 1);
+		while (i < data.length && data[i] != '}') {
+			if (data[i] != '"')
+				return null;
+			int nameStart = i + 1;
+			int nameEnd = nameStart;
+			while (nameEnd < data.length && data[nameEnd] != '"') {
+				if (data[nameEnd] == '\\')
+					return null;
+				nameEnd++;
+			}
+			i = skipWhitespace(data, nameEnd + 1);
+			if (i >= data.length || data[i] != ':')
+				return null;
+			int valueStart = skipWhitespace(data, i + 1);
+			int depth = 0;
+			boolean inString = false;
+			for (i = valueStart; i < data.length; i++) {
+				byte c = data[i];
+				if (inString) {
+					if (c == '\\')
+						i++;
+					else if (c == '"')
+						inString = false;
+					continue;
+				}
+				if (c == '"') {
+					inString = true;
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					if (depth-- == 0)
+						break;
+				} else if (c == ',' && depth == 0) {
+					break;
+				} else if (c == '/' || (depth > 0 && (c == '\n' || c == '\r'))) {
+					// line breaks after the value are left out
+					return null;
+				}
+			}
+			if (i >= data.length)
+				return null;
+			int valueEnd = i;
+			while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1]))
+				valueEnd--;
+			if (null == offsets || offsets.length < 5 + count * 4)
+				offsets = grow(offsets, 5 + count * 4);
+			int o = 1 + count * 4;
+			offsets[o] = nameStart;
+			offsets[o + 1] = nameEnd;
+			offsets[o + 2] = valueStart;
+			offsets[o + 3] = valueEnd;
+			count++;
+			if (data[i] == ',')
+				i = skipWhitespace(data, i + 1);
+		}
+		if (null == offsets)
+			offsets = new int[1];
+		offsets[0] = count;
+		return offsets;
+	}
+
+	private static int[] grow(int[] offsets, int minLength) {
+		int[] grown = new int[Math.max(minLength, null == offsets ? 65 : offsets.length * 2)];
+		if (null != offsets)
+			System.arraycopy(offsets, 0, grown, 0, offsets.length);
+		return grown;
+	}
+
+	private static int skipWhitespace(byte[] data, int i) {
+		while (i < data.length && isWhitespace(data[i]))
+			i++;
+		return i;
+	}
+
+	private static boolean isWhitespace(byte c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private static void rejectObject() {
+		SerializerMetrics.countObjectPrecheckRejected();
+		SerializerMetrics.countJsonParseFailure();
+	}
+
 	public static void addSimpleField(XContentBuilder builder, String fieldName, byte[] data) throws IOException {
-		builder.field(fieldName, new String(data, charset));
+		addSimpleField(builder, fieldName, data, UNLIMITED);
+	}
+
+	public static void addSimpleField(XContentBuilder builder, String fieldName, byte[] data, int maxBytes)
+			throws IOException {
+		builder.field(fieldName);
+		writeUtf8String(builder, data, maxBytes);
+	}
+
+	public static void addSimpleField(XContentBuilder builder, String fieldName, String data) throws IOException {
+		addSimpleField(builder, fieldName, data, UNLIMITED);
+	}
+
+	public static void addSimpleField(XContentBuilder builder, String fieldName, String data, int maxBytes)
+			throws IOException {
+		if (defaultCharsetIsUtf8 || null == data) {
+			builder.field(fieldName);
+			writeString(builder, data, maxBytes);
+		} else {
+			// keep the output of the byte[] variant, which decodes with the default charset
+			addSimpleField(builder, fieldName, data.getBytes(charset), maxBytes);
+		}
+	}
+
+	/**
+	 * Same as {@link #addSimpleField(XContentBuilder, String, String, int)}, with a  
+	 * field name that was already encoded. 
+	 */
+	public static void addSimpleField(XContentBuilder builder, XContentString fieldName, String data, int maxBytes)
+			throws IOException {
+		builder.generator().writeFieldName(fieldName);
+		if (defaultCharsetIsUtf8 || null == data) {
+			writeString(builder, data, maxBytes);
+		} else {
+			// keep the output of the byte[] variant, which decodes with the default charset
+			writeString(builder, new String(data.getBytes(charset), charset), maxBytes);
+		}
+	}
+
+	/**
+	 * Same as {@link #addSimpleField(XContentBuilder, String, byte[], int)}, with a  
+	 * field name that was already encoded. 
+	 */
+	public static void addSimpleField(XContentBuilder builder, XContentString fieldName, byte[] data, int maxBytes)
+			throws IOException {
+		builder.generator().writeFieldName(fieldName);
+		writeUtf8String(builder, data, maxBytes);
+	}
+
+	/**
+	 * Same as {@link #addSimpleField(XContentBuilder, XContentString, String, int)}, 
+	 * writing the value's UTF-8 bytes from the symbol table when it's there, 
+	 * instead of encoding it.
+	 */
+	static void addSymbolField(XContentBuilder builder, XContentString fieldName, String data, int maxBytes,
+			SymbolTable symbols) throws IOException {
+		byte[] utf8 = (defaultCharsetIsUtf8 && null != data) ? symbols.get(data) : null;
+		if (null == utf8 || (maxBytes > 0 && utf8.length > maxBytes)) {
+			addSimpleField(builder, fieldName, data, maxBytes);
+			return;
+		}
+		builder.generator().writeFieldName(fieldName);
+		builder.generator().writeUTF8String(utf8, 0, utf8.length);
+	}
+
+	/**
+	 * Writes a string value, truncated to at most <code>maxBytes</code> UTF-8 bytes
+	 * without splitting a character. The truncated value is written straight from
+	 * the string's characters, without creating a substring.
+	 */
+	public static void writeString(XContentBuilder builder, String data, int maxBytes) throws IOException {
+		int length = null == data ? 0 : truncatedLength(data, maxBytes);
+		if (null == data || length == data.length()) {
+			builder.value(data);
+			return;
+		}
+		char[] chars = truncateBuffers.get();
+		if (null == chars || chars.length < length) {
+			chars = new char[length];
+			truncateBuffers.set(chars);
+		}
+		data.getChars(0, length, chars, 0);
+		builder.generator().writeString(chars, 0, length);
+		SerializerMetrics.countFieldTruncated();
+	}
+
+	/**
+	 * Writes data in the default charset as a string value, truncated to at
+	 * most <code>maxBytes</code> UTF-8 bytes without splitting a character.
+	 * UTF-8 data is written straight from the bytes, without decoding it into
+	 * a string, unless it isn't valid UTF-8 or has characters outside the BMP,
+	 * which the generator only escapes as surrogate pairs when writing chars.
+	 */
+	public static void writeUtf8String(XContentBuilder builder, byte[] data, int maxBytes) throws IOException {
+		int length = defaultCharsetIsUtf8 ? utf8Length(data, maxBytes) : -1;
+		if (length < 0) {
+			writeString(builder, new String(data, charset), maxBytes);
+			return;
+		}
+		builder.generator().writeUTF8String(data, 0, length);
+		if (length < data.length)
+			SerializerMetrics.countFieldTruncated();
+	}
+
+	/**
+	 * Scans UTF-8 data up to the character that crosses <code>maxBytes</code>.
+	 * @return the number of bytes of the whole characters that fit in
+	 * <code>maxBytes</code>, or -1 if the data scanned isn't valid UTF-8
+	 * (overlong forms, surrogates, cut sequences) or has 4 byte characters
+	 */
+	static int utf8Length(byte[] data, int maxBytes) {
+		int end = data.length;
+		int limit = (maxBytes > 0 && maxBytes < end) ? maxBytes : end;
+		int i = 0;
+		while (i < limit) {
+			int b = data[i];
+			if (b >= 0) {
+				i++;
+				continue;
+			}
+			b &= 0xFF;
+			int size;
+			int min = 0x80;
+			int max = 0xBF;
+			if (b >= 0xC2 && b <= 0xDF) {
+				size = 2;
+			} else if (b >= 0xE0 && b <= 0xEF) {
+				size = 3;
+				if (b == 0xE0)
+					min = 0xA0;
+				else if (b == 0xED)
+					max = 0x9F;
+			} else {
+				return -1;
+			}
+			if (i + size > end)
+				return -1;
+			int second = data[i + 1] & 0xFF;
+			if (second < min || second > max)
+				return -1;
+			for (int j = i + 2; j < i + size; j++) {
+				if ((data[j] & 0xC0) != 0x80)
+					return -1;
+			}
+			if (i + size > limit)
+				return i;
+			i += size;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the number of characters of the string that fit in 
+	 * <code>maxBytes</code> bytes when encoded as UTF-8, never splitting a
+	 * surrogate pair
+	 */
+	public static int truncatedLength(String data, int maxBytes) {
+		int length = data.length();
+		// a char is never more than 3 bytes, a surrogate pair is 4 bytes
+		if (maxBytes <= 0 || length <= maxBytes / 3)
+			return length;
+		int bytes = 0;
+		for (int i = 0; i < length; i++) {
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				bytes += 1;
+			} else if (c < 0x800) {
+				bytes += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(data.charAt(i + 1))) {
+				if (bytes + 4 > maxBytes)
+					return i;
+				bytes += 4;
+				i++;
+				continue;
+			} else {
+				bytes += 3;
+			}
+			if (bytes > maxBytes)
+				return i;
+		}
+		return length;
 	}
 
 	public static void addComplexField(XContentBuilder builder, String fieldName, XContentType contentType, byte[] data)
 			throws IOException {
+		addComplexField(builder, fieldName, contentType, data, UNLIMITED);
+	}
+
+	/**
+	 * @return true if the data was written as an object
+	 */
+	public static boolean addComplexField(XContentBuilder builder, String fieldName, XContentType contentType,
+			byte[] data, int maxBytes) throws IOException {
 		XContentParser parser = null;
 		try {
 			parser = XContentFactory.xContent(contentType).createParser(data);
 			Map<String, Object> map = parser.map();
-			builder.field(fieldName, map);
+			appendComplexField(builder, fieldName, map, maxBytes);
+			return true;
 		} catch (JsonParseException ex) {
 			// If we get an exception here the most likely cause is nested JSON
 			// that can't be figured out in the body. At this point just push it
 			// through as is, we have already added the field so don't do it again
-			addSimpleField(builder, fieldName, data);
+			SerializerMetrics.countJsonParseFailure();
+			addSimpleField(builder, fieldName, data, maxBytes);
+			return false;
+		} finally {
+			if (parser != null) {
+				parser.close();
+			}
+		}
+	}
+
+	public static void addComplexField(XContentBuilder builder, String fieldName, XContentType contentType, String data)
+			throws IOException {
+		addComplexField(builder, fieldName, contentType, data, UNLIMITED);
+	}
+
+	/**
+	 * @return true if the data was written as an object
+	 */
+	public static boolean addComplexField(XContentBuilder builder, String fieldName, XContentType contentType,
+			String data, int maxBytes) throws IOException {
+		XContentParser parser = null;
+		try {
+			parser = XContentFactory.xContent(contentType).createParser(data);
+			Map<String, Object> map = parser.map();
+			appendComplexField(builder, fieldName, map, maxBytes);
+			return true;
+		} catch (JsonParseException ex) {
+			// same as with the byte[] variant, push malformed content through as is
+			SerializerMetrics.countJsonParseFailure();
+			addSimpleField(builder, fieldName, data, maxBytes);
+			return false;
 		} finally {
 			if (parser != null) {
 				parser.close();
@@ -83,8 +596,190 @@ public class ContentBuilderUtilEx {
 		}
 	}
 
+	private static void appendComplexField(XContentBuilder builder, String fieldName, Map<String, Object> map,
+			int maxBytes) throws IOException {
+		if (maxBytes > 0) {
+			appendField(builder, fieldName, map, maxBytes);
+		} else {
+			builder.field(fieldName, map);
+		}
+	}
+
+	/**
+	 * Writes an object field without building an intermediate map. The data is 
+	 * validated first, so malformed content still falls back to a simple field
+	 * without leaving a partially written object in the builder. Data in the 
+	 * builder's own content type is embedded as is, other content types are copied
+	 * token by token.
+	 */
+	public static void addStreamedField(XContentBuilder builder, String fieldName, XContentType contentType,
+			byte[] data) throws IOException {
+		addStreamedField(builder, fieldName, contentType, data, UNLIMITED);
+	}
+
+	/**
+	 * @return true if the data was written as an object
+	 */
+	public static boolean addStreamedField(XContentBuilder builder, String fieldName, XContentType contentType,
+			byte[] data, int maxBytes) throws IOException {
+		if (isValidObject(contentType, data)) {
+			writeObject(builder, fieldName, contentType, data, maxBytes);
+			return true;
+		}
+		SerializerMetrics.countJsonParseFailure();
+		addSimpleField(builder, fieldName, data, maxBytes);
+		return false;
+	}
+
+	public static void addStreamedField(XContentBuilder builder, String fieldName, String data) throws IOException {
+		addStreamedField(builder, fieldName, data, UNLIMITED);
+	}
+
+	/**
+	 * @return true if the data was written as an object
+	 */
+	public static boolean addStreamedField(XContentBuilder builder, String fieldName, String data, int maxBytes)
+			throws IOException {
+		ObjectValue objectValue = tryParsingToObject(data);
+		if (null != objectValue) {
+			objectValue.writeTo(builder, fieldName, maxBytes);
+			return true;
+		}
+		addSimpleField(builder, fieldName, data, maxBytes);
+		return false;
+	}
+
+	/**
+	 * Validates a string that might hold an object, to be written later on without 
+	 * parsing it into a map.  
+	 * @return the validated object value, or null if the data is not a valid object
+	 */
+	public static ObjectValue tryParsingToObject(String data) {
+		XContentType contentType = XContentFactory.xContentType(data);
+		if (contentType == XContentType.JSON && !mayBeJsonObject(data)) {
+			rejectObject();
+			return null;
+		}
+		if (null != contentType) {
+			byte[] bytes = data.getBytes(Charsets.UTF_8);
+			if (isValidObject(contentType, bytes))
+				return new ObjectValue(contentType, bytes);
+			SerializerMetrics.countJsonParseFailure();
+		}
+		return null;
+	}
+
+	/**
+	 * Scans all tokens of the data, without keeping any of them.  
+	 * @return true if the data holds exactly one, well formed, object
+	 */
+	static boolean isValidObject(XContentType contentType, byte[] data) {
+		XContentParser parser = null;
+		try {
+			parser = XContentFactory.xContent(contentType).createParser(data);
+			if (parser.nextToken() != XContentParser.Token.START_OBJECT)
+				return false;
+			parser.skipChildren();
+			// make sure there's nothing after the object
+			return parser.nextToken() == null;
+		} catch (IOException ex) {
+			return false;
+		} finally {
+			if (parser != null) {
+				parser.close();
+			}
+		}
+	}
+
+	/**
+	 * Validates data that might hold an object, the same way objectFields
+	 * values are validated before they are streamed.
+	 * @return the content type of the data, or null if it isn't a valid object
+	 */
+	static XContentType objectContentType(byte[] data) {
+		XContentType contentType = (null != data) ? XContentFactory.xContentType(data) : null;
+		if (contentType == XContentType.JSON && !mayBeJsonObject(data)) {
+			rejectObject();
+			return null;
+		}
+		if (null != contentType && !isValidObject(contentType, data)) {
+			SerializerMetrics.countJsonParseFailure();
+			return null;
+		}
+		return contentType;
+	}
+
+	/**
+	 * Copies the parser's current value, with everything below it, truncating
+	 * its strings to at most <code>maxBytes</code> UTF-8 bytes.
+	 */
+	static void copyValue(XContentBuilder builder, XContentParser parser, int maxBytes) throws IOException {
+		if (maxBytes <= 0) {
+			builder.copyCurrentStructure(parser);
+			return;
+		}
+		switch (parser.currentToken()) {
+		case START_OBJECT:
+			builder.startObject();
+			while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+				builder.field(parser.currentName());
+				parser.nextToken();
+				copyValue(builder, parser, maxBytes);
+			}
+			builder.endObject();
+			break;
+		case START_ARRAY:
+			builder.startArray();
+			while (parser.nextToken() != XContentParser.Token.END_ARRAY)
+				copyValue(builder, parser, maxBytes);
+			builder.endArray();
+			break;
+		case VALUE_STRING:
+			writeString(builder, parser.text(), maxBytes);
+			break;
+		default:
+			builder.copyCurrentStructure(parser);
+			break;
+		}
+	}
+
+	private static void writeObject(XContentBuilder builder, String fieldName, XContentType contentType, byte[] data,
+			int maxBytes) throws IOException {
+		// only an object longer than the limit might hold strings that are too long
+		boolean truncate = maxBytes > 0 && data.length > maxBytes;
+		// JSON documents must stay on a single line, for bulk requests 
+		if (!truncate && builder.contentType() == contentType
+				&& (contentType != XContentType.JSON || !hasLineBreaks(data))) {
+			builder.rawField(fieldName, data);
+			return;
+		}
+		XContentParser parser = null;
+		try {
+			parser = XContentFactory.xContent(contentType).createParser(data);
+			parser.nextToken();
+			builder.field(fieldName);
+			copyValue(builder, parser, truncate ? maxBytes : UNLIMITED);
+		} finally {
+			if (parser != null) {
+				parser.close();
+			}
+		}
+	}
+
+	private static boolean hasLineBreaks(byte[] data) {
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] == '\n' || data[i] == '\r')
+				return true;
+		}
+		return false;
+	}
+
 	public static Map<String, Object> tryParsingToMap(String data) {
 		XContentType contentType = XContentFactory.xContentType(data);
+		if (contentType == XContentType.JSON && !mayBeJsonObject(data)) {
+			rejectObject();
+			return null;
+		}
 		if (null != contentType) {
 			XContentParser parser = null;
 			try {
@@ -92,6 +787,7 @@ public class ContentBuilderUtilEx {
 				Map<String, Object> map = parser.map();
 				return map;
 			} catch (IOException ex) {
+				SerializerMetrics.countJsonParseFailure();
 			} finally {
 				if (parser != null) {
 					parser.close();
@@ -100,5 +796,48 @@ public class ContentBuilderUtilEx {
 		}
 		return null;
 	}
-	
+
+	/**
+	 * An object value that was already validated and is written to the builder 
+	 * as is, without being parsed into a map.
+	 */
+	public static class ObjectValue {
+		private final XContentType contentType;
+		private final byte[] data;
+
+		ObjectValue(XContentType contentType, byte[] data) {
+			this.contentType = contentType;
+			this.data = data;
+		}
+
+		public void writeTo(XContentBuilder builder, String fieldName) throws IOException {
+			writeTo(builder, fieldName, UNLIMITED);
+		}
+
+		/**
+		 * Writes the value, with its strings truncated to at most <code>maxBytes</code> 
+		 * UTF-8 bytes.
+		 */
+		public void writeTo(XContentBuilder builder, String fieldName, int maxBytes) throws IOException {
+			writeObject(builder, fieldName, contentType, data, maxBytes);
+		}
+
+		/**
+		 * Parses the value into a map, for when other fields need to be merged into it.
+		 */
+		public Map<String, Object> toMap() {
+			XContentParser parser = null;
+			try {
+				parser = XContentFactory.xContent(contentType).createParser(data);
+				return parser.map();
+			} catch (IOException ex) {
+				return Maps.newHashMap();
+			} finally {
+				if (parser != null) {
+					parser.close();
+				}
+			}
+		}
+	}
+
 }
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.BytesStream;
+
+/**
+ * The output stream a serialized event is written into.</p>
+ *
+ * When given a {@link DocumentHasher} the stream digests the bytes as they are
+ * written, so the document ID is ready once the document is complete, without
+ * copying or reading the document again. The ID travels with the bytes returned
+ * by {@link #bytes()} (see {@link DocumentBytesReference}). A document ID that
+ * is known before the document is written can be given instead.</p>
+ *
+ * A {@link #reusable(int) reusable} stream keeps its buffer, and the capacity it
+ * grew to, from one document to the next (see {@link #reset}). Since the buffer 
+ * is written over by the next document, its bytes are copied out, at their exact 
+ * size, when they are handed out.
+ */
+public class DocumentBytesStreamOutput extends OutputStream implements BytesStream {
+
+	static final int DEFAULT_CAPACITY = 1024;
+
+	private byte[] buffer;
+	private int count;
+	private DocumentHasher hasher;
+	private String documentId;
+	private DocumentBytesReference bytes;
+	/** The largest buffer kept for the next document, or -1 if the stream isn't reused */
+	private final int maxRetainedCapacity;
+
+	public DocumentBytesStreamOutput() {
+		this((DocumentHasher) null);
+	}
+
+	/**
+	 * @param hasher a hasher to digest the written bytes with, or null
+	 */
+	public DocumentBytesStreamOutput(DocumentHasher hasher) {
+		this.buffer = new byte[DEFAULT_CAPACITY];
+		this.maxRetainedCapacity = -1;
+		setHasher(hasher);
+	}
+
+	/**
+	 * @param documentId the ID of the document that will be written
+	 */
+	public DocumentBytesStreamOutput(String documentId) {
+		this.buffer = new byte[DEFAULT_CAPACITY];
+		this.maxRetainedCapacity = -1;
+		this.documentId = documentId;
+	}
+
+	private DocumentBytesStreamOutput(int maxRetainedCapacity) {
+		this.buffer = new byte[DEFAULT_CAPACITY];
+		this.maxRetainedCapacity = Math.max(maxRetainedCapacity, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a stream that is reused for many documents. {@link #reset} it before
+	 * each document, and take its {@link #bytes()} before resetting it again.   
+	 * @param maxRetainedCapacity buffers that grew larger than this are dropped 
+	 * when the stream is reset, so one large document doesn't pin a large buffer
+	 */
+	public static DocumentBytesStreamOutput reusable(int maxRetainedCapacity) {
+		return new DocumentBytesStreamOutput(maxRetainedCapacity);
+	}
+
+	/**
+	 * Starts a new document in a reusable stream.
+	 * @param hasher a hasher to digest the written bytes with, or null
+	 * @param documentId the ID of the document, if already known. The hasher
+	 * isn't used when given.
+	 */
+	public void reset(DocumentHasher hasher, String documentId) {
+		if (maxRetainedCapacity < 0)
+			throw new IllegalStateException("The stream is not reusable");
+		if (buffer.length > maxRetainedCapacity)
+			buffer = new byte[DEFAULT_CAPACITY];
+		count = 0;
+		bytes = null;
+		this.documentId = documentId;
+		setHasher(null == documentId ? hasher : null);
+	}
+
+	private void setHasher(DocumentHasher hasher) {
+		this.hasher = hasher;
+		if (null != hasher) {
+			hasher.reset();
+			hasher.owner = this;
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buffer[count++] = (byte) b;
+		if (null != hasher)
+			hasher.update(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+		if (null != hasher)
+			hasher.update(b, off, len);
+	}
+
+	@Override
+	public void close() {
+		// nothing to close, the bytes are still needed
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the written bytes, along with their document ID if one was given
+	 * or a hasher was given. The bytes are wrapped without copying, unless the 
+	 * stream is reusable.
+	 */
+	@Override
+	public BytesReference bytes() {
+		if (null == bytes || bytes.length() != count) {
+			byte[] b = maxRetainedCapacity < 0 ? buffer : Arrays.copyOf(buffer, count);
+			bytes = new DocumentBytesReference(b, count, documentId());
+		}
+		return bytes;
+	}
+
+	private String documentId() {
+		if (null != documentId)
+			return documentId;
+		if (null == hasher || count == 0)
+			return null;
+		if (hasher.owner != this) {
+			// the hasher was taken over by another document on this thread
+			return hasher.documentId(buffer, 0, count);
+		}
+		hasher.owner = null;
+		return DocumentHasher.toDocumentId(hasher.digest());
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, capacity));
+		}
+	}
+
+	/**
+	 * The bytes of a serialized event, along with the document ID computed
+	 * while they were written.
+	 */
+	public static class DocumentBytesReference extends BytesArray {
+		private final String documentId;
+
+		DocumentBytesReference(byte[] bytes, int length, String documentId) {
+			super(bytes, 0, length);
+			this.documentId = documentId;
+		}
+
+		/**
+		 * @return the document ID, or null if the bytes weren't hashed
+		 */
+		public String documentId() {
+			return documentId;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.elasticsearch.common.Base64;
+
+/**
+ * An incremental 128 bit hash used to generate document IDs.</p>
+ *
+ * A hasher keeps state between calls, so it is meant to be reused (one per
+ * thread) and is not thread safe. Call {@link #reset()} before hashing a new
+ * document.
+ */
+public abstract class DocumentHasher {
+
+	/** MD5, the algorithm document IDs were always generated with */
+	public static final String MD5 = "md5";
+	/** The x64 128 bit variant of MurmurHash3 */
+	public static final String MURMUR3_128 = "murmur3_128";
+	/** The length of a document ID, which encodes 128 bits */
+	public static final int DOCUMENT_ID_LENGTH = 22;
+
+	/** The stream currently writing into this hasher, if any */
+	Object owner;
+	private byte[] utf8Buffer;
+
+	/**
+	 * @return a new hasher for the given algorithm name (case insensitive)
+	 * @throws IllegalArgumentException for an unknown algorithm
+	 */
+	public static DocumentHasher create(String algorithm) {
+		if (MD5.equalsIgnoreCase(algorithm))
+			return new Md5();
+		if (MURMUR3_128.equalsIgnoreCase(algorithm))
+			return new Murmur3();
+		throw new IllegalArgumentException("Unknown document ID hash algorithm: " + algorithm);
+	}
+
+	/**
+	 * Encodes a digest as a document ID: URL safe Base64, without padding.
+	 */
+	public static String toDocumentId(byte[] digest) {
+		String hashId;
+		try {
+			hashId = Base64.encodeBytes(digest, Base64.URL_SAFE);
+		} catch (IOException e) {
+			// only thrown when compressing
+			throw new IllegalStateException(e);
+		}
+		// remove padding
+		if (hashId.endsWith("=="))
+			hashId = hashId.substring(0, hashId.length() - 2);
+		return hashId;
+	}
+
+	public abstract void reset();
+
+	public abstract void update(int b);
+
+	public abstract void update(byte[] b, int off, int len);
+
+	/**
+	 * Hashes an int as 4 big endian bytes.
+	 */
+	public void updateInt(int v) {
+		update(v >>> 24);
+		update(v >>> 16);
+		update(v >>> 8);
+		update(v);
+	}
+
+	/**
+	 * Hashes the UTF-8 encoding of a string, without allocating its bytes.
+	 * Unpaired surrogates are hashed as '?', like {@link String#getBytes}.
+	 */
+	public void update(String s) {
+		if (null == utf8Buffer)
+			utf8Buffer = new byte[256];
+		byte[] buf = utf8Buffer;
+		int pos = 0;
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			if (pos > buf.length - 4) {
+				update(buf, 0, pos);
+				pos = 0;
+			}
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		update(buf, 0, pos);
+	}
+
+	/**
+	 * Completes the hash. The hasher has to be reset before it is used again.
+	 */
+	public abstract byte[] digest();
+
+	/**
+	 * Resets the hasher and returns a stream that hashes what is written into 
+	 * it, without keeping the bytes.
+	 */
+	public OutputStream hashingStream() {
+		reset();
+		OutputStream stream = new OutputStream() {
+			@Override
+			public void write(int b) {
+				update(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				update(b, off, len);
+			}
+		};
+		owner = stream;
+		return stream;
+	}
+
+	/**
+	 * Hashes a byte range from scratch and returns the document ID for it.
+	 */
+	public String documentId(byte[] b, int off, int len) {
+		reset();
+		update(b, off, len);
+		return toDocumentId(digest());
+	}
+
+	static class Md5 extends DocumentHasher {
+		private final MessageDigest md;
+
+		Md5() {
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 is not available", e);
+			}
+		}
+
+		@Override
+		public void reset() {
+			md.reset();
+		}
+
+		@Override
+		public void update(int b) {
+			md.update((byte) b);
+		}
+
+		@Override
+		public void update(byte[] b, int off, int len) {
+			md.update(b, off, len);
+		}
+
+		@Override
+		public byte[] digest() {
+			return md.digest();
+		}
+	}
+
+	/**
+	 * MurmurHash3, x64 128 bit variant with a zero seed. The digest bytes are
+	 * the same as Guava's <code>Hashing.murmur3_128().hashBytes(..).asBytes()</code>.
+	 */
+	static class Murmur3 extends DocumentHasher {
+		private static final long C1 = 0x87c37b91114253d5L;
+		private static final long C2 = 0x4cf5ad432745937fL;
+
+		private final byte[] tail = new byte[16];
+		private int tailLength;
+		private long length;
+		private long h1;
+		private long h2;
+
+		@Override
+		public void reset() {
+			tailLength = 0;
+			length = 0;
+			h1 = 0;
+			h2 = 0;
+		}
+
+		@Override
+		public void update(int b) {
+			tail[tailLength++] = (byte) b;
+			length++;
+			if (tailLength == 16) {
+				mixBlock(getLong(tail, 0), getLong(tail, 8));
+				tailLength = 0;
+			}
+		}
+
+		@Override
+		public void update(byte[] b, int off, int len) {
+			length += len;
+			if (tailLength > 0) {
+				int fill = Math.min(16 - tailLength, len);
+				System.arraycopy(b, off, tail, tailLength, fill);
+				tailLength += fill;
+				off += fill;
+				len -= fill;
+				if (tailLength < 16)
+					return;
+				mixBlock(getLong(tail, 0), getLong(tail, 8));
+				tailLength = 0;
+			}
+			while (len >= 16) {
+				mixBlock(getLong(b, off), getLong(b, off + 8));
+				off += 16;
+				len -= 16;
+			}
+			if (len > 0) {
+				System.arraycopy(b, off, tail, 0, len);
+				tailLength = len;
+			}
+		}
+
+		@Override
+		public byte[] digest() {
+			long k1 = 0;
+			long k2 = 0;
+			for (int i = tailLength - 1; i >= 8; i--)
+				k2 ^= (long) (tail[i] & 0xff) << ((i - 8) * 8);
+			for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--)
+				k1 ^= (long) (tail[i] & 0xff) << (i * 8);
+			if (tailLength > 8)
+				h2 ^= mixK2(k2);
+			if (tailLength > 0)
+				h1 ^= mixK1(k1);
+
+			h1 ^= length;
+			h2 ^= length;
+			h1 += h2;
+			h2 += h1;
+			h1 = fmix64(h1);
+			h2 = fmix64(h2);
+			h1 += h2;
+			h2 += h1;
+
+			byte[] digest = new byte[16];
+			putLong(digest, 0, h1);
+			putLong(digest, 8, h2);
+			return digest;
+		}
+
+		private void mixBlock(long k1, long k2) {
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		private static long mixK1(long k1) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			return k1 * C2;
+		}
+
+		private static long mixK2(long k2) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			return k2 * C1;
+		}
+
+		private static long fmix64(long k) {
+			k ^= k >>> 33;
+			k *= 0xff51afd7ed558ccdL;
+			k ^= k >>> 33;
+			k *= 0xc4ceb9fe1a85ec53L;
+			k ^= k >>> 33;
+			return k;
+		}
+
+		private static long getLong(byte[] b, int off) {
+			return (b[off] & 0xffL) | (b[off + 1] & 0xffL) << 8 | (b[off + 2] & 0xffL) << 16
+					| (b[off + 3] & 0xffL) << 24 | (b[off + 4] & 0xffL) << 32 | (b[off + 5] & 0xffL) << 40
+					| (b[off + 6] & 0xffL) << 48 | (b[off + 7] & 0xffL) << 56;
+		}
+
+		private static void putLong(byte[] b, int off, long v) {
+			for (int i = 0; i < 8; i++) {
+				b[off + i] = (byte) v;
+				v >>>= 8;
+			}
+		}
+	}
+}
@@ -3,6 +3,10 @@ package com.gigya.flume;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.commons.lang.StringUtils;
@@ -10,14 +14,17 @@ import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.conf.ComponentConfiguration;
+import org.apache.flume.event.EventBuilder;
 import org.apache.flume.sink.elasticsearch.AbstractElasticSearchIndexRequestBuilderFactory;
 import org.apache.flume.sink.elasticsearch.DocumentIdBuilder;
 import org.apache.flume.sink.elasticsearch.ElasticSearchEventSerializer;
 import org.apache.flume.sink.elasticsearch.ElasticSearchIndexRequestBuilderFactory;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.common.Base64;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.BytesStream;
+import org.joda.time.DateTimeUtils;
 
 /**
  * An extended serializer for flume events into the same format LogStash uses</p>
@@ -28,7 +35,8 @@ import org.elasticsearch.common.io.BytesStream;
  * @see https://github.com/gigya/flume-ng-elasticsearch-ser-ex
  * 
  * @note This builder will not work when using the REST client of the ES sink 
- * of Flume 1.5.X. The REST client does not use a builder.
+ * of Flume 1.5.X. The REST client does not use a builder, use 
+ * {@link ExtendedElasticSearchRestClient} to send its bulk requests instead.
  * 
  * 
  * @author Rotem Hermon
@@ -36,31 +44,123 @@ import org.elasticsearch.common.io.BytesStream;
  */
 public class ExtendedElasticSearchIndexRequestBuilderFactory extends AbstractElasticSearchIndexRequestBuilderFactory {
 
-	private ElasticSearchEventSerializer serializer = new ExtendedElasticSearchLogStashEventSerializer();
-	private DocumentIdBuilder docIdBuilder = (DocumentIdBuilder)serializer;
+	/**
+	 * Configuration property for the number of threads that serialize a batch
+	 * of events (see {@link #createBulkRequestBody} and {@link #createIndexRequests}),
+	 * including the calling thread. Default is 1, batches are serialized on the
+	 * calling thread.
+	 */
+	public static final String PARALLELISM = "parallelism";
+	/**
+	 * Configuration property for the smallest batch that is serialized in parallel.
+	 */
+	public static final String PARALLEL_THRESHOLD = "parallelThreshold";
+	static final int DEFAULT_PARALLEL_THRESHOLD = 1000;
+	/**
+	 * Configuration property for the date pattern of index names, in 
+	 * {@link FastDateFormat} syntax. Default is "yyyy.MM.dd", daily indices.
+	 * e.g. "yyyy.MM.dd.HH" for hourly indices or "yyyy.ww" for weekly ones.
+	 */
+	public static final String INDEX_DATE_PATTERN = "indexDatePattern";
+	/**
+	 * Configuration property for the time zone of index names. Default is UTC.
+	 */
+	public static final String INDEX_TIME_ZONE = "indexTimeZone";
+	/**
+	 * Configuration property for a header whose value, when an event has it, 
+	 * is the index prefix of the event instead of the sink's indexName. 
+	 */
+	public static final String INDEX_HEADER = "indexHeader";
+	/**
+	 * Configuration property for a header whose value, when an event has it, 
+	 * is the type of the event instead of the sink's indexType.
+	 */
+	public static final String TYPE_HEADER = "typeHeader";
+	/**
+	 * Configuration property for a comma separated list of headers whose 
+	 * values, joined by ':', are the _routing value of the event, so the 
+	 * events of e.g. a tenant go to one shard. Headers an event doesn't have 
+	 * are left out, and an event that has none of them isn't routed.
+	 */
+	public static final String ROUTING_HEADERS = "routingHeaders";
+
+	private ElasticSearchEventSerializer serializer;
+	private DocumentIdBuilder docIdBuilder;
+	private ExtendedElasticSearchLogStashEventSerializer extendedSerializer;
+	private BatchExecutor batchExecutor;
+	private IndexNameCache indexNames;
+	// null when not set
+	private String indexHeader;
+	private String typeHeader;
+	private String[] routingHeaders;
 
 	public ExtendedElasticSearchIndexRequestBuilderFactory() {
-		super(FastDateFormat.getInstance("yyyy.MM.dd", TimeZone.getTimeZone("Etc/UTC")));
+		this(new ExtendedElasticSearchLogStashEventSerializer());
 	}
 
 	public ExtendedElasticSearchIndexRequestBuilderFactory(FastDateFormat fd) {
-		super(fd);
+		this(new ExtendedElasticSearchLogStashEventSerializer(), fd);
 	}
 
 	public ExtendedElasticSearchIndexRequestBuilderFactory(ElasticSearchEventSerializer serializer) {
-		super(FastDateFormat.getInstance("yyyy.MM.dd", TimeZone.getTimeZone("Etc/UTC")));
-
-		this.serializer = serializer;
+		this(serializer, FastDateFormat.getInstance("yyyy.MM.dd", TimeZone.getTimeZone("Etc/UTC")));
 	}
 
 	public ExtendedElasticSearchIndexRequestBuilderFactory(ElasticSearchEventSerializer serializer, FastDateFormat fd) {
 		super(fd);
 		this.serializer = serializer;
+		if (serializer instanceof DocumentIdBuilder)
+			this.docIdBuilder = (DocumentIdBuilder) serializer;
+		if (serializer instanceof ExtendedElasticSearchLogStashEventSerializer)
+			this.extendedSerializer = (ExtendedElasticSearchLogStashEventSerializer) serializer;
+		this.indexNames = new IndexNameCache(fd);
 	}
 
 	@Override
 	public void configure(Context context) {
 		serializer.configure(context);
+		int parallelism = 1;
+		int threshold = DEFAULT_PARALLEL_THRESHOLD;
+		if (StringUtils.isNotBlank(context.getString(PARALLELISM))) {
+			try {
+				parallelism = Integer.parseInt(context.getString(PARALLELISM).trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(PARALLEL_THRESHOLD))) {
+			try {
+				threshold = Integer.parseInt(context.getString(PARALLEL_THRESHOLD).trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		if (null != batchExecutor)
+			batchExecutor.shutdown();
+		batchExecutor = parallelism > 1 ? new BatchExecutor(parallelism, threshold) : null;
+
+		String pattern = context.getString(INDEX_DATE_PATTERN);
+		String timeZone = context.getString(INDEX_TIME_ZONE);
+		if (StringUtils.isNotBlank(pattern) || StringUtils.isNotBlank(timeZone)) {
+			FastDateFormat dateFormat = indexNames.getDateFormat();
+			indexNames = new IndexNameCache(FastDateFormat.getInstance(
+					StringUtils.isNotBlank(pattern) ? pattern.trim() : dateFormat.getPattern(),
+					StringUtils.isNotBlank(timeZone) ? TimeZone.getTimeZone(timeZone.trim()) : dateFormat.getTimeZone()));
+		}
+
+		indexHeader = StringUtils.isNotBlank(context.getString(INDEX_HEADER)) ? context.getString(INDEX_HEADER)
+				.trim() : null;
+		typeHeader = StringUtils.isNotBlank(context.getString(TYPE_HEADER)) ? context.getString(TYPE_HEADER).trim()
+				: null;
+		routingHeaders = null;
+		if (StringUtils.isNotBlank(context.getString(ROUTING_HEADERS))) {
+			List<String> headers = new ArrayList<String>();
+			for (String header : context.getString(ROUTING_HEADERS).split(",")) {
+				header = header.trim();
+				if (!header.isEmpty())
+					headers.add(header);
+			}
+			if (!headers.isEmpty())
+				routingHeaders = headers.toArray(new String[headers.size()]);
+		}
 	}
 
 	@Override
@@ -68,14 +168,285 @@ public class ExtendedElasticSearchIndexRequestBuilderFactory extends AbstractEla
 		serializer.configure(config);
 	}
 
+	/**
+	 * Resolves the index name of an event. The name is cached for the time 
+	 * bucket of the date pattern (e.g. the day), so the date is only formatted
+	 * when the bucket changes.
+	 */
+	@Override
+	protected String getIndexName(String indexPrefix, long timestamp) {
+		return indexNames.getIndexName(indexPrefix, timestamp);
+	}
+
 	@Override
 	protected void prepareIndexRequest(IndexRequestBuilder indexRequest, String indexName, String indexType, Event event) throws IOException {
-		BytesStream contentBuilder = serializer.getContentBuilder(event);
+		String indexPrefix = getHeader(event, indexHeader);
+		if (null != indexPrefix)
+			indexName = getIndexName(indexPrefix, getTimestamp(event));
+		String type = getHeader(event, typeHeader);
+		if (null != type)
+			indexType = type;
+		String routing = getRouting(event);
+		if (null != routing)
+			indexRequest.setRouting(routing);
+		SerializerMetrics metrics = null != extendedSerializer ? extendedSerializer.getMetrics() : null;
+		if (null != metrics && metrics.sample()) {
+			long nanos = System.nanoTime();
+			prepareRequest(indexRequest, indexName, indexType, event, metrics);
+			metrics.record(SerializerMetrics.INDEX_REQUEST, System.nanoTime() - nanos);
+		} else {
+			prepareRequest(indexRequest, indexName, indexType, event, metrics);
+		}
+	}
+
+	private void prepareRequest(IndexRequestBuilder indexRequest, String indexName, String indexType, Event event,
+			SerializerMetrics metrics) throws IOException {
+		String hashId = null;
+		BytesStream contentBuilder;
+		if (null != extendedSerializer) {
+			// an ID based on the event's identity is known before serializing
+			hashId = extendedSerializer.getDocumentId(event);
+			contentBuilder = extendedSerializer.getXContentBuilder(event, hashId);
+		} else {
+			contentBuilder = serializer.getContentBuilder(event);
+		}
 		BytesReference contentBytes = contentBuilder.bytes();
+		if (null != metrics)
+			metrics.countBytes(contentBytes.length());
 		indexRequest.setIndex(indexName).setType(indexType).setSource(contentBytes);
-		String hashId = docIdBuilder.getDocumentId(contentBytes);
+		if (null == hashId && null != docIdBuilder)
+			hashId = docIdBuilder.getDocumentId(contentBytes);
 		if (null != hashId && !hashId.isEmpty())
 			indexRequest.setId(hashId.toString());
 	}
 
+	/**
+	 * Serializes a batch of events into the body of a bulk request. Each event
+	 * is indexed into the same index, type and ID as with 
+	 * {@link #createIndexRequest}, but its action line and document are written
+	 * straight into one buffer, ready to be sent to the <code>_bulk</code> 
+	 * endpoint.
+	 * 
+	 * @param ttl the documents' TTL in milliseconds, or 0 for none
+	 */
+	public BulkRequestBody createBulkRequestBody(List<Event> events, String indexPrefix, String indexType, long ttl)
+			throws IOException {
+		return createBulkRequestBody(events, indexPrefix, indexType, ttl, null);
+	}
+
+	/**
+	 * Same as {@link #createBulkRequestBody(List, String, String, long)}, 
+	 * adding the document ID of each item, or null when it has none, to 
+	 * documentIds.
+	 */
+	public BulkRequestBody createBulkRequestBody(List<Event> events, final String indexPrefix, final String indexType,
+			final long ttl, List<String> documentIds) throws IOException {
+		if (null == batchExecutor || !batchExecutor.isParallel(events.size()))
+			return writeBulkRequestBody(events, indexPrefix, indexType, ttl, documentIds);
+
+		// each chunk is written into its own body, then they are joined in order
+		final boolean withIds = null != documentIds;
+		List<BulkChunk> chunks = batchExecutor.run(events, new BatchExecutor.ChunkTask<BulkChunk>() {
+			@Override
+			public BulkChunk run(List<Event> chunk) throws IOException {
+				List<String> chunkIds = withIds ? new ArrayList<String>(chunk.size()) : null;
+				return new BulkChunk(writeBulkRequestBody(chunk, indexPrefix, indexType, ttl, chunkIds), chunkIds);
+			}
+		});
+		int size = 0;
+		for (BulkChunk chunk : chunks)
+			size += chunk.body.size();
+		BulkRequestBody body = new BulkRequestBody(size);
+		for (BulkChunk chunk : chunks) {
+			body.append(chunk.body);
+			if (withIds)
+				documentIds.addAll(chunk.documentIds);
+		}
+		return body;
+	}
+
+	private BulkRequestBody writeBulkRequestBody(List<Event> events, String indexPrefix, String indexType, long ttl,
+			List<String> documentIds) throws IOException {
+		BulkRequestBody body = new BulkRequestBody();
+		for (Event event : events) {
+			String documentId = appendBulkItem(body, event, indexPrefix, indexType, ttl);
+			if (null != documentIds)
+				documentIds.add(documentId);
+			if (body.itemCount() == 1)
+				body.expectItems(events.size());
+		}
+		return body;
+	}
+
+	/**
+	 * The body and document IDs of a chunk of a batch.
+	 */
+	private static final class BulkChunk {
+		final BulkRequestBody body;
+		final List<String> documentIds;
+
+		BulkChunk(BulkRequestBody body, List<String> documentIds) {
+			this.body = body;
+			this.documentIds = documentIds;
+		}
+	}
+
+	/**
+	 * @return whether batches are serialized in parallel, see parallelism
+	 */
+	boolean isParallel() {
+		return null != batchExecutor;
+	}
+
+	/**
+	 * Creates the index requests for a batch of events, the same as calling 
+	 * {@link #createIndexRequest} for each event. Large batches are serialized 
+	 * in parallel when parallelism is configured.
+	 * @return the requests, in the order of the events
+	 */
+	public List<IndexRequestBuilder> createIndexRequests(final Client client, List<Event> events,
+			final String indexPrefix, final String indexType) throws IOException {
+		if (null == batchExecutor || !batchExecutor.isParallel(events.size()))
+			return createIndexRequestList(client, events, indexPrefix, indexType);
+
+		List<List<IndexRequestBuilder>> chunks = batchExecutor.run(events,
+				new BatchExecutor.ChunkTask<List<IndexRequestBuilder>>() {
+					@Override
+					public List<IndexRequestBuilder> run(List<Event> chunk) throws IOException {
+						return createIndexRequestList(client, chunk, indexPrefix, indexType);
+					}
+				});
+		List<IndexRequestBuilder> requests = new ArrayList<IndexRequestBuilder>(events.size());
+		for (List<IndexRequestBuilder> chunk : chunks)
+			requests.addAll(chunk);
+		return requests;
+	}
+
+	private List<IndexRequestBuilder> createIndexRequestList(Client client, List<Event> events, String indexPrefix,
+			String indexType) throws IOException {
+		List<IndexRequestBuilder> requests = new ArrayList<IndexRequestBuilder>(events.size());
+		for (Event event : events)
+			requests.add(createIndexRequest(client, indexPrefix, indexType, event));
+		return requests;
+	}
+
+	/**
+	 * @return the ID of the event's document when it's known before
+	 * serializing (see idFields), or null otherwise
+	 */
+	public String getDocumentId(Event event) {
+		return null != extendedSerializer ? extendedSerializer.getDocumentId(event) : null;
+	}
+
+	/**
+	 * Adds an event to the body of a bulk request. The start of the action 
+	 * line is rendered once for each index and type (see {@link IndexNameCache}).
+	 * @return the event's document ID, or null if none is set
+	 */
+	public String appendBulkItem(BulkRequestBody body, Event event, String indexPrefix, String indexType, long ttl)
+			throws IOException {
+		event = timestamped(event);
+		String prefix = getHeader(event, indexHeader);
+		if (null != prefix)
+			indexPrefix = prefix;
+		String type = getHeader(event, typeHeader);
+		if (null != type)
+			indexType = type;
+		String routing = getRouting(event);
+		byte[] indexAction = indexNames.getIndexAction(indexPrefix, Long.parseLong(event.getHeaders().get("timestamp")),
+				indexType);
+		if (null != extendedSerializer) {
+			SerializerMetrics metrics = extendedSerializer.getMetrics();
+			if (null != metrics && metrics.sample()) {
+				long nanos = System.nanoTime();
+				String documentId = extendedSerializer.appendBulkItem(body, event, indexAction, routing, ttl);
+				metrics.record(SerializerMetrics.INDEX_REQUEST, System.nanoTime() - nanos);
+				return documentId;
+			}
+			return extendedSerializer.appendBulkItem(body, event, indexAction, routing, ttl);
+		}
+
+		BytesReference contentBytes = serializer.getContentBuilder(event).bytes();
+		String hashId = null;
+		if (null != docIdBuilder)
+			hashId = docIdBuilder.getDocumentId(contentBytes);
+		if (null != hashId && hashId.isEmpty())
+			hashId = null;
+		body.startItem(indexAction, routing, ttl, hashId, null);
+		contentBytes.writeTo(body);
+		body.endItem();
+		return hashId;
+	}
+
+	/**
+	 * @return the header's value, or null if the header isn't set or the 
+	 * event doesn't have it
+	 */
+	private static String getHeader(Event event, String header) {
+		if (null == header)
+			return null;
+		String value = event.getHeaders().get(header);
+		return StringUtils.isNotBlank(value) ? value : null;
+	}
+
+	/**
+	 * @return the values of the routing headers joined by ':', or null if the
+	 * event has none of them
+	 */
+	private String getRouting(Event event) {
+		if (null == routingHeaders)
+			return null;
+		if (routingHeaders.length == 1)
+			return getHeader(event, routingHeaders[0]);
+		StringBuilder routing = null;
+		for (String header : routingHeaders) {
+			String value = getHeader(event, header);
+			if (null == value)
+				continue;
+			if (null == routing)
+				routing = new StringBuilder(value);
+			else
+				routing.append(':').append(value);
+		}
+		return null != routing ? routing.toString() : null;
+	}
+
+	/**
+	 * @return the event's timestamp, the same one {@link #createIndexRequest}
+	 * resolves the index name with
+	 */
+	private static long getTimestamp(Event event) {
+		Map<String, String> headers = event.getHeaders();
+		String timestamp = headers.get("timestamp");
+		if (StringUtils.isBlank(timestamp))
+			timestamp = headers.get("@timestamp");
+		if (StringUtils.isBlank(timestamp))
+			return DateTimeUtils.currentTimeMillis();
+		return Long.parseLong(timestamp);
+	}
+
+	/**
+	 * Makes sure the event has a timestamp header, the same way 
+	 * {@link #createIndexRequest} does. The event is only copied when it has 
+	 * no timestamp.
+	 */
+	private static Event timestamped(Event event) {
+		Map<String, String> headers = event.getHeaders();
+		String timestamp = headers.get("timestamp");
+		if (StringUtils.isBlank(timestamp))
+			timestamp = headers.get("@timestamp");
+		if (StringUtils.isBlank(timestamp)) {
+			Map<String, String> copy = new HashMap<String, String>(headers);
+			copy.put("timestamp", String.valueOf(DateTimeUtils.currentTimeMillis()));
+			return EventBuilder.withBody(event.getBody(), copy);
+		}
+		if (!timestamp.equals(headers.get("timestamp"))) {
+			// the timestamp is taken from @timestamp
+			Map<String, String> copy = new HashMap<String, String>(headers);
+			copy.put("timestamp", timestamp);
+			return EventBuilder.withBody(event.getBody(), copy);
+		}
+		return event;
+	}
+
 }
@@ -19,16 +19,18 @@
 package com.gigya.flume;
 
 import static org.apache.flume.sink.elasticsearch.ElasticSearchSinkConstants.SERIALIZER;
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.flume.Context;
@@ -37,11 +39,21 @@ import org.apache.flume.conf.ComponentConfiguration;
 import org.apache.flume.sink.elasticsearch.DocumentIdBuilder;
 import org.apache.flume.sink.elasticsearch.ElasticSearchEventSerializer;
 import org.apache.lucene.analysis.compound.DictionaryCompoundWordTokenFilter;
-import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.io.BytesStream;
+import org.elasticsearch.common.xcontent.XContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentString;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.cbor.CborXContent;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.common.xcontent.smile.SmileXContent;
 
 /**
  * An extended serializer for flume events into the same format LogStash uses</p>
@@ -110,162 +122,915 @@ public class ExtendedElasticSearchLogStashEventSerializer implements ElasticSear
 	 * Set to -1 for unlimited levels.  
 	 */
 	public static final String COLLATE_DEPTH = "collateDepth";
+	/**
+	 * Configuration property, set to true to write collated objects in a  
+	 * single pass over the headers sorted by their paths, instead of building
+	 * them as maps first. The fields of the collated objects are then written 
+	 * sorted, so generated document IDs differ from the ones generated without
+	 * it. A header whose value is not an object always wins over the headers 
+	 * below its path, which are written under their full key. 
+	 */
+	public static final String STREAM_COLLATED_FIELDS = "streamCollatedFields";
 	/**
 	 * Configuration property, set to true to generate an _id for the indexed event, 
-	 * not letting ES to auto generate an _id. The _id is an MD5 of the serialized event. 
+	 * not letting ES to auto generate an _id. The _id is a hash (MD5 by default) of the 
+	 * serialized event, whose headers are written in the order of a HashMap 
+	 * copy of them to keep the IDs stable. 
 	 */
 	public static final String GENERATE_ID = "generateId";
+	/**
+	 * Configuration property, set to true to stream the JSON in objectFields 
+	 * straight into the serialized event instead of parsing it into a map and
+	 * serializing the map. Malformed JSON is still written as a string. 
+	 */
+	public static final String STREAM_OBJECT_FIELDS = "streamObjectFields";
+	/**
+	 * Configuration property, set to true to stop parsing the values of an 
+	 * objectFields header when they mostly (90%) fail to parse, writing them 
+	 * as they would be written after failing. Values are still parsed once in 
+	 * a while, and parsing resumes when they parse again. Off by default, as a
+	 * valid object among the skipped values is written as a string. 
+	 */
+	public static final String ADAPTIVE_OBJECT_FIELDS = "adaptiveObjectFields";
+	/**
+	 * Configuration property, set to true to write the fields of a body that 
+	 * holds an object into the document itself, after the headers, instead of
+	 * writing the body as @message. The body is streamed into the document 
+	 * without parsing it into a map. Fields already written from the headers 
+	 * win, the body's fields of the same name are skipped. A body that isn't 
+	 * a valid object is still written as @message.
+	 */
+	public static final String BODY_AS_DOCUMENT = "bodyAsDocument";
+	/**
+	 * Configuration property for the field to write the body's object under 
+	 * with bodyAsDocument, instead of merging its fields into the document.
+	 */
+	public static final String BODY_FIELD = "bodyField";
+	/**
+	 * Configuration property, set to true to remember whether each field was 
+	 * first written as a string or as an object, and write a value of the other
+	 * type as &lt;field&gt;_str or &lt;field&gt;_obj, instead of having the bulk
+	 * request rejected for a mapping conflict (see {@link FieldTypeTracker}).
+	 * Applies to the header fields at the top level of the document.
+	 */
+	public static final String TRACK_FIELD_TYPES = "trackFieldTypes";
+	/**
+	 * Configuration property for the file the tracked field types are kept in,
+	 * so they survive restarts. By default they are only kept in memory.
+	 */
+	public static final String FIELD_TYPES_FILE = "fieldTypesFile";
+	/**
+	 * Configuration property for the most fields whose types are tracked, 
+	 * fields beyond it are written as they are. Default is 10000.
+	 */
+	public static final String MAX_TRACKED_FIELDS = "maxTrackedFields";
+	static final int DEFAULT_MAX_TRACKED_FIELDS = 10000;
+	/**
+	 * Configuration property to select the hash used for generated _ids:
+	 * md5 (default, the hash _ids were always generated with) or murmur3_128, 
+	 * which is considerably cheaper to compute.  
+	 */
+	public static final String ID_HASH_ALGORITHM = "idHashAlgorithm";
+	/**
+	 * Configuration property listing the headers that identify an event. When set, 
+	 * the _id is a hash of these headers' values, computed from the event before 
+	 * it's serialized, instead of a hash of the whole serialized event. So events
+	 * with the same identity get the same _id even if other headers are added or 
+	 * changed. Events that lack any of these headers fall back to generateId. 
+	 */
+	public static final String ID_FIELDS = "idFields";
+	/**
+	 * Configuration property, set to true to include the event body in the
+	 * identity hash of idFields.
+	 */
+	public static final String ID_INCLUDE_BODY = "idIncludeBody";
+	/**
+	 * Configuration property for the number of header keys whose field plans 
+	 * are cached (see {@link FieldPlan}). Keys beyond it are worked out again 
+	 * for every event. Set to 0 to disable the cache. 
+	 */
+	public static final String FIELD_PLAN_CACHE_SIZE = "fieldPlanCacheSize";
+	/**
+	 * Configuration property for the comma separated headers written to the 
+	 * document, as keys or patterns with '*' wildcards (e.g. <code>http.*</code>).
+	 * Other headers are dropped before they are written. The logstash headers 
+	 * written as @ fields aren't filtered. 
+	 */
+	public static final String INCLUDE_HEADERS = "includeHeaders";
+	/**
+	 * Configuration property for the comma separated headers that are not 
+	 * written to the document, as keys or patterns with '*' wildcards. 
+	 */
+	public static final String EXCLUDE_HEADERS = "excludeHeaders";
+	static final int DEFAULT_FIELD_PLAN_CACHE_SIZE = 1024;
+	/**
+	 * Configuration property, set to true to serialize events into a buffer that 
+	 * is kept per thread and reused for the next event, instead of a new buffer 
+	 * that grows for every event. The serialized bytes are copied out at their 
+	 * exact size. The bytes of an event have to be taken before the next event
+	 * is serialized on the same thread, as the sink and the index request
+	 * builder factory do. 
+	 */
+	public static final String REUSE_BUFFERS = "reuseBuffers";
+	/**
+	 * Configuration property for the largest buffer, in bytes, kept for reuse. 
+	 * A buffer that grew larger for a big event is dropped after it.
+	 */
+	public static final String MAX_REUSED_BUFFER_SIZE = "maxReusedBufferSize";
+	static final int DEFAULT_MAX_REUSED_BUFFER_SIZE = 256 * 1024;
+	/**
+	 * Configuration property for the most UTF-8 bytes written for a string 
+	 * value, longer strings are truncated without splitting a character. 
+	 * Elasticsearch rejects not analyzed values above 32766 bytes, which fails
+	 * the whole bulk request. Set to 0 for no limit. The limit of a single 
+	 * field of the document is set with <code>maxFieldBytes.&lt;field&gt;</code>,  
+	 * e.g. <code>maxFieldBytes.@message</code>, where a collated header is 
+	 * limited by its top level field. @message is normally analyzed, so it's 
+	 * only limited by a limit of its own.
+	 */
+	public static final String MAX_FIELD_BYTES = "maxFieldBytes";
+	static final int DEFAULT_MAX_FIELD_BYTES = 32766;
+	/**
+	 * Configuration property for the format @timestamp is written in: "iso" 
+	 * (the default, e.g. "2014-11-03T07:34:35.610Z") or "epoch_millis" (the
+	 * milliseconds since the epoch, as a number), see {@link TimestampWriter}.
+	 */
+	public static final String TIMESTAMP_FORMAT = "timestampFormat";
+	/**
+	 * Configuration property for the encoding of serialized events: "json" 
+	 * (the default), "smile" or "cbor". The binary encodings are smaller and 
+	 * cheaper to write and parse, but are only accepted by the transport 
+	 * client, not by the REST client's <code>_bulk</code> requests. Bulk request 
+	 * bodies (see {@link #appendBulkItem}) are always JSON. Generated document 
+	 * IDs are hashes of the JSON form, so they don't change with the encoding.
+	 */
+	public static final String CONTENT_TYPE = "contentType";
+	/**
+	 * Configuration property, set to true to count and time the stages of
+	 * serializing events, published over JMX (see {@link SerializerMetrics}). 
+	 * Off by default, which costs nothing.
+	 */
+	public static final String METRICS = "metrics";
+	/**
+	 * Configuration property for the name the metrics are published under,
+	 * "org.apache.flume.sink:type=&lt;metricsName&gt;,component=serializer".
+	 * Set it per sink when several sinks use the serializer. 
+	 */
+	public static final String METRICS_NAME = "metricsName";
+	static final String DEFAULT_METRICS_NAME = "ElasticSearchSerializer";
+	/**
+	 * Configuration property for how many events are serialized for each one
+	 * that is timed. Default is 100.
+	 */
+	public static final String METRICS_SAMPLE_RATE = "metricsSampleRate";
+	static final int DEFAULT_METRICS_SAMPLE_RATE = 100;
+	/**
+	 * Configuration property for the number of values of the source, type,  
+	 * host and src_path headers whose UTF-8 bytes are kept for reuse (see 
+	 * {@link SymbolTable}). Default is 1024, set to 0 to encode them for every
+	 * event.
+	 */
+	public static final String SYMBOL_TABLE_SIZE = "symbolTableSize";
+	static final int DEFAULT_SYMBOL_TABLE_SIZE = 1024;
+
+	// the fixed field names, encoded once
+	private static final XContentString MESSAGE_FIELD = new XContentString("@message");
+	private static final XContentString SOURCE_FIELD = new XContentString("@source");
+	private static final XContentString TYPE_FIELD = new XContentString("@type");
+	private static final XContentString SOURCE_HOST_FIELD = new XContentString("@source_host");
+	private static final XContentString SOURCE_PATH_FIELD = new XContentString("@source_path");
+	private static final XContentString FIELDS_FIELD = new XContentString("@fields");
+
 	private boolean generateId = false;
+	private String idHashAlgorithm = DocumentHasher.MD5;
+	private ThreadLocal<DocumentHasher> hashers = newHashers(DocumentHasher.MD5);
+	private String[] idFields = null;
+	private boolean idIncludeBody = false;
+	private boolean streamObjectFields = false;
+	private boolean adaptiveObjectFields = false;
+	private boolean streamCollatedFields = false;
+	private boolean bodyAsDocument = false;
+	// null when the body's fields are merged into the document
+	private String bodyField = null;
+	private final ThreadLocal<Set<String>> collatedNames = new ThreadLocal<Set<String>>() {
+		@Override
+		protected Set<String> initialValue() {
+			return new HashSet<String>();
+		}
+	};
+	private final ThreadLocal<int[]> bodyFieldOffsets = new ThreadLocal<int[]>();
+	private final ThreadLocal<CollatedHeaders> collatedHeaders = new ThreadLocal<CollatedHeaders>() {
+		@Override
+		protected CollatedHeaders initialValue() {
+			return new CollatedHeaders();
+		}
+	};
+	// null when field types aren't tracked
+	private FieldTypeTracker fieldTypes = null;
+	// null when values are encoded for every event
+	private SymbolTable symbols = new SymbolTable(DEFAULT_SYMBOL_TABLE_SIZE);
+
+	// flags for the logstash headers that were written as @ fields
+	private static final int MESSAGE_HEADER = 1;
+	private static final int TIMESTAMP_HEADER = 1 << 1;
+	private static final int SOURCE_HEADER = 1 << 2;
+	private static final int TYPE_HEADER = 1 << 3;
+	private static final int HOST_HEADER = 1 << 4;
+	private static final int SRC_PATH_HEADER = 1 << 5;
 
 	private Map<String, Boolean> objectFields = null;
 	private boolean removeFieldsPrefix = false;
 	private boolean collateObjects = false;
 	private int collateDepth = 1;
+	private int fieldPlanCacheSize = DEFAULT_FIELD_PLAN_CACHE_SIZE;
+	// null when all headers are written
+	private HeaderFilter headerFilter = null;
+	private final ConcurrentMap<String, FieldPlan> fieldPlans = new ConcurrentHashMap<String, FieldPlan>();
+	// the cached plans are ranked by path when collated fields are streamed, 
+	// again whenever plans were added 
+	private volatile boolean plansAdded = false;
+	private volatile int rankEpoch = 0;
+	private ThreadLocal<DocumentBytesStreamOutput> outputs = null;
+	private int maxFieldBytes = DEFAULT_MAX_FIELD_BYTES;
+	private Map<String, Integer> fieldMaxBytes = null;
+	private TimestampWriter timestampWriter = TimestampWriter.create(TimestampWriter.ISO);
+	private XContent xContent = JsonXContent.jsonXContent;
+	// null when metrics are off
+	private SerializerMetrics metrics = null;
 	
 	public XContentBuilder getXContentBuilder(Event event) throws IOException {
-		XContentBuilder builder = jsonBuilder().startObject();
+		return getXContentBuilder(event, getDocumentId(event));
+	}
+
+	/**
+	 * Serializes an event whose document ID was already computed from the event
+	 * (see {@link #getDocumentId(Event)}). The ID is returned by 
+	 * {@link #getDocumentId(BytesReference)} for the serialized bytes.
+	 * 
+	 * @param documentId the event's document ID, or null to have the 
+	 * serialized event hashed if generateId is set
+	 */
+	public XContentBuilder getXContentBuilder(Event event, String documentId) throws IOException {
+		if (generateId && null == documentId && xContent != JsonXContent.jsonXContent) {
+			// the ID is a hash of the JSON form, whatever the encoding
+			documentId = getJsonDocumentId(event);
+		}
+		// when generating IDs the document is hashed while it's being written
+		DocumentHasher hasher = (generateId && null == documentId) ? hashers.get() : null;
+		DocumentBytesStreamOutput out;
+		if (null != outputs) {
+			out = outputs.get();
+			out.reset(hasher, documentId);
+		} else if (null != documentId) {
+			out = new DocumentBytesStreamOutput(documentId);
+		} else {
+			out = new DocumentBytesStreamOutput(hasher);
+		}
+		XContentBuilder builder = new XContentBuilder(xContent, out).startObject();
 		appendHeaders(builder, event);
 		return builder;
 	}
 
+	/**
+	 * Hashes the JSON form of the event, without keeping it.
+	 */
+	private String getJsonDocumentId(Event event) throws IOException {
+		DocumentHasher hasher = hashers.get();
+		XContentBuilder builder = new XContentBuilder(JsonXContent.jsonXContent, hasher.hashingStream()).startObject();
+		appendHeaders(builder, event);
+		builder.endObject();
+		builder.close();
+		return DocumentHasher.toDocumentId(hasher.digest());
+	}
+
 	@Override
 	public BytesStream getContentBuilder(Event event) throws IOException {
 		return getXContentBuilder(event);
 	}
 
+	/**
+	 * Serializes events into the body of a bulk request, all to the same index.
+	 */
+	public BulkRequestBody getBulkRequestBody(List<Event> events, String indexName, String indexType)
+			throws IOException {
+		BulkRequestBody body = new BulkRequestBody();
+		for (Event event : events) {
+			appendBulkItem(body, event, indexName, indexType, 0);
+			if (body.itemCount() == 1)
+				body.expectItems(events.size());
+		}
+		return body;
+	}
+
+	/**
+	 * Serializes an event, along with its action line, straight into the body
+	 * of a bulk request. The document ID is the same one 
+	 * {@link #getDocumentId(BytesReference)} returns for the event.
+	 * 
+	 * @param ttl the document's TTL in milliseconds, or 0 for none
+	 * @return the document ID, or null if no ID is set for the event
+	 */
+	public String appendBulkItem(BulkRequestBody body, Event event, String indexName, String indexType, long ttl)
+			throws IOException {
+		return appendBulkItem(body, event, indexName, indexType, null, null, ttl);
+	}
+
+	/**
+	 * Same as {@link #appendBulkItem(BulkRequestBody, Event, String, String, long)},
+	 * for an index and type whose part of the action line was rendered before.
+	 * 
+	 * @param indexAction the start of the action line, see {@link BulkRequestBody#indexAction}
+	 * @param routing the document's routing value, or null for none
+	 */
+	public String appendBulkItem(BulkRequestBody body, Event event, byte[] indexAction, String routing, long ttl)
+			throws IOException {
+		return appendBulkItem(body, event, null, null, indexAction, routing, ttl);
+	}
+
+	private String appendBulkItem(BulkRequestBody body, Event event, String indexName, String indexType,
+			byte[] indexAction, String routing, long ttl) throws IOException {
+		String documentId = getDocumentId(event);
+		DocumentHasher hasher = (generateId && null == documentId) ? hashers.get() : null;
+		int start = body.size();
+		if (null != indexAction)
+			body.startItem(indexAction, routing, ttl, documentId, hasher);
+		else
+			body.startItem(indexName, indexType, ttl, documentId, hasher);
+		XContentBuilder builder = new XContentBuilder(JsonXContent.jsonXContent, body).startObject();
+		appendHeaders(builder, event);
+		builder.endObject();
+		// flushes the document into the body
+		builder.close();
+		String generatedId = body.endItem();
+		if (null != metrics)
+			metrics.countBytes(body.size() - start);
+		return null != generatedId ? generatedId : documentId;
+	}
+
+	/**
+	 * @return the metrics, or null if they are off
+	 */
+	SerializerMetrics getMetrics() {
+		return metrics;
+	}
+
 	private void appendBody(XContentBuilder builder, Event event) throws IOException, UnsupportedEncodingException {
 		byte[] body = event.getBody();
-		ContentBuilderUtilEx.appendField(builder, "@message", body, isObjectField("body"));
+		if (isObjectField("body"))
+			ContentBuilderUtilEx.appendField(builder, "@message", body, true, streamObjectFields,
+					getMaxFieldBytes("@message"));
+		else
+			ContentBuilderUtilEx.addSimpleField(builder, MESSAGE_FIELD, body, getMaxFieldBytes("@message"));
+	}
+
+	private void appendSymbolField(XContentBuilder builder, XContentString field, String value, int maxBytes)
+			throws IOException {
+		if (null != symbols)
+			ContentBuilderUtilEx.addSymbolField(builder, field, value, maxBytes, symbols);
+		else
+			ContentBuilderUtilEx.addSimpleField(builder, field, value, maxBytes);
 	}
 
 	private void appendHeaders(XContentBuilder builder, Event event) throws IOException {
-		Map<String, String> headers = Maps.newHashMap(event.getHeaders());
+		SerializerMetrics metrics = this.metrics;
+		if (null == metrics) {
+			appendHeaders(builder, event, null);
+			return;
+		}
+		// the helpers count truncated values and parse failures into the bound metrics
+		metrics.bind();
+		try {
+			appendHeaders(builder, event, metrics);
+		} finally {
+			SerializerMetrics.unbind();
+		}
+	}
+
+	private void appendHeaders(XContentBuilder builder, Event event, SerializerMetrics metrics) throws IOException {
+		// the headers are read in place. the logstash headers that are written
+		// as the @ fields are marked as consumed, and skipped when writing the rest
+		boolean timed = null != metrics && metrics.sample();
+		long startNanos = timed ? System.nanoTime() : 0;
+		long objectNanos = 0;
+		long collateNanos = 0;
+		Map<String, String> headers = event.getHeaders();
+		int consumed = 0;
 		Map<String, Object> collatedFields = null;
-		if (collateObjects)
+		CollatedHeaders sortedHeaders = null;
+		if (collateObjects && streamCollatedFields) {
+			sortedHeaders = collatedHeaders.get();
+			sortedHeaders.clear();
+		} else if (collateObjects) {
 			collatedFields = Maps.newHashMap();
+		}
+		// a body that holds an object is written after the headers
+		XContentType bodyType = bodyAsDocument ? ContentBuilderUtilEx.objectContentType(event.getBody()) : null;
+		// the top level names of the collated headers, for the body's fields to skip
+		Set<String> topLevelNames = null;
+		if (null != bodyType && collateObjects && removeFieldsPrefix) {
+			topLevelNames = collatedNames.get();
+			topLevelNames.clear();
+		}
 
 		// look for a "message" header and append as body if exists
-		String message = ensureFieldSize(headers.get("message"));
+		String message = headers.get("message");
 		if (!StringUtils.isBlank(message) && StringUtils.isBlank(headers.get("@message"))) {
-			ContentBuilderUtilEx.appendField(builder, "@message", message.getBytes(charset), isObjectField("message"));
-			headers.remove("message");
-		} else {
+			if (isObjectField("message"))
+				ContentBuilderUtilEx.appendField(builder, "@message", message, true, streamObjectFields,
+						getMaxFieldBytes("@message"));
+			else
+				ContentBuilderUtilEx.addSimpleField(builder, MESSAGE_FIELD, message, getMaxFieldBytes("@message"));
+			consumed |= MESSAGE_HEADER;
+		} else if (null == bodyType) {
 			// if not, append the body as the message
 			appendBody(builder, event);
 		}
 
-		String timestamp = ensureFieldSize(headers.get("timestamp"));
+		String timestamp = headers.get("timestamp");
 		if (!StringUtils.isBlank(timestamp) && StringUtils.isBlank(headers.get("@timestamp"))) {
 			long timestampMs = Long.parseLong(timestamp);
-			builder.field("@timestamp", new Date(timestampMs));
-			headers.remove("timestamp");
+			timestampWriter.writeTimestamp(builder, timestampMs);
+			consumed |= TIMESTAMP_HEADER;
 		}
 
-		String source = ensureFieldSize(headers.get("source"));
+		String source = headers.get("source");
 		if (!StringUtils.isBlank(source) && StringUtils.isBlank(headers.get("@source"))) {
-			ContentBuilderUtilEx.appendField(builder, "@source", source.getBytes(charset));
-			headers.remove("source");
+			appendSymbolField(builder, SOURCE_FIELD, source, getMaxFieldBytes("@source"));
+			consumed |= SOURCE_HEADER;
 		}
 
-		String type = ensureFieldSize(headers.get("type"));
+		String type = headers.get("type");
 		if (!StringUtils.isBlank(type) && StringUtils.isBlank(headers.get("@type"))) {
-			ContentBuilderUtilEx.appendField(builder, "@type", type.getBytes(charset));
-			headers.remove("type");
+			appendSymbolField(builder, TYPE_FIELD, type, getMaxFieldBytes("@type"));
+			consumed |= TYPE_HEADER;
 		}
 
-		String host = ensureFieldSize(headers.get("host"));
+		String host = headers.get("host");
 		if (!StringUtils.isBlank(host) && StringUtils.isBlank(headers.get("@source_host"))) {
-			ContentBuilderUtilEx.appendField(builder, "@source_host", host.getBytes(charset));
-			headers.remove("host");
+			appendSymbolField(builder, SOURCE_HOST_FIELD, host, getMaxFieldBytes("@source_host"));
+			consumed |= HOST_HEADER;
 		}
 
-		String srcPath = ensureFieldSize(headers.get("src_path"));
+		String srcPath = headers.get("src_path");
 		if (!StringUtils.isBlank(srcPath) && StringUtils.isBlank(headers.get("@source_path"))) {
-			ContentBuilderUtilEx.appendField(builder, "@source_path", srcPath.getBytes(charset));
-			headers.remove("src_path");
+			appendSymbolField(builder, SOURCE_PATH_FIELD, srcPath, getMaxFieldBytes("@source_path"));
+			consumed |= SRC_PATH_HEADER;
 		}
 
-		if (!removeFieldsPrefix)
-			builder.startObject("@fields");
-		for (String key : headers.keySet()) {
+		if (!removeFieldsPrefix) {
+			builder.generator().writeFieldName(FIELDS_FIELD);
+			builder.startObject();
+		}
+		// a generated ID hashes the document, so its headers are written in the
+		// order of a HashMap copy of them, as they always were, to keep the IDs.
+		// otherwise they're written in the order of the event's own headers
+		Map<String, String> orderedHeaders = generateId ? Maps.newHashMap(headers) : headers;
+		for (Map.Entry<String, String> header : orderedHeaders.entrySet()) {
+			String key = header.getKey();
+			if (consumed != 0 && isConsumed(key, consumed))
+				continue;
+			if (null != headerFilter && !headerFilter.accept(key)) {
+				if (null != metrics)
+					metrics.countHeaderDropped();
+				continue;
+			}
+			FieldPlan plan = getFieldPlan(key);
 			if (collateObjects) {
-				collectField(key, headers.get(key), collatedFields, 1);
+				long nanos = timed ? System.nanoTime() : 0;
+				if (null != topLevelNames) {
+					// a header that collides with a value is written under its full key
+					topLevelNames.add(plan.segments[0]);
+					topLevelNames.add(key);
+				}
+				if (null != sortedHeaders)
+					sortedHeaders.add(plan, header.getValue());
+				else
+					collectField(plan, header.getValue(), collatedFields, metrics);
+				if (timed)
+					collateNanos += System.nanoTime() - nanos;
 			} else {
-				byte[] val = ensureFieldSize(headers.get(key)).getBytes(charset);
-				ContentBuilderUtilEx.appendField(builder, key, val, isObjectField(key));
+				String val = header.getValue();
+				if (null != fieldTypes) {
+					long nanos = timed ? System.nanoTime() : 0;
+					appendTrackedField(builder, plan, val, metrics);
+					if (timed && plan.objectField)
+						objectNanos += System.nanoTime() - nanos;
+				} else if (plan.objectField && adaptiveObjectFields && !plan.tryObject()) {
+					// written as a value that failed to parse
+					ContentBuilderUtilEx.addSimpleField(builder, plan.name, val, plan.maxBytes);
+					if (null != metrics)
+						metrics.countObjectFieldSkipped();
+				} else if (plan.objectField) {
+					long nanos = timed ? System.nanoTime() : 0;
+					boolean parsed = ContentBuilderUtilEx.appendField(builder, key, val, true, streamObjectFields,
+							plan.maxBytes);
+					if (adaptiveObjectFields)
+						plan.objectParsed(parsed);
+					if (timed)
+						objectNanos += System.nanoTime() - nanos;
+				} else {
+					ContentBuilderUtilEx.addSimpleField(builder, plan.name, val, plan.maxBytes);
+				}
 			}
 		}
-		if (collateObjects) {
-			for (String fieldName : collatedFields.keySet()) {
-				ContentBuilderUtilEx.appendField(builder, fieldName, collatedFields.get(fieldName));
+		if (null != sortedHeaders) {
+			long nanos = timed ? System.nanoTime() : 0;
+			if (plansAdded)
+				rankPlans();
+			sortedHeaders.sort(rankEpoch);
+			writeCollated(builder, sortedHeaders, 0, sortedHeaders.size(), 0, ContentBuilderUtilEx.UNLIMITED,
+					metrics);
+			sortedHeaders.clear();
+			if (timed)
+				collateNanos += System.nanoTime() - nanos;
+		} else if (collateObjects) {
+			long nanos = timed ? System.nanoTime() : 0;
+			for (Map.Entry<String, Object> field : collatedFields.entrySet()) {
+				String name = field.getKey();
+				Object value = field.getValue();
+				if (null != fieldTypes) {
+					boolean object = value instanceof Map || value instanceof ContentBuilderUtilEx.ObjectValue;
+					name = getTrackedFieldName(name, object, metrics);
+				}
+				// strings are truncated as they are written, by the limit of the top level field
+				ContentBuilderUtilEx.appendField(builder, name, value, getMaxFieldBytes(field.getKey()));
 			}
+			if (timed)
+				collateNanos += System.nanoTime() - nanos;
 		}
 		if (!removeFieldsPrefix)
 			builder.endObject();
+		if (null != bodyType)
+			appendBodyDocument(builder, event.getBody(), bodyType, headers, consumed, topLevelNames, metrics);
+		if (null != metrics) {
+			metrics.countEvent();
+			if (timed) {
+				metrics.record(SerializerMetrics.SERIALIZE, System.nanoTime() - startNanos);
+				metrics.record(SerializerMetrics.OBJECT_FIELDS, objectNanos);
+				metrics.record(SerializerMetrics.COLLATION, collateNanos);
+			}
+		}
 	}
 
-	private Object ensureFieldSize(Object field){
-		if (null != field){
-	        Class type = field.getClass();
-	        if (type == String.class) {
-	        	return ensureFieldSize((String)field);
-	        }
+	/**
+	 * Appends a header field, under another name if its type conflicts with 
+	 * the type the field was first written with. An objectFields value is 
+	 * parsed before it's written, to know its type.
+	 */
+	private void appendTrackedField(XContentBuilder builder, FieldPlan plan, String val, SerializerMetrics metrics)
+			throws IOException {
+		Object object = null;
+		if (plan.objectField) {
+			if (!adaptiveObjectFields || plan.tryObject()) {
+				object = streamObjectFields ? ContentBuilderUtilEx.tryParsingToObject(val)
+						: ContentBuilderUtilEx.tryParsingToMap(val);
+				if (adaptiveObjectFields)
+					plan.objectParsed(null != object);
+			} else if (null != metrics) {
+				metrics.countObjectFieldSkipped();
+			}
 		}
-		return field;
+		String name = getTrackedFieldName(plan.key, null != object, metrics);
+		if (null != object)
+			ContentBuilderUtilEx.appendField(builder, name, object, plan.maxBytes);
+		else if (name == plan.key)
+			ContentBuilderUtilEx.addSimpleField(builder, plan.name, val, plan.maxBytes);
+		else
+			ContentBuilderUtilEx.addSimpleField(builder, name, val, plan.maxBytes);
 	}
-	
-	private String ensureFieldSize(String field){
-		// Elasticsearch does not accept not analyzed fields that are bigger than 32K.
-		// We will trim all fields that are bigger than that to avoid an error.
-		if (null == field) return field;
-		// allow some overhead to make sure we're not over the limit
-		long size = field.length();
-		if (size < 30000) return field;
-		return field.substring(0, 30000);
+
+	/**
+	 * Writes the fields of a body that holds an object into the document, or 
+	 * under bodyField. The body's fields that were already written from the 
+	 * headers are skipped, without reading their values into objects.
+	 */
+	private void appendBodyDocument(XContentBuilder builder, byte[] body, XContentType contentType,
+			Map<String, String> headers, int consumed, Set<String> topLevelNames, SerializerMetrics metrics)
+			throws IOException {
+		if (null != bodyField) {
+			if (isWrittenField(bodyField, headers, consumed, topLevelNames)) {
+				if (null != metrics)
+					metrics.countBodyFieldSkipped();
+				return;
+			}
+			new ContentBuilderUtilEx.ObjectValue(contentType, body).writeTo(builder, bodyField,
+					getMaxFieldBytes(bodyField));
+			return;
+		}
+		if (contentType == XContentType.JSON && builder.contentType() == XContentType.JSON) {
+			int[] offsets = ContentBuilderUtilEx.jsonFieldOffsets(body, bodyFieldOffsets.get());
+			if (null != offsets) {
+				bodyFieldOffsets.set(offsets);
+				appendRawBodyFields(builder, body, offsets, headers, consumed, topLevelNames, metrics);
+				return;
+			}
+		}
+		XContentParser parser = null;
+		try {
+			parser = XContentFactory.xContent(contentType).createParser(body);
+			parser.nextToken();
+			while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+				String name = parser.currentName();
+				parser.nextToken();
+				if (isWrittenField(name, headers, consumed, topLevelNames)) {
+					parser.skipChildren();
+					if (null != metrics)
+						metrics.countBodyFieldSkipped();
+					continue;
+				}
+				builder.field(name);
+				ContentBuilderUtilEx.copyValue(builder, parser, getMaxFieldBytes(name));
+			}
+		} finally {
+			if (parser != null) {
+				parser.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the fields of a JSON body as they are, only parsing the values 
+	 * that might hold strings longer than their field's limit.
+	 */
+	private void appendRawBodyFields(XContentBuilder builder, byte[] body, int[] offsets, Map<String, String> headers,
+			int consumed, Set<String> topLevelNames, SerializerMetrics metrics) throws IOException {
+		for (int i = 0, o = 1; i < offsets[0]; i++, o += 4) {
+			String name = new String(body, offsets[o], offsets[o + 1] - offsets[o], Charsets.UTF_8);
+			if (isWrittenField(name, headers, consumed, topLevelNames)) {
+				if (null != metrics)
+					metrics.countBodyFieldSkipped();
+				continue;
+			}
+			int start = offsets[o + 2];
+			int length = offsets[o + 3] - start;
+			int maxBytes = getMaxFieldBytes(name);
+			if (maxBytes <= 0 || length <= maxBytes) {
+				builder.rawField(name, body, start, length);
+				continue;
+			}
+			XContentParser parser = null;
+			try {
+				parser = JsonXContent.jsonXContent.createParser(body, start, length);
+				parser.nextToken();
+				builder.field(name);
+				ContentBuilderUtilEx.copyValue(builder, parser, maxBytes);
+			} finally {
+				if (parser != null) {
+					parser.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return whether a field of that name was written at the top level of the
+	 * document from the headers
+	 */
+	private boolean isWrittenField(String name, Map<String, String> headers, int consumed,
+			Set<String> topLevelNames) {
+		int header = 0;
+		switch (name) {
+		case "@message":
+			header = MESSAGE_HEADER;
+			break;
+		case "@timestamp":
+			header = TIMESTAMP_HEADER;
+			break;
+		case "@source":
+			header = SOURCE_HEADER;
+			break;
+		case "@type":
+			header = TYPE_HEADER;
+			break;
+		case "@source_host":
+			header = HOST_HEADER;
+			break;
+		case "@source_path":
+			header = SRC_PATH_HEADER;
+			break;
+		case "@fields":
+			if (!removeFieldsPrefix)
+				return true;
+			break;
+		}
+		if ((consumed & header) != 0)
+			return true;
+		if (!removeFieldsPrefix)
+			return false;
+		if (null != topLevelNames)
+			return topLevelNames.contains(name);
+		return headers.containsKey(name) && !isConsumed(name, consumed)
+				&& (null == headerFilter || headerFilter.accept(name));
+	}
+
+	private String getTrackedFieldName(String field, boolean object, SerializerMetrics metrics) {
+		String name = fieldTypes.fieldName(field, object);
+		if (name != field && null != metrics)
+			metrics.countFieldRenamed();
+		return name;
+	}
+
+	private static boolean isConsumed(String key, int consumed) {
+		switch (key) {
+		case "message":
+			return (consumed & MESSAGE_HEADER) != 0;
+		case "timestamp":
+			return (consumed & TIMESTAMP_HEADER) != 0;
+		case "source":
+			return (consumed & SOURCE_HEADER) != 0;
+		case "type":
+			return (consumed & TYPE_HEADER) != 0;
+		case "host":
+			return (consumed & HOST_HEADER) != 0;
+		case "src_path":
+			return (consumed & SRC_PATH_HEADER) != 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the size limit of a top level field of the document. @message
+	 * is normally analyzed, so it's only limited by its own setting.
+	 */
+	private int getMaxFieldBytes(String field) {
+		if (null != fieldMaxBytes) {
+			Integer max = fieldMaxBytes.get(field);
+			if (null != max)
+				return max;
+		}
+		if ("@message".equals(field))
+			return ContentBuilderUtilEx.UNLIMITED;
+		return maxFieldBytes;
 	}
 	
-	private void collectField(String key, String val, Map<String, Object> fields, int level) {
-		// see if we have an object dot notation
-		int pos = 0;
-		if (collateDepth < 0 || level <= collateDepth){
-			pos = key.indexOf('.');
-		}
-		if (pos > 0) {
-			// this is an object field. get the field name
-			String fieldName = key.substring(0, pos);
-			String rest = key.substring(pos + 1);
+	private FieldPlan getFieldPlan(String key) {
+		FieldPlan plan = fieldPlans.get(key);
+		if (null == plan) {
+			plan = new FieldPlan(key, collateObjects, collateDepth, objectFields, getMaxFieldBytes(key));
+			// the cache is bounded, keys beyond it are compiled for every event
+			if (fieldPlans.size() < fieldPlanCacheSize) {
+				fieldPlans.put(key, plan);
+				plansAdded = true;
+			}
+		}
+		return plan;
+	}
+
+	private synchronized void rankPlans() {
+		if (!plansAdded)
+			return;
+		plansAdded = false;
+		int epoch = rankEpoch + 1;
+		CollatedHeaders.rank(fieldPlans.values(), epoch);
+		rankEpoch = epoch;
+	}
+
+	private void collectField(FieldPlan plan, String val, Map<String, Object> fields, SerializerMetrics metrics) {
+		// walk down the object path of a dot notated key
+		int leaf = plan.segments.length - 1;
+		for (int level = 0; level < leaf; level++) {
 			// get the field object. create a new map if not already there
-			Map<String, Object> fieldMap = getFieldMap(fieldName, fields, true);
+			Map<String, Object> fieldMap = getFieldMap(plan.segments[level], fields, true);
 			// if the field was already set as a primitive type just write this
-			// one
-			// as a regular field and not as an object
+			// one as a regular field and not as an object
 			if (null == fieldMap) {
-				fields.put(key, ensureFieldSize(val));
-			} else {
-				// process the rest of the field
-				collectField(rest, val, fieldMap, level+1);
+				fields.put(plan.remainders[level], val);
+				return;
 			}
-		} else {
-			// check that this not overrides an existing object
-			Map<String, Object> fieldMap = getFieldMap(key, fields, false);
-			// this is a regular field, add the value. check if we should parse this 
-			// as an object
-			if (isObjectField(key) || null != fieldMap){
-				if (null == fieldMap)
-					fieldMap = getFieldMap(key, fields, true);
-				Map<String,Object> valMap = ContentBuilderUtilEx.tryParsingToMap(val);
-				if (null != valMap){
-					for (String fieldName : valMap.keySet()){
-						fieldMap.put(fieldName, ensureFieldSize(valMap.get(fieldName)));
-					}
+			fields = fieldMap;
+		}
+		String key = plan.segments[leaf];
+		// check that this not overrides an existing object
+		Map<String, Object> fieldMap = getFieldMap(key, fields, false);
+		// this is a regular field, add the value. check if we should parse this 
+		// as an object
+		if (plan.leafObjectField || null != fieldMap){
+			// a value that isn't an object, e.g. in an object parsed from another 
+			// header, wins over the object
+			if (null == fieldMap && null != fields.get(key))
+				return;
+			// only a value of its own is skipped, not one collated into an existing object
+			boolean adaptive = adaptiveObjectFields && null == fieldMap;
+			if (adaptive && !plan.tryObject()) {
+				// collected as a value that failed to parse
+				getFieldMap(key, fields, true);
+				if (null != metrics)
+					metrics.countObjectFieldSkipped();
+				return;
+			}
+			if (null == fieldMap && streamObjectFields) {
+				// keep the JSON as is, it's only parsed if other fields are collated into it
+				ContentBuilderUtilEx.ObjectValue objectValue = ContentBuilderUtilEx.tryParsingToObject(val);
+				if (null != objectValue) {
+					if (adaptive)
+						plan.objectParsed(true);
+					fields.put(key, objectValue);
+					return;
 				}
 			}
-			else {
-				fields.put(key, ensureFieldSize(val));
+			if (null == fieldMap)
+				fieldMap = getFieldMap(key, fields, true);
+			Map<String,Object> valMap = ContentBuilderUtilEx.tryParsingToMap(val);
+			if (adaptive)
+				plan.objectParsed(null != valMap);
+			if (null != valMap){
+				for (String fieldName : valMap.keySet()){
+					fieldMap.put(fieldName, valMap.get(fieldName));
+				}
 			}
 		}
+		else {
+			fields.put(key, val);
+		}
 	}
 	
+	/**
+	 * Writes the sorted headers from <code>from</code> to <code>to</code>, that
+	 * share their path up to the level, into the object that is open for them.
+	 * The result is the same as collecting the headers with 
+	 * {@link #collectField} in their sorted order and writing the maps.
+	 * 
+	 * @param maxBytes the size limit of the top level field, for levels below it
+	 */
+	private void writeCollated(XContentBuilder builder, CollatedHeaders headers, int from, int to, int level,
+			int maxBytes, SerializerMetrics metrics) throws IOException {
+		int i = from;
+		while (i < to) {
+			FieldPlan plan = headers.plan(i);
+			String segment = plan.segments[level];
+			int limit = level == 0 ? getMaxFieldBytes(segment) : maxBytes;
+			int end = headers.endOfGroup(i, level, to);
+			if (plan.segments.length - 1 > level) {
+				// an object that only the headers below it are written into
+				builder.startObject(getCollatedFieldName(segment, level, true, metrics));
+				writeCollated(builder, headers, i, end, level + 1, limit, metrics);
+				builder.endObject();
+			} else if (plan.leafObjectField) {
+				String name = getCollatedFieldName(segment, level, true, metrics);
+				if (end == i + 1) {
+					writeCollatedObject(builder, name, plan, headers.value(i), limit, metrics);
+				} else {
+					// the object is merged with the headers below it, as maps
+					Object object = collectObject(headers, i, end, level, metrics);
+					ContentBuilderUtilEx.appendField(builder, name, object, limit);
+				}
+			} else {
+				ContentBuilderUtilEx.appendField(builder, getCollatedFieldName(segment, level, false, metrics),
+						(Object) headers.value(i), limit);
+				// the headers below a value that isn't an object are written under the key left 
+				for (int j = i + 1; j < end; j++) {
+					String remainder = headers.plan(j).remainders[level];
+					ContentBuilderUtilEx.appendField(builder, getCollatedFieldName(remainder, level, false, metrics),
+							(Object) headers.value(j), level == 0 ? getMaxFieldBytes(remainder) : maxBytes);
+				}
+			}
+			i = end;
+		}
+	}
+
+	/**
+	 * Writes an objectFields header that no other header is collated into.
+	 */
+	private void writeCollatedObject(XContentBuilder builder, String name, FieldPlan plan, String val, int maxBytes,
+			SerializerMetrics metrics) throws IOException {
+		Object object = null;
+		if (!adaptiveObjectFields || plan.tryObject()) {
+			if (streamObjectFields)
+				object = ContentBuilderUtilEx.tryParsingToObject(val);
+			if (null == object)
+				object = ContentBuilderUtilEx.tryParsingToMap(val);
+			if (adaptiveObjectFields)
+				plan.objectParsed(null != object);
+		} else if (null != metrics) {
+			metrics.countObjectFieldSkipped();
+		}
+		if (null != object) {
+			ContentBuilderUtilEx.appendField(builder, name, object, maxBytes);
+		} else {
+			// collected as an empty object when it isn't one
+			builder.startObject(name).endObject();
+		}
+	}
+
+	/**
+	 * Collects an objectFields header and the headers below it into a map.
+	 */
+	private Object collectObject(CollatedHeaders headers, int from, int to, int level, SerializerMetrics metrics) {
+		Map<String, Object> fields = Maps.newHashMap();
+		for (int i = from; i < to; i++)
+			collectField(headers.plan(i), headers.value(i), fields, metrics);
+		String[] segments = headers.plan(from).segments;
+		Object object = fields;
+		for (int i = 0; i <= level; i++)
+			object = ((Map<?, ?>) object).get(segments[i]);
+		return object;
+	}
+
+	private String getCollatedFieldName(String field, int level, boolean object, SerializerMetrics metrics) {
+		return (level == 0 && null != fieldTypes) ? getTrackedFieldName(field, object, metrics) : field;
+	}
+
 	@SuppressWarnings("unchecked")
 	private Map<String, Object> getFieldMap(String key, Map<String, Object> fields, boolean createNew) {
 		Map<String, Object> fieldMap = null;
@@ -277,6 +1042,10 @@ public class ExtendedElasticSearchLogStashEventSerializer implements ElasticSear
 			}
 		} else if (field instanceof Map) {
 			fieldMap = (Map<String, Object>) field;
+		} else if (field instanceof ContentBuilderUtilEx.ObjectValue) {
+			// a streamed object that other fields are collated into
+			fieldMap = ((ContentBuilderUtilEx.ObjectValue) field).toMap();
+			fields.put(key, fieldMap);
 		}
 		return fieldMap;
 	}
@@ -293,6 +1062,8 @@ public class ExtendedElasticSearchLogStashEventSerializer implements ElasticSear
 
 	@Override
 	public void configure(Context context) {
+		// the field plans depend on the configuration
+		fieldPlans.clear();
 		// look for the objectFields configuration
 		if (StringUtils.isNotBlank(context.getString(OBJECT_FIELDS))) {
 			String fields = context.getString(OBJECT_FIELDS);
@@ -327,12 +1098,197 @@ public class ExtendedElasticSearchLogStashEventSerializer implements ElasticSear
 			}
 			
 		}
+		if (StringUtils.isNotBlank(context.getString(STREAM_COLLATED_FIELDS))) {
+			String stream = context.getString(STREAM_COLLATED_FIELDS);
+			if ("true".equalsIgnoreCase(stream) || "1".equalsIgnoreCase(stream)) {
+				streamCollatedFields = true;
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(STREAM_OBJECT_FIELDS))) {
+			String stream = context.getString(STREAM_OBJECT_FIELDS);
+			if ("true".equalsIgnoreCase(stream) || "1".equalsIgnoreCase(stream)) {
+				streamObjectFields = true;
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(ADAPTIVE_OBJECT_FIELDS))) {
+			String adaptive = context.getString(ADAPTIVE_OBJECT_FIELDS);
+			if ("true".equalsIgnoreCase(adaptive) || "1".equalsIgnoreCase(adaptive)) {
+				adaptiveObjectFields = true;
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(BODY_AS_DOCUMENT))) {
+			String body = context.getString(BODY_AS_DOCUMENT);
+			if ("true".equalsIgnoreCase(body) || "1".equalsIgnoreCase(body)) {
+				bodyAsDocument = true;
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(BODY_FIELD))) {
+			bodyField = context.getString(BODY_FIELD).trim();
+		}
+		if (null != fieldTypes) {
+			try {
+				fieldTypes.flush();
+			} catch (IOException e) {
+			}
+			fieldTypes = null;
+		}
+		if (StringUtils.isNotBlank(context.getString(TRACK_FIELD_TYPES))) {
+			String track = context.getString(TRACK_FIELD_TYPES);
+			if ("true".equalsIgnoreCase(track) || "1".equalsIgnoreCase(track)) {
+				int maxFields = DEFAULT_MAX_TRACKED_FIELDS;
+				if (StringUtils.isNotBlank(context.getString(MAX_TRACKED_FIELDS))) {
+					try{
+						maxFields = Integer.parseInt(context.getString(MAX_TRACKED_FIELDS).trim());
+					}
+					catch (NumberFormatException e){
+					}
+				}
+				File file = null;
+				if (StringUtils.isNotBlank(context.getString(FIELD_TYPES_FILE)))
+					file = new File(context.getString(FIELD_TYPES_FILE).trim());
+				fieldTypes = new FieldTypeTracker(maxFields, file);
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(FIELD_PLAN_CACHE_SIZE))) {
+			String size = context.getString(FIELD_PLAN_CACHE_SIZE);
+			try{
+				fieldPlanCacheSize = Integer.parseInt(size.trim());
+			}
+			catch (NumberFormatException e){
+			}
+		}
+		headerFilter = null;
+		if (StringUtils.isNotBlank(context.getString(INCLUDE_HEADERS))
+				|| StringUtils.isNotBlank(context.getString(EXCLUDE_HEADERS))) {
+			headerFilter = new HeaderFilter(context.getString(INCLUDE_HEADERS), context.getString(EXCLUDE_HEADERS),
+					HeaderFilter.DEFAULT_CACHE_SIZE);
+		}
+		if (StringUtils.isNotBlank(context.getString(REUSE_BUFFERS))) {
+			String reuse = context.getString(REUSE_BUFFERS);
+			if ("true".equalsIgnoreCase(reuse) || "1".equalsIgnoreCase(reuse)) {
+				int maxSize = DEFAULT_MAX_REUSED_BUFFER_SIZE;
+				if (StringUtils.isNotBlank(context.getString(MAX_REUSED_BUFFER_SIZE))) {
+					try{
+						maxSize = Integer.parseInt(context.getString(MAX_REUSED_BUFFER_SIZE).trim());
+					}
+					catch (NumberFormatException e){
+					}
+				}
+				outputs = newOutputs(maxSize);
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(MAX_FIELD_BYTES))) {
+			try{
+				maxFieldBytes = Integer.parseInt(context.getString(MAX_FIELD_BYTES).trim());
+			}
+			catch (NumberFormatException e){
+			}
+		}
+		Map<String, String> fieldLimits = context.getSubProperties(MAX_FIELD_BYTES + ".");
+		if (!fieldLimits.isEmpty()) {
+			fieldMaxBytes = new HashMap<String, Integer>();
+			for (Map.Entry<String, String> limit : fieldLimits.entrySet()) {
+				try{
+					fieldMaxBytes.put(limit.getKey().trim(), Integer.parseInt(limit.getValue().trim()));
+				}
+				catch (NumberFormatException e){
+				}
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(TIMESTAMP_FORMAT))) {
+			timestampWriter = TimestampWriter.create(context.getString(TIMESTAMP_FORMAT).trim());
+		}
+		if (StringUtils.isNotBlank(context.getString(CONTENT_TYPE))) {
+			xContent = getXContent(context.getString(CONTENT_TYPE).trim());
+		}
 		if (StringUtils.isNotBlank(context.getString(GENERATE_ID))) {
 			String remove = context.getString(GENERATE_ID);
 			if ("true".equalsIgnoreCase(remove) || "1".equalsIgnoreCase(remove)) {
 				generateId = true;
 			}
 		}
+		if (StringUtils.isNotBlank(context.getString(ID_FIELDS))) {
+			List<String> fields = new ArrayList<String>();
+			for (String field : context.getString(ID_FIELDS).split(",")) {
+				field = field.trim();
+				if (!field.isEmpty())
+					fields.add(field);
+			}
+			if (!fields.isEmpty())
+				idFields = fields.toArray(new String[fields.size()]);
+		}
+		if (StringUtils.isNotBlank(context.getString(ID_INCLUDE_BODY))) {
+			String include = context.getString(ID_INCLUDE_BODY);
+			if ("true".equalsIgnoreCase(include) || "1".equalsIgnoreCase(include)) {
+				idIncludeBody = true;
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(ID_HASH_ALGORITHM))) {
+			String algorithm = context.getString(ID_HASH_ALGORITHM).trim();
+			if (!algorithm.equalsIgnoreCase(idHashAlgorithm)) {
+				hashers = newHashers(algorithm);
+				idHashAlgorithm = algorithm;
+			}
+		}
+		if (StringUtils.isNotBlank(context.getString(SYMBOL_TABLE_SIZE))) {
+			try{
+				int size = Integer.parseInt(context.getString(SYMBOL_TABLE_SIZE).trim());
+				symbols = size > 0 ? new SymbolTable(size) : null;
+			}
+			catch (NumberFormatException e){
+			}
+		}
+		if (null != metrics) {
+			metrics.unregister();
+			metrics = null;
+		}
+		if (StringUtils.isNotBlank(context.getString(METRICS))) {
+			String enable = context.getString(METRICS);
+			if ("true".equalsIgnoreCase(enable) || "1".equalsIgnoreCase(enable)) {
+				int sampleRate = DEFAULT_METRICS_SAMPLE_RATE;
+				if (StringUtils.isNotBlank(context.getString(METRICS_SAMPLE_RATE))) {
+					try{
+						sampleRate = Integer.parseInt(context.getString(METRICS_SAMPLE_RATE).trim());
+					}
+					catch (NumberFormatException e){
+					}
+				}
+				String name = context.getString(METRICS_NAME, DEFAULT_METRICS_NAME).trim();
+				metrics = new SerializerMetrics(sampleRate);
+				metrics.setSymbolTable(symbols);
+				metrics.register(name);
+			}
+		}
+	}
+
+	private static XContent getXContent(String contentType) {
+		if ("json".equalsIgnoreCase(contentType))
+			return JsonXContent.jsonXContent;
+		if ("smile".equalsIgnoreCase(contentType))
+			return SmileXContent.smileXContent;
+		if ("cbor".equalsIgnoreCase(contentType))
+			return CborXContent.cborXContent;
+		throw new IllegalArgumentException("Unknown content type: " + contentType);
+	}
+
+	private static ThreadLocal<DocumentHasher> newHashers(final String algorithm) {
+		// validate the algorithm up front
+		DocumentHasher.create(algorithm);
+		return new ThreadLocal<DocumentHasher>() {
+			@Override
+			protected DocumentHasher initialValue() {
+				return DocumentHasher.create(algorithm);
+			}
+		};
+	}
+
+	private static ThreadLocal<DocumentBytesStreamOutput> newOutputs(final int maxSize) {
+		return new ThreadLocal<DocumentBytesStreamOutput>() {
+			@Override
+			protected DocumentBytesStreamOutput initialValue() {
+				return DocumentBytesStreamOutput.reusable(maxSize);
+			}
+		};
 	}
 
 	@Override
@@ -340,30 +1296,90 @@ public class ExtendedElasticSearchLogStashEventSerializer implements ElasticSear
 		// NO-OP...
 	}
 
+	/**
+	 * Computes the document ID from the event's identity headers (and body), 
+	 * before the event is serialized.  
+	 * @return the ID, or null if idFields isn't configured or the event lacks
+	 * any of the identity headers
+	 */
+	public String getDocumentId(Event event) {
+		if (null == idFields)
+			return null;
+		SerializerMetrics metrics = this.metrics;
+		if (null != metrics && metrics.sample()) {
+			long nanos = System.nanoTime();
+			String documentId = getIdentityId(event);
+			metrics.record(SerializerMetrics.DOCUMENT_ID, System.nanoTime() - nanos);
+			return documentId;
+		}
+		return getIdentityId(event);
+	}
+
+	private String getIdentityId(Event event) {
+		Map<String, String> headers = event.getHeaders();
+		DocumentHasher hasher = hashers.get();
+		hasher.reset();
+		for (int i = 0; i < idFields.length; i++) {
+			String value = headers.get(idFields[i]);
+			// events with only some of the headers would share IDs and overwrite each other
+			if (null == value)
+				return null;
+			// the lengths keep values that hold the next field from hashing the same
+			hasher.updateInt(idFields[i].length());
+			hasher.update(idFields[i]);
+			hasher.updateInt(value.length());
+			hasher.update(value);
+		}
+		if (idIncludeBody) {
+			byte[] body = event.getBody();
+			if (null != body)
+				hasher.update(body, 0, body.length);
+		}
+		return DocumentHasher.toDocumentId(hasher.digest());
+	}
+
 	@Override
 	public String getDocumentId(BytesReference contentBytes) {
+		if (null == contentBytes || contentBytes.length() == 0)
+			return null;
+		// events serialized by this serializer already carry their ID, either 
+		// computed from the event or hashed while the event was written
+		if (contentBytes instanceof DocumentBytesStreamOutput.DocumentBytesReference) {
+			String hashId = ((DocumentBytesStreamOutput.DocumentBytesReference) contentBytes).documentId();
+			if (null != hashId)
+				return hashId;
+		}
 		if (generateId) {
-			// if we need to generate an _id for the event, get an MD5 hash for
-			// the serialized
-			// event bytes.
-			String hashId = null;
-			try {
-				byte[] bytes = contentBytes.toBytes();
-				if (contentBytes.length() > 0 && null != bytes) {
-					MessageDigest md = MessageDigest.getInstance("MD5");
-					byte[] thedigest = md.digest(bytes);
-					hashId = Base64.encodeBytes(thedigest, Base64.URL_SAFE);
-					// remove padding 
-					if (hashId.endsWith("=="))
-						hashId = hashId.substring(0, hashId.length()-2);
-				}
-			} catch (NoSuchAlgorithmException | IOException e) {
-				Integer hash = contentBytes.hashCode();
-				hashId = hash.toString();
+			SerializerMetrics metrics = this.metrics;
+			if (null != metrics && metrics.sample()) {
+				long nanos = System.nanoTime();
+				String documentId = hashDocument(contentBytes);
+				metrics.record(SerializerMetrics.DOCUMENT_ID, System.nanoTime() - nanos);
+				return documentId;
 			}
-			if (null != hashId && !hashId.isEmpty())
-				return hashId;
+			return hashDocument(contentBytes);
 		}
 		return null;
 	}
+
+	/**
+	 * Hashes the serialized event bytes into a document ID.
+	 */
+	private String hashDocument(BytesReference contentBytes) {
+		DocumentHasher hasher = hashers.get();
+		XContentType contentType = XContentFactory.xContentType(contentBytes);
+		if (null != contentType && contentType != XContentType.JSON) {
+			// IDs are hashes of the JSON form
+			try {
+				contentBytes = new BytesArray(XContentHelper.convertToJson(contentBytes, false));
+			} catch (IOException e) {
+				// hash the bytes as they are
+			}
+		}
+		if (contentBytes.hasArray()) {
+			return hasher.documentId(contentBytes.array(), contentBytes.arrayOffset(), contentBytes.length());
+		}
+		BytesArray bytes = contentBytes.toBytesArray();
+		return hasher.documentId(bytes.array(), bytes.arrayOffset(), bytes.length());
+	}
 }
@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.sink.elasticsearch.DocumentIdBuilder;
+import org.apache.flume.sink.elasticsearch.ElasticSearchEventSerializer;
+import org.apache.flume.sink.elasticsearch.IndexNameBuilder;
+import org.apache.flume.sink.elasticsearch.client.ElasticSearchClient;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A REST client for the Elasticsearch sink that sends each transaction as
+ * <code>_bulk</code> requests over pooled keep-alive connections.</p>
+ *
+ * Events are serialized straight into bulk request bodies (see
+ * {@link BulkRequestBody}). A body that reaches <i>maxBulkBytes</i> is sent
+ * right away, while the next events are being added, and up to
+ * <i>maxInFlight</i> bodies are sent at the same time, spread over the hosts.
+ * Adding events blocks while that many bodies are in flight.
+ * {@link #execute()} sends the rest of the transaction and returns once all
+ * of its bodies were indexed, so a transaction is only committed after all
+ * its events were acknowledged. Bodies are gzip compressed unless
+ * <i>compress</i> is set to false.</p>
+ *
+ * With an index request builder factory that serializes in parallel (see
+ * its <i>parallelism</i>), the events of a transaction are kept instead, and
+ * {@link #execute()} serializes them as one batch, sending it in bodies of
+ * up to <i>maxBulkBytes</i>.</p>
+ *
+ * A single bad document doesn't fail the transaction. Items rejected because
+ * the cluster is busy are sent again on their own, up to <i>maxRetries</i>
+ * times, and items that can't be indexed are diverted to the log or to the
+ * <i>deadLetterIndex</i>, see {@link BulkRequestSender}.</p>
+ *
+ * When events get document IDs, the IDs of the indexed documents can be
+ * remembered for <i>recentIdsWindow</i> minutes, see {@link RecentIdFilter}.
+ * Events with the same IDs, e.g. when Flume retries a transaction, are then
+ * dropped: before they are serialized when the ID comes from idFields, or
+ * right after, before they are sent, when it's a hash of the document.</p>
+ *
+ * Works with the extended serializer, any other serializer, or the extended
+ * index request builder factory, whose index names, document IDs and
+ * serialization are then used as with the transport client.</p>
+ *
+ * Not thread safe, meant to be used by a single sink.
+ */
+public class ExtendedElasticSearchRestClient implements ElasticSearchClient {
+
+	/**
+	 * Configuration property for the size, in bytes, at which a bulk request
+	 * body is sent. Default is 5MB.
+	 */
+	public static final String MAX_BULK_BYTES = "maxBulkBytes";
+	static final int DEFAULT_MAX_BULK_BYTES = 5 * 1024 * 1024;
+	/**
+	 * Configuration property for the most bulk requests sent at the same time.
+	 * Default is 4.
+	 */
+	public static final String MAX_IN_FLIGHT = "maxInFlight";
+	static final int DEFAULT_MAX_IN_FLIGHT = 4;
+	/**
+	 * Configuration property, set to false to send bulk requests without gzip.
+	 */
+	public static final String COMPRESS = "compress";
+	/**
+	 * Configuration properties for the connect and socket timeouts, in
+	 * milliseconds. Defaults are 5 seconds and 60 seconds.
+	 */
+	public static final String CONNECT_TIMEOUT = "connectTimeout";
+	public static final String SOCKET_TIMEOUT = "socketTimeout";
+	static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+	/**
+	 * Configuration property for how many times items rejected because the
+	 * cluster is busy (status 429 or 503) are sent again. Default is 3.
+	 */
+	public static final String MAX_RETRIES = "maxRetries";
+	/**
+	 * Configuration property for the wait, in milliseconds, before the first
+	 * retry of rejected items. It doubles for each retry after it. Default is
+	 * 100.
+	 */
+	public static final String RETRY_BACKOFF = "retryBackoff";
+	/**
+	 * Configuration property for an index to write the items that can't be
+	 * indexed to (e.g. mapping conflicts), with their document as a string.
+	 * By default they are only logged.
+	 */
+	public static final String DEAD_LETTER_INDEX = "deadLetterIndex";
+	/**
+	 * Configuration property for how long, in minutes, to remember the IDs of
+	 * indexed documents, to drop events with the same IDs instead of sending
+	 * them again. Default is 0, which doesn't remember IDs.
+	 */
+	public static final String RECENT_IDS_WINDOW = "recentIdsWindow";
+	/**
+	 * Configuration property for the memory, in bytes, used to remember
+	 * recent IDs. Default is 16MB.
+	 */
+	public static final String RECENT_IDS_MEMORY = "recentIdsMemory";
+	static final long DEFAULT_RECENT_IDS_MEMORY = 16 * 1024 * 1024;
+	/**
+	 * Configuration property for the chance of dropping an event whose ID was
+	 * never indexed. Default is 0.000001.
+	 */
+	public static final String RECENT_IDS_FALSE_POSITIVE_RATE = "recentIdsFalsePositiveRate";
+	static final double DEFAULT_RECENT_IDS_FALSE_POSITIVE_RATE = 0.000001;
+
+	private static final Logger logger = LoggerFactory.getLogger(ExtendedElasticSearchRestClient.class);
+
+	private final String[] hosts;
+	private final ElasticSearchEventSerializer serializer;
+	private final ExtendedElasticSearchLogStashEventSerializer extendedSerializer;
+	private final DocumentIdBuilder docIdBuilder;
+	private final ExtendedElasticSearchIndexRequestBuilderFactory indexRequestFactory;
+	private final HttpClient httpClient;
+
+	private int maxBulkBytes = DEFAULT_MAX_BULK_BYTES;
+	private BulkRequestSender sender;
+	private BulkRequestBody body;
+	private RecentIdFilter recentIds;
+	// the IDs of the transaction, remembered once it's indexed
+	private final List<String> transactionIds = new ArrayList<String>();
+	// the events kept for the factory to serialize in parallel, and those
+	// whose ID was already checked against the recent IDs
+	private final List<Event> batchEvents = new ArrayList<Event>();
+	private final BitSet batchChecked = new BitSet();
+	private String batchIndexPrefix;
+	private String batchIndexType;
+	private long batchTtl;
+
+	public ExtendedElasticSearchRestClient(String[] hostNames, ElasticSearchEventSerializer serializer) {
+		this(hostNames, serializer, null, null);
+	}
+
+	public ExtendedElasticSearchRestClient(String[] hostNames,
+			ExtendedElasticSearchIndexRequestBuilderFactory indexRequestFactory) {
+		this(hostNames, null, indexRequestFactory, null);
+	}
+
+	/**
+	 * @param httpClient the HTTP client to send requests with, null for a
+	 * pooling client configured by {@link #configure(Context)}
+	 */
+	ExtendedElasticSearchRestClient(String[] hostNames, ElasticSearchEventSerializer serializer,
+			ExtendedElasticSearchIndexRequestBuilderFactory indexRequestFactory, HttpClient httpClient) {
+		this.hosts = new String[hostNames.length];
+		for (int i = 0; i < hostNames.length; i++) {
+			String host = hostNames[i].trim();
+			if (!host.contains("http://") && !host.contains("https://"))
+				host = "http://" + host;
+			hosts[i] = host;
+		}
+		this.serializer = serializer;
+		this.extendedSerializer = serializer instanceof ExtendedElasticSearchLogStashEventSerializer
+				? (ExtendedElasticSearchLogStashEventSerializer) serializer : null;
+		this.docIdBuilder = serializer instanceof DocumentIdBuilder ? (DocumentIdBuilder) serializer : null;
+		this.indexRequestFactory = indexRequestFactory;
+		this.httpClient = httpClient;
+		this.sender = new BulkRequestSender(hosts, null != httpClient ? httpClient : newHttpClient(
+				DEFAULT_MAX_IN_FLIGHT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT), DEFAULT_MAX_IN_FLIGHT, true);
+	}
+
+	@Override
+	public void configure(Context context) {
+		if (StringUtils.isNotBlank(context.getString(MAX_BULK_BYTES))) {
+			try {
+				maxBulkBytes = Integer.parseInt(context.getString(MAX_BULK_BYTES).trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		int maxInFlight = parseInt(context, MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT);
+		int connectTimeout = parseInt(context, CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+		int socketTimeout = parseInt(context, SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+		boolean compress = true;
+		if (StringUtils.isNotBlank(context.getString(COMPRESS))) {
+			String value = context.getString(COMPRESS).trim();
+			if ("false".equalsIgnoreCase(value) || "0".equals(value))
+				compress = false;
+		}
+		int maxRetries = parseInt(context, MAX_RETRIES, BulkRequestSender.DEFAULT_MAX_RETRIES);
+		int retryBackoff = parseInt(context, RETRY_BACKOFF, (int) BulkRequestSender.DEFAULT_RETRY_BACKOFF_MS);
+		sender.close();
+		sender = new BulkRequestSender(hosts, null != httpClient ? httpClient : newHttpClient(maxInFlight,
+				connectTimeout, socketTimeout), Math.max(maxInFlight, 1), compress);
+		sender.setRetries(Math.max(maxRetries, 0), Math.max(retryBackoff, 0));
+		if (StringUtils.isNotBlank(context.getString(DEAD_LETTER_INDEX)))
+			sender.setDeadLetterIndex(context.getString(DEAD_LETTER_INDEX).trim());
+
+		recentIds = null;
+		int window = parseInt(context, RECENT_IDS_WINDOW, 0);
+		if (window > 0) {
+			long memory = DEFAULT_RECENT_IDS_MEMORY;
+			double falsePositiveRate = DEFAULT_RECENT_IDS_FALSE_POSITIVE_RATE;
+			try {
+				if (StringUtils.isNotBlank(context.getString(RECENT_IDS_MEMORY)))
+					memory = Long.parseLong(context.getString(RECENT_IDS_MEMORY).trim());
+				if (StringUtils.isNotBlank(context.getString(RECENT_IDS_FALSE_POSITIVE_RATE)))
+					falsePositiveRate = Double.parseDouble(context.getString(RECENT_IDS_FALSE_POSITIVE_RATE).trim());
+			} catch (NumberFormatException e) {
+			}
+			if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+				falsePositiveRate = DEFAULT_RECENT_IDS_FALSE_POSITIVE_RATE;
+			recentIds = new RecentIdFilter(window * 60000L, memory, falsePositiveRate);
+		}
+	}
+
+	/**
+	 * @return the number of events dropped because their ID was recently
+	 * indexed
+	 */
+	public long getRecentIdHits() {
+		return null != recentIds ? recentIds.getHits() : 0;
+	}
+
+	/**
+	 * @return the number of events whose ID was checked and not found
+	 */
+	public long getRecentIdMisses() {
+		return null != recentIds ? recentIds.getMisses() : 0;
+	}
+
+	private static int parseInt(Context context, String key, int defaultValue) {
+		if (StringUtils.isNotBlank(context.getString(key))) {
+			try {
+				return Integer.parseInt(context.getString(key).trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return defaultValue;
+	}
+
+	private static HttpClient newHttpClient(int maxInFlight, int connectTimeout, int socketTimeout) {
+		PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+		connectionManager.setMaxTotal(Math.max(maxInFlight, 1));
+		connectionManager.setDefaultMaxPerRoute(Math.max(maxInFlight, 1));
+		DefaultHttpClient client = new DefaultHttpClient(connectionManager);
+		HttpParams params = client.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, socketTimeout);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		return client;
+	}
+
+	@Override
+	public void addEvent(Event event, IndexNameBuilder indexNameBuilder, String indexType, long ttlMs)
+			throws Exception {
+		boolean checked = false;
+		if (null != recentIds) {
+			// an ID from idFields is known before serializing
+			String knownId = null != indexRequestFactory ? indexRequestFactory.getDocumentId(event)
+					: null != extendedSerializer ? extendedSerializer.getDocumentId(event) : null;
+			if (null != knownId) {
+				if (recentIds.contains(knownId, System.currentTimeMillis()))
+					return;
+				checked = true;
+			}
+		}
+		long ttl = ttlMs > 0 ? ttlMs : 0;
+		if (null != indexRequestFactory && indexRequestFactory.isParallel()) {
+			addBatchEvent(event, indexNameBuilder.getIndexPrefix(event), indexType, ttl, checked);
+			return;
+		}
+		if (null == body)
+			body = new BulkRequestBody();
+		String documentId;
+		if (null != indexRequestFactory) {
+			documentId = indexRequestFactory.appendBulkItem(body, event, indexNameBuilder.getIndexPrefix(event),
+					indexType, ttl);
+		} else if (null != extendedSerializer) {
+			documentId = extendedSerializer.appendBulkItem(body, event, indexNameBuilder.getIndexName(event),
+					indexType, ttl);
+		} else {
+			BytesReference content = serializer.getContentBuilder(event).bytes();
+			documentId = null != docIdBuilder ? docIdBuilder.getDocumentId(content) : null;
+			if (null != documentId && documentId.isEmpty())
+				documentId = null;
+			body.startItem(indexNameBuilder.getIndexName(event), indexType, ttl, documentId, null);
+			content.writeTo(body);
+			body.endItem();
+		}
+		if (null != recentIds && null != documentId) {
+			if (!checked && recentIds.contains(documentId, System.currentTimeMillis())) {
+				body.removeLastItem();
+				return;
+			}
+			transactionIds.add(documentId);
+		}
+		if (body.size() >= maxBulkBytes) {
+			// send it while the next events are added
+			sender.send(body);
+			body = null;
+		}
+	}
+
+	private void addBatchEvent(Event event, String indexPrefix, String indexType, long ttl, boolean checked)
+			throws IOException, InterruptedException {
+		// a batch is serialized into one index and type
+		if (!batchEvents.isEmpty() && (!StringUtils.equals(indexPrefix, batchIndexPrefix)
+				|| !StringUtils.equals(indexType, batchIndexType) || ttl != batchTtl))
+			sendBatch();
+		batchIndexPrefix = indexPrefix;
+		batchIndexType = indexType;
+		batchTtl = ttl;
+		if (checked)
+			batchChecked.set(batchEvents.size());
+		batchEvents.add(event);
+	}
+
+	/**
+	 * Serializes the kept events, in parallel, and sends them in bodies of up
+	 * to maxBulkBytes.
+	 */
+	private void sendBatch() throws IOException, InterruptedException {
+		List<String> documentIds = new ArrayList<String>(batchEvents.size());
+		BulkRequestBody batch = indexRequestFactory.createBulkRequestBody(batchEvents, batchIndexPrefix,
+				batchIndexType, batchTtl, documentIds);
+		long now = System.currentTimeMillis();
+		BulkRequestBody slice = null;
+		for (int i = 0; i < batch.itemCount(); i++) {
+			String documentId = documentIds.get(i);
+			if (null != recentIds && null != documentId) {
+				if (!batchChecked.get(i) && recentIds.contains(documentId, now))
+					continue;
+				transactionIds.add(documentId);
+			}
+			if (null == slice)
+				slice = new BulkRequestBody(Math.min(batch.size(), maxBulkBytes));
+			slice.appendItem(batch, i);
+			if (slice.size() >= maxBulkBytes) {
+				sender.send(slice);
+				slice = null;
+			}
+		}
+		if (null != slice)
+			sender.send(slice);
+		batchEvents.clear();
+		batchChecked.clear();
+	}
+
+	@Override
+	public void execute() throws Exception {
+		try {
+			if (!batchEvents.isEmpty())
+				sendBatch();
+			if (null != body && body.itemCount() > 0)
+				sender.send(body);
+			body = null;
+			sender.await();
+			if (null != recentIds) {
+				long now = System.currentTimeMillis();
+				for (String documentId : transactionIds)
+					recentIds.add(documentId, now);
+			}
+		} catch (IOException e) {
+			logger.warn("Bulk request failed", e);
+			throw new EventDeliveryException(e);
+		} finally {
+			body = null;
+			batchEvents.clear();
+			batchChecked.clear();
+			transactionIds.clear();
+		}
+	}
+
+	@Override
+	public void close() {
+		sender.close();
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.XContentString;
+
+/**
+ * How a header is written, worked out once per header key.</p>
+ *
+ * Header keys repeat across events, so the dot notation split, the collate
+ * depth check and the objectFields lookups are done when the plan is compiled
+ * and the serializer just follows the plan.</p>
+ *
+ * A plan of an objectFields header also keeps track of how its values parse,
+ * so headers whose values mostly aren't objects can be written as strings
+ * without trying to parse them (see adaptiveObjectFields).
+ */
+final class FieldPlan {
+
+	/** The number of values parsed before deciding whether to keep parsing */
+	static final int ADAPT_WINDOW = 64;
+	/** While skipping, one in this many values is still parsed */
+	static final int PROBE_INTERVAL = 1024;
+
+	/** The header key */
+	final String key;
+	/** The header key, with its JSON encoding cached */
+	final XContentString name;
+	/** Whether the header is listed in objectFields */
+	final boolean objectField;
+	/**
+	 * The object path of a collated header: the object names followed by the
+	 * name of the field itself. Null when not collating.
+	 */
+	final String[] segments;
+	/**
+	 * The key left to collate at each level of the path, starting with the
+	 * full key. A header is written under the key left at the level where it
+	 * collides with a value that is not an object.
+	 */
+	final String[] remainders;
+	/** Whether the last segment of the path is listed in objectFields */
+	final boolean leafObjectField;
+	/** The most UTF-8 bytes written for a string of the header, 0 or less for no limit */
+	final int maxBytes;
+
+	/**
+	 * The plan's position among the cached plans sorted by path, in the low 
+	 * 32 bits, and the epoch of the ranking in the high 32 bits (see 
+	 * {@link CollatedHeaders#rank}). 0 when not ranked.
+	 */
+	volatile long pathRank;
+
+	// how the values parse, updated by several threads without synchronization
+	// since the counts only need to be roughly right
+	private int objectAttempts;
+	private int objectFailures;
+	private int skippedObjects;
+	private boolean skippingObjects;
+
+	FieldPlan(String key, boolean collate, int collateDepth, Map<String, Boolean> objectFields) {
+		this(key, collate, collateDepth, objectFields, ContentBuilderUtilEx.UNLIMITED);
+	}
+
+	/**
+	 * @param collateDepth the collate depth, as configured
+	 * @param maxBytes the size limit of the header's strings
+	 */
+	FieldPlan(String key, boolean collate, int collateDepth, Map<String, Boolean> objectFields, int maxBytes) {
+		this.key = key;
+		this.maxBytes = maxBytes;
+		this.name = new XContentString(key);
+		this.objectField = isObjectField(key, objectFields);
+		if (!collate) {
+			segments = null;
+			remainders = null;
+			leafObjectField = objectField;
+			return;
+		}
+		List<String> segmentList = new ArrayList<String>(2);
+		List<String> remainderList = new ArrayList<String>(2);
+		String rest = key;
+		int level = 1;
+		while (true) {
+			remainderList.add(rest);
+			int pos = 0;
+			if (collateDepth < 0 || level <= collateDepth) {
+				pos = rest.indexOf('.');
+			}
+			if (pos <= 0) {
+				segmentList.add(rest);
+				break;
+			}
+			segmentList.add(rest.substring(0, pos));
+			rest = rest.substring(pos + 1);
+			level++;
+		}
+		segments = segmentList.toArray(new String[segmentList.size()]);
+		remainders = remainderList.toArray(new String[remainderList.size()]);
+		leafObjectField = isObjectField(rest, objectFields);
+	}
+
+	/**
+	 * @return whether to try parsing the header's value as an object. While
+	 * the values mostly fail to parse only one in PROBE_INTERVAL is tried, to
+	 * find out if they changed.
+	 */
+	boolean tryObject() {
+		if (!skippingObjects)
+			return true;
+		return ++skippedObjects % PROBE_INTERVAL == 0;
+	}
+
+	/**
+	 * Records whether a value that was tried parsed as an object. Once at
+	 * least 90% of ADAPT_WINDOW values failed, values are skipped, until one
+	 * of the probed values parses.
+	 */
+	void objectParsed(boolean parsed) {
+		if (skippingObjects) {
+			if (parsed) {
+				skippingObjects = false;
+				objectAttempts = 0;
+				objectFailures = 0;
+			}
+			return;
+		}
+		objectAttempts++;
+		if (!parsed)
+			objectFailures++;
+		if (objectAttempts >= ADAPT_WINDOW) {
+			skippingObjects = objectFailures * 10 >= objectAttempts * 9;
+			objectAttempts = 0;
+			objectFailures = 0;
+		}
+	}
+
+	private static boolean isObjectField(String fieldName, Map<String, Boolean> objectFields) {
+		return null != objectFields && null != fieldName && objectFields.containsKey(fieldName);
+	}
+}
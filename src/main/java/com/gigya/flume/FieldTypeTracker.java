@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers whether each field of the serialized documents was first written
+ * as a string or as an object, so a value of the other type can be written
+ * under another name instead of being rejected by Elasticsearch for
+ * conflicting with the field's mapping.</p>
+ *
+ * A string written to an object field goes to <i>field</i>_str, and an object
+ * written to a string field goes to <i>field</i>_obj. The types can be kept in
+ * a file, saved at most every SAVE_INTERVAL_MS when new fields are learned and
+ * loaded when the tracker is created, so they survive restarts.
+ */
+final class FieldTypeTracker {
+
+	private static final Logger logger = LoggerFactory.getLogger(FieldTypeTracker.class);
+
+	static final String STRING_SUFFIX = "_str";
+	static final String OBJECT_SUFFIX = "_obj";
+	static final long SAVE_INTERVAL_MS = 10000;
+
+	private static final Byte STRING = 's';
+	private static final Byte OBJECT = 'o';
+
+	private final ConcurrentMap<String, Byte> types = new ConcurrentHashMap<String, Byte>();
+	private final int maxFields;
+	// null when the types aren't kept
+	private final File file;
+	private volatile boolean dirty;
+	private volatile long nextSave;
+
+	/**
+	 * @param maxFields the most fields tracked, fields beyond it are written
+	 * as they are
+	 * @param file the file the types are kept in, or null
+	 */
+	FieldTypeTracker(int maxFields, File file) {
+		this.maxFields = maxFields;
+		this.file = file;
+		if (null != file && file.exists()) {
+			try {
+				load();
+			} catch (IOException ex) {
+				logger.warn("Failed to load the field types from " + file, ex);
+			}
+		}
+	}
+
+	/**
+	 * Learns the field's type if it's new.
+	 * @return the name to write the value under, the field itself unless its
+	 * type conflicts with the type it was first written with
+	 */
+	String fieldName(String field, boolean object) {
+		Byte type = object ? OBJECT : STRING;
+		Byte known = types.get(field);
+		if (null == known) {
+			if (types.size() >= maxFields)
+				return field;
+			known = types.putIfAbsent(field, type);
+			if (null == known) {
+				dirty = true;
+				known = type;
+			}
+		}
+		if (dirty && null != file)
+			maybeSave();
+		if (known == type)
+			return field;
+		return field + (object ? OBJECT_SUFFIX : STRING_SUFFIX);
+	}
+
+	/**
+	 * @return true if the field was learned as an object, false if as a
+	 * string, null if it's unknown
+	 */
+	Boolean isObject(String field) {
+		Byte type = types.get(field);
+		return null != type ? type == OBJECT : null;
+	}
+
+	int size() {
+		return types.size();
+	}
+
+	/**
+	 * Saves the types now, if any were learned since they were last saved.
+	 */
+	synchronized void flush() throws IOException {
+		if (!dirty || null == file)
+			return;
+		dirty = false;
+		try {
+			save();
+		} catch (IOException ex) {
+			dirty = true;
+			throw ex;
+		}
+	}
+
+	private void maybeSave() {
+		long now = System.currentTimeMillis();
+		if (now < nextSave)
+			return;
+		synchronized (this) {
+			if (now < nextSave)
+				return;
+			nextSave = now + SAVE_INTERVAL_MS;
+			try {
+				flush();
+			} catch (IOException ex) {
+				logger.warn("Failed to save the field types to " + file, ex);
+			}
+		}
+	}
+
+	/**
+	 * Reads "name TAB type" lines, a type being "string" or "object".
+	 */
+	private void load() throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+		try (BufferedReader lines = new BufferedReader(reader)) {
+			String line;
+			while ((line = lines.readLine()) != null && types.size() < maxFields) {
+				int tab = line.lastIndexOf('\t');
+				if (tab <= 0)
+					continue;
+				switch (line.substring(tab + 1)) {
+				case "string":
+					types.putIfAbsent(line.substring(0, tab), STRING);
+					break;
+				case "object":
+					types.putIfAbsent(line.substring(0, tab), OBJECT);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a temporary file and moves it over the file, so a crash never
+	 * leaves a partial file behind.
+	 */
+	private void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8);
+		try (BufferedWriter out = new BufferedWriter(writer)) {
+			for (Map.Entry<String, Byte> entry : types.entrySet()) {
+				String field = entry.getKey();
+				// the names can't be read back
+				if (field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0)
+					continue;
+				out.write(field);
+				out.write('\t');
+				out.write(entry.getValue() == OBJECT ? "object" : "string");
+				out.newLine();
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides which headers are written to the document, by include and
+ * exclude lists of header key patterns.</p>
+ *
+ * A pattern is a key, or a key with '*' wildcards that match any number of
+ * characters, e.g. <code>http.*</code> or <code>*_id</code>. A header is
+ * written when it matches an include pattern, or there are none, and doesn't
+ * match an exclude pattern.</p>
+ *
+ * The patterns are compiled into a set of keys, a list of prefixes and a
+ * list of other wildcard patterns, and the decision for a key is cached,
+ * since header keys repeat across events. The cache is cleared when it's
+ * full, so keys that stopped showing up make room for the ones that still
+ * do. Thread safe.
+ */
+final class HeaderFilter {
+
+	/** The number of keys whose decision is cached by default */
+	static final int DEFAULT_CACHE_SIZE = 4096;
+
+	private final Patterns include;
+	private final Patterns exclude;
+	private final int cacheSize;
+	private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * @param include comma separated patterns of the headers to write, null
+	 * or blank to write all headers that aren't excluded
+	 * @param exclude comma separated patterns of the headers to drop, or null
+	 * @param cacheSize the most keys whose decision is cached
+	 */
+	HeaderFilter(String include, String exclude, int cacheSize) {
+		this.include = Patterns.compile(include);
+		this.exclude = Patterns.compile(exclude);
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * @return whether the header with the given key is written
+	 */
+	boolean accept(String key) {
+		Boolean accepted = decisions.get(key);
+		if (null != accepted)
+			return accepted;
+		boolean accept = (null == include || include.matches(key)) && (null == exclude || !exclude.matches(key));
+		if (cacheSize <= 0)
+			return accept;
+		// bounded, and refilled by the keys that still show up once cleared
+		if (decisions.size() >= cacheSize)
+			decisions.clear();
+		decisions.put(key, accept);
+		return accept;
+	}
+
+	/**
+	 * @return the number of keys whose decision is cached
+	 */
+	int cachedDecisions() {
+		return decisions.size();
+	}
+
+	/**
+	 * Compiled patterns, matched in order of cost.
+	 */
+	static final class Patterns {
+
+		private final Set<String> keys = new HashSet<String>();
+		private final List<String> prefixes = new ArrayList<String>();
+		// the parts between the wildcards of the other patterns
+		private final List<String[]> wildcards = new ArrayList<String[]>();
+		private boolean all = false;
+
+		/**
+		 * @return the compiled patterns, null when there are none
+		 */
+		static Patterns compile(String patterns) {
+			if (null == patterns)
+				return null;
+			Patterns compiled = new Patterns();
+			boolean empty = true;
+			for (String pattern : patterns.split(",")) {
+				pattern = pattern.trim();
+				if (pattern.isEmpty())
+					continue;
+				empty = false;
+				int star = pattern.indexOf('*');
+				if (star < 0)
+					compiled.keys.add(pattern);
+				else if (pattern.replace("*", "").isEmpty())
+					compiled.all = true;
+				else if (star == pattern.length() - 1)
+					compiled.prefixes.add(pattern.substring(0, star));
+				else
+					// a trailing wildcard leaves an empty last part, which matches the rest
+					compiled.wildcards.add(pattern.split("\\*", -1));
+			}
+			return empty ? null : compiled;
+		}
+
+		boolean matches(String key) {
+			if (all || keys.contains(key))
+				return true;
+			for (int i = 0; i < prefixes.size(); i++) {
+				if (key.startsWith(prefixes.get(i)))
+					return true;
+			}
+			for (int i = 0; i < wildcards.size(); i++) {
+				if (matches(key, wildcards.get(i)))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Matches the parts of a pattern, the first at the start of the key,
+		 * the last at its end and the others in order in between.
+		 */
+		static boolean matches(String key, String[] parts) {
+			String first = parts[0];
+			String last = parts[parts.length - 1];
+			if (key.length() < first.length() + last.length() || !key.startsWith(first) || !key.endsWith(last))
+				return false;
+			int from = first.length();
+			int to = key.length() - last.length();
+			for (int i = 1; i < parts.length - 1; i++) {
+				String part = parts[i];
+				if (part.isEmpty())
+					continue;
+				int pos = key.indexOf(part, from);
+				if (pos < 0 || pos + part.length() > to)
+					return false;
+				from = pos + part.length();
+			}
+			return true;
+		}
+	}
+}
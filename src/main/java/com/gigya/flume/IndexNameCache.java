@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+/**
+ * Resolves index names, "&lt;prefix&gt;-&lt;formatted date&gt;", caching the
+ * names of the last two time buckets of each prefix.</p>
+ *
+ * The size of a bucket is the finest unit in the date pattern: an hour, a day,
+ * a week, a month or a year. Events of a batch almost always fall in one or two
+ * buckets, so the date is only formatted when the bucket changes. Patterns
+ * with minutes, seconds or time zone names are formatted for every event.</p>
+ *
+ * Each bucket also keeps the start of the bulk action line for the types
+ * indexed into it (see {@link BulkRequestBody#indexAction}), so it's only
+ * rendered once per index and type.
+ */
+final class IndexNameCache {
+
+	private static final int NOT_CACHED = -1;
+	/** The most prefixes whose buckets are cached, others are formatted for every event */
+	static final int MAX_PREFIXES = 1024;
+	/** The most types whose action lines are cached per bucket */
+	static final int MAX_TYPES = 16;
+
+	private final FastDateFormat dateFormat;
+	/** The Calendar field of the bucket size, or NOT_CACHED */
+	private final int granularity;
+
+	private final ConcurrentMap<String, Buckets> prefixes = new ConcurrentHashMap<String, Buckets>();
+
+	IndexNameCache(FastDateFormat dateFormat) {
+		this.dateFormat = dateFormat;
+		this.granularity = granularity(dateFormat.getPattern());
+	}
+
+	FastDateFormat getDateFormat() {
+		return dateFormat;
+	}
+
+	String getIndexName(String indexPrefix, long timestamp) {
+		return getBucket(indexPrefix, timestamp).indexName;
+	}
+
+	/**
+	 * @return the start of the bulk action line for the index of the prefix 
+	 * and timestamp, and the type
+	 */
+	byte[] getIndexAction(String indexPrefix, long timestamp, String indexType) {
+		return getBucket(indexPrefix, timestamp).getIndexAction(indexType);
+	}
+
+	/**
+	 * @return the cached bucket of the timestamp, or a bucket that isn't 
+	 * cached if the name can't be cached
+	 */
+	private Bucket getBucket(String indexPrefix, long timestamp) {
+		Buckets buckets = null;
+		if (granularity != NOT_CACHED) {
+			buckets = prefixes.get(indexPrefix);
+			if (null == buckets && prefixes.size() < MAX_PREFIXES) {
+				buckets = new Buckets();
+				Buckets existing = prefixes.putIfAbsent(indexPrefix, buckets);
+				if (null != existing)
+					buckets = existing;
+			}
+		}
+		if (null != buckets) {
+			Bucket bucket = buckets.current;
+			if (null != bucket && bucket.contains(timestamp))
+				return bucket;
+			bucket = buckets.previous;
+			if (null != bucket && bucket.contains(timestamp))
+				return bucket;
+		}
+
+		String date = dateFormat.format(timestamp);
+		String indexName = new StringBuilder(indexPrefix).append('-').append(date).toString();
+		Bucket bucket = null;
+		if (null != buckets) {
+			bucket = newBucket(timestamp, date, indexName);
+			if (null != bucket) {
+				buckets.previous = buckets.current;
+				buckets.current = bucket;
+			}
+		}
+		return null != bucket ? bucket : new Bucket(timestamp, timestamp, indexName);
+	}
+
+	private Bucket newBucket(long timestamp, String date, String indexName) {
+		Calendar calendar = Calendar.getInstance(dateFormat.getTimeZone(), dateFormat.getLocale());
+		calendar.setTimeInMillis(timestamp);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		if (granularity != Calendar.HOUR_OF_DAY)
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+		long start;
+		long end;
+		switch (granularity) {
+		case Calendar.HOUR_OF_DAY:
+			start = calendar.getTimeInMillis();
+			end = start + 60 * 60 * 1000L;
+			break;
+		case Calendar.DAY_OF_MONTH:
+			start = calendar.getTimeInMillis();
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+			end = calendar.getTimeInMillis();
+			break;
+		case Calendar.WEEK_OF_YEAR:
+			// weeks are cut at month starts, where the week of month and the year may change
+			while (calendar.get(Calendar.DAY_OF_WEEK) != calendar.getFirstDayOfWeek()
+					&& calendar.get(Calendar.DAY_OF_MONTH) != 1) {
+				calendar.add(Calendar.DAY_OF_MONTH, -1);
+			}
+			start = calendar.getTimeInMillis();
+			do {
+				calendar.add(Calendar.DAY_OF_MONTH, 1);
+			} while (calendar.get(Calendar.DAY_OF_WEEK) != calendar.getFirstDayOfWeek()
+					&& calendar.get(Calendar.DAY_OF_MONTH) != 1);
+			end = calendar.getTimeInMillis();
+			break;
+		case Calendar.MONTH:
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+			start = calendar.getTimeInMillis();
+			calendar.add(Calendar.MONTH, 1);
+			end = calendar.getTimeInMillis();
+			break;
+		default:
+			calendar.set(Calendar.DAY_OF_YEAR, 1);
+			start = calendar.getTimeInMillis();
+			calendar.add(Calendar.YEAR, 1);
+			end = calendar.getTimeInMillis();
+			break;
+		}
+		// don't trust the calendar math for unusual patterns and time zones
+		if (timestamp < start || timestamp >= end || !date.equals(dateFormat.format(start))
+				|| !date.equals(dateFormat.format(end - 1)))
+			return null;
+		return new Bucket(start, end, indexName);
+	}
+
+	/**
+	 * @return the Calendar field of the finest unit in a date pattern, or
+	 * NOT_CACHED if the pattern has units finer than an hour
+	 */
+	static int granularity(String pattern) {
+		int granularity = Calendar.YEAR;
+		boolean quoted = false;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+				continue;
+			}
+			if (quoted || !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')))
+				continue;
+			switch (c) {
+			case 'y':
+			case 'G':
+				break;
+			case 'M':
+				granularity = finer(granularity, Calendar.MONTH);
+				break;
+			case 'w':
+			case 'W':
+				granularity = finer(granularity, Calendar.WEEK_OF_YEAR);
+				break;
+			case 'd':
+			case 'D':
+			case 'E':
+			case 'F':
+				granularity = finer(granularity, Calendar.DAY_OF_MONTH);
+				break;
+			case 'H':
+			case 'h':
+			case 'K':
+			case 'k':
+			case 'a':
+				granularity = finer(granularity, Calendar.HOUR_OF_DAY);
+				break;
+			default:
+				// minutes, seconds, time zones and anything unknown
+				return NOT_CACHED;
+			}
+		}
+		return granularity;
+	}
+
+	private static int finer(int granularity, int field) {
+		return rank(field) < rank(granularity) ? field : granularity;
+	}
+
+	private static int rank(int field) {
+		switch (field) {
+		case Calendar.HOUR_OF_DAY:
+			return 0;
+		case Calendar.DAY_OF_MONTH:
+			return 1;
+		case Calendar.WEEK_OF_YEAR:
+			return 2;
+		case Calendar.MONTH:
+			return 3;
+		default:
+			return 4;
+		}
+	}
+
+	/**
+	 * The last two buckets of a prefix. The buckets are immutable, a thread may
+	 * miss another's update and that's fine.
+	 */
+	private static final class Buckets {
+		volatile Bucket current;
+		volatile Bucket previous;
+	}
+
+	private static final class Bucket {
+		final long start;
+		final long end;
+		final String indexName;
+		// the types' action lines, replaced as a whole when a type is added
+		private volatile IndexAction[] actions = new IndexAction[0];
+
+		Bucket(long start, long end, String indexName) {
+			this.start = start;
+			this.end = end;
+			this.indexName = indexName;
+		}
+
+		boolean contains(long timestamp) {
+			return timestamp >= start && timestamp < end;
+		}
+
+		byte[] getIndexAction(String indexType) {
+			IndexAction[] actions = this.actions;
+			for (IndexAction action : actions) {
+				if (action.indexType.equals(indexType))
+					return action.bytes;
+			}
+			byte[] bytes = BulkRequestBody.indexAction(indexName, indexType);
+			if (actions.length < MAX_TYPES) {
+				actions = Arrays.copyOf(actions, actions.length + 1);
+				actions[actions.length - 1] = new IndexAction(indexType, bytes);
+				this.actions = actions;
+			}
+			return bytes;
+		}
+	}
+
+	private static final class IndexAction {
+		final String indexType;
+		final byte[] bytes;
+
+		IndexAction(String indexType, byte[] bytes) {
+			this.indexType = indexType;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the document IDs that were recently indexed, so events sent
+ * again (e.g. when Flume retries a transaction) can be dropped.</p>
+ *
+ * The IDs are kept in two Bloom filters, the current one and the previous
+ * one, which take half of the memory budget each. The current filter becomes
+ * the previous one, and the previous one is cleared, every <i>window</i>
+ * milliseconds, or sooner when it holds as many IDs as it can at the given
+ * false positive rate. So an ID is remembered for at least one window, as
+ * long as fewer IDs than a filter's capacity are indexed in that time.</p>
+ *
+ * An ID is looked up in both filters, so each is sized for half the given
+ * false positive rate, keeping the chance of either matching within the
+ * rate. A false positive drops an event that was never indexed. Not thread
+ * safe, except for the counters.
+ */
+final class RecentIdFilter {
+
+	private final long windowMs;
+	private final int numHashes;
+	private final long numBits;
+	private final long capacity;
+
+	private long[] current;
+	private long[] previous;
+	private long currentCount;
+	private long rotateAt = Long.MIN_VALUE;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param windowMs how long IDs are remembered for, at least
+	 * @param memoryBytes the memory of both filters together
+	 * @param falsePositiveRate the chance an ID that was never added is
+	 * reported as recent, e.g. 0.000001
+	 */
+	RecentIdFilter(long windowMs, long memoryBytes, double falsePositiveRate) {
+		if (windowMs <= 0)
+			throw new IllegalArgumentException("The window must be positive: " + windowMs);
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("The false positive rate must be between 0 and 1: "
+					+ falsePositiveRate);
+		this.windowMs = windowMs;
+		// in whole longs, at most the largest array
+		long words = Math.min(Math.max(memoryBytes / 2 / 8, 1), Integer.MAX_VALUE - 8);
+		this.numBits = words * 64;
+		// the optimal number of hashes for half the rate, and the IDs a filter holds at that rate
+		double filterRate = falsePositiveRate / 2;
+		this.numHashes = Math.max(1, (int) Math.round(-Math.log(filterRate) / Math.log(2)));
+		this.capacity = Math.max(1, (long) (numBits * Math.pow(Math.log(2), 2) / -Math.log(filterRate)));
+		this.current = new long[(int) words];
+		this.previous = new long[(int) words];
+	}
+
+	/**
+	 * Checks whether an ID was recently added, counting a hit or a miss.
+	 */
+	boolean contains(String id, long nowMs) {
+		rotate(nowMs);
+		long hash1 = hash(id, 0x9E3779B97F4A7C15L);
+		long hash2 = hash(id, 0xC2B2AE3D27D4EB4FL) | 1;
+		if (contains(current, hash1, hash2) || contains(previous, hash1, hash2)) {
+			hits.incrementAndGet();
+			return true;
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	void add(String id, long nowMs) {
+		rotate(nowMs);
+		if (currentCount >= capacity)
+			rotate();
+		long hash1 = hash(id, 0x9E3779B97F4A7C15L);
+		long hash2 = hash(id, 0xC2B2AE3D27D4EB4FL) | 1;
+		long combined = hash1;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = (combined & Long.MAX_VALUE) % numBits;
+			current[(int) (bit >>> 6)] |= 1L << bit;
+			combined += hash2;
+		}
+		currentCount++;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getCapacity() {
+		return capacity;
+	}
+
+	private boolean contains(long[] bits, long hash1, long hash2) {
+		long combined = hash1;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = (combined & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+			combined += hash2;
+		}
+		return true;
+	}
+
+	private void rotate(long nowMs) {
+		if (rotateAt == Long.MIN_VALUE) {
+			rotateAt = nowMs + windowMs;
+		} else if (nowMs >= rotateAt) {
+			// nothing in the previous filter is recent after two windows
+			if (nowMs >= rotateAt + windowMs)
+				rotate();
+			rotate();
+			rotateAt = nowMs + windowMs;
+		}
+	}
+
+	private void rotate() {
+		long[] cleared = previous;
+		Arrays.fill(cleared, 0);
+		previous = current;
+		current = cleared;
+		currentCount = 0;
+	}
+
+	/**
+	 * A 64 bit hash of the ID's chars, the IDs are hashes already so it only
+	 * needs to spread them.
+	 */
+	private static long hash(String id, long seed) {
+		long h = seed ^ id.length();
+		for (int i = 0; i < id.length(); i++) {
+			h ^= id.charAt(i);
+			h *= 0x100000001B3L;
+			h = Long.rotateLeft(h, 29);
+		}
+		// murmur3's finalizer
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and sampled timers for the stages of serializing events,
+ * published as a JMX MBean next to the sink's counters
+ * ("org.apache.flume.sink:type=&lt;name&gt;,component=serializer", so it
+ * doesn't clash with a sink counter of the same name).</p>
+ *
+ * Counters are striped, so sink and worker threads don't contend on them.
+ * Only one in <i>sampleRate</i> events is timed, picked at random, to keep
+ * the cost of reading the clock off most events. The serializer holds no
+ * metrics when they are off, so there's nothing to count or time.
+ */
+public class SerializerMetrics implements SerializerMetricsMBean {
+
+	static final int SERIALIZE = 0;
+	static final int OBJECT_FIELDS = 1;
+	static final int COLLATION = 2;
+	static final int DOCUMENT_ID = 3;
+	static final int INDEX_REQUEST = 4;
+	private static final int STAGES = 5;
+
+	private static final String DOMAIN = "org.apache.flume.sink";
+	private static final String COMPONENT = "serializer";
+	private static final Logger logger = LoggerFactory.getLogger(SerializerMetrics.class);
+	// the metrics of the serializer writing an event on the current thread,
+	// for the ContentBuilderUtilEx helpers to count into
+	private static final ThreadLocal<SerializerMetrics> bound = new ThreadLocal<SerializerMetrics>();
+	// whether any serializer has metrics, so the helpers don't look them up otherwise
+	private static volatile boolean anyMetrics = false;
+
+	private final int sampleRate;
+	private final StripedCounter events = new StripedCounter();
+	private final StripedCounter bytesOut = new StripedCounter();
+	private final StripedCounter objectFieldsSkipped = new StripedCounter();
+	private final StripedCounter fieldsRenamed = new StripedCounter();
+	private final StripedCounter bodyFieldsSkipped = new StripedCounter();
+	private final StripedCounter headersDropped = new StripedCounter();
+	private final StripedCounter fieldsTruncated = new StripedCounter();
+	private final StripedCounter jsonParseFailures = new StripedCounter();
+	private final StripedCounter objectPrecheckRejections = new StripedCounter();
+	private final StripedCounter[] stageNanos = new StripedCounter[STAGES];
+	private final StripedCounter[] stageSamples = new StripedCounter[STAGES];
+	// null when there's no symbol table
+	private volatile SymbolTable symbols;
+	private ObjectName objectName;
+
+	/**
+	 * @param sampleRate time one in this many events, 1 to time them all
+	 */
+	SerializerMetrics(int sampleRate) {
+		this.sampleRate = Math.max(sampleRate, 1);
+		for (int i = 0; i < STAGES; i++) {
+			stageNanos[i] = new StripedCounter();
+			stageSamples[i] = new StripedCounter();
+		}
+		anyMetrics = true;
+	}
+
+	/**
+	 * @return whether to time the current event
+	 */
+	boolean sample() {
+		return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+	}
+
+	void countEvent() {
+		events.increment();
+	}
+
+	void countBytes(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	void setSymbolTable(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	void countObjectFieldSkipped() {
+		objectFieldsSkipped.increment();
+	}
+
+	void countFieldRenamed() {
+		fieldsRenamed.increment();
+	}
+
+	void countBodyFieldSkipped() {
+		bodyFieldsSkipped.increment();
+	}
+
+	void countHeaderDropped() {
+		headersDropped.increment();
+	}
+
+	/**
+	 * Has the values truncated and the parse failures of the helpers counted
+	 * in these metrics, until {@link #unbind()} on the same thread.
+	 */
+	void bind() {
+		bound.set(this);
+	}
+
+	static void unbind() {
+		bound.set(null);
+	}
+
+	static void countFieldTruncated() {
+		SerializerMetrics metrics = boundMetrics();
+		if (null != metrics)
+			metrics.fieldsTruncated.increment();
+	}
+
+	static void countJsonParseFailure() {
+		SerializerMetrics metrics = boundMetrics();
+		if (null != metrics)
+			metrics.jsonParseFailures.increment();
+	}
+
+	static void countObjectPrecheckRejected() {
+		SerializerMetrics metrics = boundMetrics();
+		if (null != metrics)
+			metrics.objectPrecheckRejections.increment();
+	}
+
+	private static SerializerMetrics boundMetrics() {
+		return anyMetrics ? bound.get() : null;
+	}
+
+	/**
+	 * Records the time of a sampled stage.
+	 */
+	void record(int stage, long nanos) {
+		stageNanos[stage].add(nanos);
+		stageSamples[stage].increment();
+	}
+
+	/**
+	 * Registers the MBean, replacing serializer metrics registered with the
+	 * same name, but never an MBean of another kind.
+	 */
+	void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + name + ",component=" + COMPONENT);
+			if (server.isRegistered(objectName)) {
+				if (!server.isInstanceOf(objectName, SerializerMetrics.class.getName())) {
+					logger.warn("Not registering serializer metrics {}, the name is taken by another MBean",
+							objectName);
+					return;
+				}
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			logger.warn("Failed registering serializer metrics " + name, e);
+		}
+	}
+
+	void unregister() {
+		if (null == objectName)
+			return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		} catch (JMException e) {
+			logger.warn("Failed unregistering serializer metrics " + objectName, e);
+		}
+		objectName = null;
+	}
+
+	@Override
+	public long getEventCount() {
+		return events.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getSampledEventCount() {
+		return stageSamples[SERIALIZE].sum();
+	}
+
+	@Override
+	public long getSerializeTimeAvg() {
+		return average(SERIALIZE);
+	}
+
+	@Override
+	public long getObjectFieldsTimeAvg() {
+		return average(OBJECT_FIELDS);
+	}
+
+	@Override
+	public long getCollationTimeAvg() {
+		return average(COLLATION);
+	}
+
+	@Override
+	public long getDocumentIdTimeAvg() {
+		return average(DOCUMENT_ID);
+	}
+
+	@Override
+	public long getIndexRequestTimeAvg() {
+		return average(INDEX_REQUEST);
+	}
+
+	@Override
+	public long getFieldsTruncated() {
+		return fieldsTruncated.sum();
+	}
+
+	@Override
+	public long getJsonParseFailures() {
+		return jsonParseFailures.sum();
+	}
+
+	@Override
+	public long getObjectPrecheckRejections() {
+		return objectPrecheckRejections.sum();
+	}
+
+	@Override
+	public long getObjectFieldsSkipped() {
+		return objectFieldsSkipped.sum();
+	}
+
+	@Override
+	public long getFieldsRenamed() {
+		return fieldsRenamed.sum();
+	}
+
+	@Override
+	public long getBodyFieldsSkipped() {
+		return bodyFieldsSkipped.sum();
+	}
+
+	@Override
+	public long getHeadersDropped() {
+		return headersDropped.sum();
+	}
+
+	@Override
+	public long getSymbolHits() {
+		SymbolTable symbols = this.symbols;
+		return null != symbols ? symbols.getHits() : 0;
+	}
+
+	@Override
+	public long getSymbolMisses() {
+		SymbolTable symbols = this.symbols;
+		return null != symbols ? symbols.getMisses() : 0;
+	}
+
+	@Override
+	public int getSymbolCount() {
+		SymbolTable symbols = this.symbols;
+		return null != symbols ? symbols.size() : 0;
+	}
+
+	@Override
+	public void reset() {
+		SymbolTable symbols = this.symbols;
+		if (null != symbols)
+			symbols.resetCounters();
+		events.reset();
+		bytesOut.reset();
+		objectFieldsSkipped.reset();
+		fieldsRenamed.reset();
+		bodyFieldsSkipped.reset();
+		headersDropped.reset();
+		fieldsTruncated.reset();
+		jsonParseFailures.reset();
+		objectPrecheckRejections.reset();
+		for (int i = 0; i < STAGES; i++) {
+			stageNanos[i].reset();
+			stageSamples[i].reset();
+		}
+	}
+
+	/**
+	 * The object field and collation stages are averaged over all the
+	 * sampled events, so the stages add up to the serialize time.
+	 */
+	private long average(int stage) {
+		long samples = (stage == OBJECT_FIELDS || stage == COLLATION) ? stageSamples[SERIALIZE].sum()
+				: stageSamples[stage].sum();
+		return samples == 0 ? 0 : stageNanos[stage].sum() / samples;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+/**
+ * The JMX view of {@link SerializerMetrics}. Times are averages, in
+ * nanoseconds, of the sampled events.
+ */
+public interface SerializerMetricsMBean {
+
+	long getEventCount();
+
+	long getBytesOut();
+
+	long getSampledEventCount();
+
+	/** The whole document, including the stages below */
+	long getSerializeTimeAvg();
+
+	/** Parsing and writing objectFields */
+	long getObjectFieldsTimeAvg();
+
+	/** Collating headers into objects and writing them */
+	long getCollationTimeAvg();
+
+	/** Generating document IDs from events or serialized documents */
+	long getDocumentIdTimeAvg();
+
+	/** Creating index requests and bulk items with the factory */
+	long getIndexRequestTimeAvg();
+
+	/** String values truncated by maxFieldBytes */
+	long getFieldsTruncated();
+
+	/** Values that looked like JSON but failed to parse */
+	long getJsonParseFailures();
+
+	/** Of the JSON parse failures, values rejected by a cheap check without parsing */
+	long getObjectPrecheckRejections();
+
+	/** objectFields values written as strings without trying to parse them, see adaptiveObjectFields */
+	long getObjectFieldsSkipped();
+
+	/** Values written under another name, as their type conflicts with the field's, see trackFieldTypes */
+	long getFieldsRenamed();
+
+	/** Fields of the body skipped as they were written from the headers, see bodyAsDocument */
+	long getBodyFieldsSkipped();
+
+	/** Headers that weren't written, see includeHeaders and excludeHeaders */
+	long getHeadersDropped();
+
+	/** Header values written from the symbol table, without encoding them, see symbolTableSize */
+	long getSymbolHits();
+
+	/** Header values looked up in the symbol table that weren't there */
+	long getSymbolMisses();
+
+	/** Values in the symbol table */
+	int getSymbolCount();
+
+	void reset();
+}
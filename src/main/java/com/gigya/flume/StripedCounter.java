@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that threads add to without contending on a single value. Each
+ * thread adds to one of several cells, a cache line apart, and reading the
+ * counter sums them up.
+ */
+final class StripedCounter {
+
+	private static final int STRIPES = stripes();
+	// longs in a cache line, so threads don't share lines
+	private static final int PAD = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	void increment() {
+		add(1);
+	}
+
+	void add(long x) {
+		cells.getAndAdd((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD, x);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PAD);
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PAD, 0);
+	}
+
+	/**
+	 * @return twice the number of processors, rounded up to a power of 2
+	 */
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 256)
+			stripes <<= 1;
+		return stripes;
+	}
+}
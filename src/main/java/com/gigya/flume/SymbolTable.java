@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.common.base.Charsets;
+
+/**
+ * The UTF-8 bytes of header values that repeat across events, such as the
+ * host, type and source headers, so they are written without encoding them
+ * again for every event.</p>
+ *
+ * Values are added the first time they are looked up, until the table is
+ * full. Long values are never added, they rarely repeat.
+ */
+final class SymbolTable {
+
+	/** The longest value, in chars, kept in the table */
+	static final int MAX_SYMBOL_LENGTH = 128;
+
+	private final ConcurrentMap<String, byte[]> symbols = new ConcurrentHashMap<String, byte[]>();
+	private final int maxSymbols;
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+
+	SymbolTable(int maxSymbols) {
+		this.maxSymbols = maxSymbols;
+	}
+
+	/**
+	 * @return the value's UTF-8 bytes, or null if it isn't in the table yet
+	 */
+	byte[] get(String value) {
+		if (value.length() > MAX_SYMBOL_LENGTH) {
+			misses.increment();
+			return null;
+		}
+		byte[] utf8 = symbols.get(value);
+		if (null != utf8) {
+			hits.increment();
+			return utf8;
+		}
+		misses.increment();
+		if (symbols.size() < maxSymbols && !hasSurrogates(value))
+			symbols.putIfAbsent(value, value.getBytes(Charsets.UTF_8));
+		return null;
+	}
+
+	/**
+	 * The generator escapes surrogate pairs when writing chars, but not when
+	 * writing UTF-8 bytes, so such values are always written as strings.
+	 */
+	private static boolean hasSurrogates(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (Character.isSurrogate(value.charAt(i)))
+				return true;
+		}
+		return false;
+	}
+
+	int size() {
+		return symbols.size();
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	void resetCounters() {
+		hits.reset();
+		misses.reset();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentString;
+
+/**
+ * Writes the @timestamp field of events.</p>
+ *
+ * The ISO 8601 format is the same as writing a {@link Date} into an
+ * {@link XContentBuilder} (e.g. "2014-11-03T07:34:35.610Z"). Events mostly
+ * arrive in timestamp order, so the formatted date and time of the last
+ * second is kept per thread and only the milliseconds are filled in. The
+ * timestamp can also be written as milliseconds since the epoch.
+ */
+public abstract class TimestampWriter {
+
+	/** ISO 8601 in UTC, with milliseconds */
+	public static final String ISO = "iso";
+	/** Milliseconds since the epoch, as a number */
+	public static final String EPOCH_MILLIS = "epoch_millis";
+
+	private static final XContentString TIMESTAMP_FIELD = new XContentString("@timestamp");
+
+	/**
+	 * @return the writer for the given format name (case insensitive)
+	 * @throws IllegalArgumentException for an unknown format
+	 */
+	public static TimestampWriter create(String format) {
+		if (ISO.equalsIgnoreCase(format))
+			return new Iso();
+		if (EPOCH_MILLIS.equalsIgnoreCase(format))
+			return new EpochMillis();
+		throw new IllegalArgumentException("Unknown timestamp format: " + format);
+	}
+
+	/**
+	 * Writes the @timestamp field.
+	 */
+	public void writeTimestamp(XContentBuilder builder, long timestampMs) throws IOException {
+		builder.generator().writeFieldName(TIMESTAMP_FIELD);
+		writeValue(builder, timestampMs);
+	}
+
+	public abstract void writeValue(XContentBuilder builder, long timestampMs) throws IOException;
+
+	static class EpochMillis extends TimestampWriter {
+		@Override
+		public void writeValue(XContentBuilder builder, long timestampMs) throws IOException {
+			builder.value(timestampMs);
+		}
+	}
+
+	static class Iso extends TimestampWriter {
+		// yyyy-MM-ddTHH:mm:ss.SSSZ
+		private static final int LENGTH = 24;
+		private static final int MILLIS_OFFSET = 20;
+		// years 0000 to 9999, other years are formatted differently
+		private static final long MIN_TIMESTAMP = -62167219200000L;
+		private static final long MAX_TIMESTAMP = 253402300799999L;
+
+		private final DateTimeFormatter printer = ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
+
+		private final ThreadLocal<CachedSecond> seconds = new ThreadLocal<CachedSecond>() {
+			@Override
+			protected CachedSecond initialValue() {
+				return new CachedSecond();
+			}
+		};
+
+		@Override
+		public void writeValue(XContentBuilder builder, long timestampMs) throws IOException {
+			if (timestampMs < MIN_TIMESTAMP || timestampMs > MAX_TIMESTAMP) {
+				builder.value(new Date(timestampMs));
+				return;
+			}
+			long millis = timestampMs % 1000;
+			if (millis < 0)
+				millis += 1000;
+			long second = timestampMs - millis;
+			CachedSecond cached = seconds.get();
+			if (second != cached.second) {
+				String formatted = printer.print(second);
+				formatted.getChars(0, LENGTH, cached.chars, 0);
+				cached.second = second;
+			}
+			char[] chars = cached.chars;
+			int ms = (int) millis;
+			chars[MILLIS_OFFSET] = (char) ('0' + ms / 100);
+			chars[MILLIS_OFFSET + 1] = (char) ('0' + ms / 10 % 10);
+			chars[MILLIS_OFFSET + 2] = (char) ('0' + ms % 10);
+			builder.generator().writeString(chars, 0, LENGTH);
+		}
+	}
+
+	private static class CachedSecond {
+		long second = Long.MIN_VALUE;
+		final char[] chars = new char[Iso.LENGTH];
+	}
+}
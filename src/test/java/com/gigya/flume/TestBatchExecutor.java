@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+public class TestBatchExecutor {
+
+	@Test
+	public void shouldKeepChunkOrder() throws Exception {
+		BatchExecutor executor = new BatchExecutor(4, 10);
+		try {
+			List<Event> events = events(1001);
+			assertFalse(executor.isParallel(9));
+			assertTrue(executor.isParallel(events.size()));
+			List<List<String>> chunks = executor.run(events, new BatchExecutor.ChunkTask<List<String>>() {
+				@Override
+				public List<String> run(List<Event> chunk) throws IOException {
+					List<String> bodies = new ArrayList<String>();
+					for (Event event : chunk)
+						bodies.add(new String(event.getBody(), "UTF-8"));
+					return bodies;
+				}
+			});
+			int i = 0;
+			for (List<String> chunk : chunks) {
+				for (String body : chunk)
+					assertEquals(String.valueOf(i++), body);
+			}
+			assertEquals(events.size(), i);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void shouldThrowChunkFailure() throws Exception {
+		BatchExecutor executor = new BatchExecutor(2, 10);
+		try {
+			executor.run(events(100), new BatchExecutor.ChunkTask<Object>() {
+				@Override
+				public Object run(List<Event> chunk) throws IOException {
+					if (new String(chunk.get(0).getBody(), "UTF-8").equals("0"))
+						return null;
+					throw new IOException("failed");
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static List<Event> events(int count) throws Exception {
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < count; i++)
+			events.add(EventBuilder.withBody(String.valueOf(i).getBytes("UTF-8")));
+		return events;
+	}
+}
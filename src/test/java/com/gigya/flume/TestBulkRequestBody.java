@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+public class TestBulkRequestBody {
+
+	@Test
+	public void shouldWriteActionLines() throws Exception {
+		BulkRequestBody body = new BulkRequestBody(64);
+		body.startItem("flume-2014.11.03", "log", 0, "abc", null);
+		writeUtf8(body, "{\"a\":1}");
+		assertNull(body.endItem());
+		body.startItem("flume-2014.11.03", "log", 60000, null, null);
+		writeUtf8(body, "{\"b\":2}");
+		body.endItem();
+		body.startItem("in\"dex", "té\n", 0, null, null);
+		writeUtf8(body, "{}");
+		body.endItem();
+
+		assertEquals(3, body.itemCount());
+		assertEquals("{\"index\":{\"_index\":\"flume-2014.11.03\",\"_type\":\"log\",\"_id\":\"abc\"}}\n{\"a\":1}\n"
+				+ "{\"index\":{\"_index\":\"flume-2014.11.03\",\"_type\":\"log\",\"_ttl\":\"60000\"}}\n{\"b\":2}\n"
+				+ "{\"index\":{\"_index\":\"in\\\"dex\",\"_type\":\"té\\u000a\"}}\n{}\n", body.bytes().toUtf8());
+	}
+
+	@Test
+	public void shouldWriteRenderedActionAndRouting() throws Exception {
+		BulkRequestBody body = new BulkRequestBody(64);
+		byte[] indexAction = BulkRequestBody.indexAction("flume-2014.11.03", "log");
+		body.startItem(indexAction, "tenant\"1", 60000, "abc", null);
+		writeUtf8(body, "{\"a\":1}");
+		body.endItem();
+		body.startItem(indexAction, null, 0, null, null);
+		writeUtf8(body, "{}");
+		body.endItem();
+
+		assertEquals("{\"index\":{\"_index\":\"flume-2014.11.03\",\"_type\":\"log\",\"_routing\":\"tenant\\\"1\","
+				+ "\"_ttl\":\"60000\",\"_id\":\"abc\"}}\n{\"a\":1}\n"
+				+ "{\"index\":{\"_index\":\"flume-2014.11.03\",\"_type\":\"log\"}}\n{}\n", body.bytes().toUtf8());
+	}
+
+	@Test
+	public void shouldFillInGeneratedId() throws Exception {
+		BulkRequestBody body = new BulkRequestBody();
+		String document = "{\"@message\":\"test body\"}";
+		body.startItem("flume", "log", 0, null, DocumentHasher.create(DocumentHasher.MD5));
+		writeUtf8(body, document);
+		String id = body.endItem();
+
+		byte[] data = document.getBytes("UTF-8");
+		assertEquals(DocumentHasher.create(DocumentHasher.MD5).documentId(data, 0, data.length), id);
+
+		BytesReference bytes = body.bytes();
+		BulkRequest request = new BulkRequest().add(bytes.array(), bytes.arrayOffset(), bytes.length(), false);
+		IndexRequest item = (IndexRequest) request.requests().get(0);
+		assertEquals("flume", item.index());
+		assertEquals("log", item.type());
+		assertEquals(id, item.id());
+		assertEquals(document, item.source().toUtf8());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldNotHandOutIncompleteItem() throws Exception {
+		BulkRequestBody body = new BulkRequestBody();
+		body.startItem("flume", "log", 0, null, null);
+		body.bytes();
+	}
+
+	@Test
+	public void shouldCopySingleItems() throws Exception {
+		BulkRequestBody body = new BulkRequestBody(64);
+		for (int i = 0; i < 3; i++) {
+			body.startItem("flume", "log", 0, "id" + i, null);
+			writeUtf8(body, "{\"n\":" + i + "}");
+			body.endItem();
+		}
+		assertEquals("{\"n\":1}", body.itemDocument(1).toUtf8());
+
+		BulkRequestBody retry = new BulkRequestBody(64);
+		retry.appendItem(body, 2);
+		retry.appendItem(body, 0);
+		assertEquals(2, retry.itemCount());
+		assertEquals("{\"index\":{\"_index\":\"flume\",\"_type\":\"log\",\"_id\":\"id2\"}}\n{\"n\":2}\n"
+				+ "{\"index\":{\"_index\":\"flume\",\"_type\":\"log\",\"_id\":\"id0\"}}\n{\"n\":0}\n",
+				retry.bytes().toUtf8());
+		assertEquals("{\"n\":0}", retry.itemDocument(1).toUtf8());
+	}
+
+	@Test
+	public void shouldRemoveLastItem() throws Exception {
+		BulkRequestBody body = new BulkRequestBody(64);
+		body.startItem("flume", "log", 0, "a", null);
+		writeUtf8(body, "{\"n\":1}");
+		body.endItem();
+		body.startItem("flume", "log", 0, "b", null);
+		writeUtf8(body, "{\"n\":2}");
+		body.endItem();
+		body.removeLastItem();
+
+		assertEquals(1, body.itemCount());
+		assertEquals("{\"index\":{\"_index\":\"flume\",\"_type\":\"log\",\"_id\":\"a\"}}\n{\"n\":1}\n",
+				body.bytes().toUtf8());
+	}
+
+	private static void writeUtf8(BulkRequestBody body, String s) throws Exception {
+		byte[] b = s.getBytes("UTF-8");
+		body.write(b, 0, b.length);
+	}
+}
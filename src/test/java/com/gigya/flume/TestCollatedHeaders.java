@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.SimpleEvent;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+public class TestCollatedHeaders {
+
+	@Test
+	public void shouldSortByPath() throws Exception {
+		CollatedHeaders headers = new CollatedHeaders();
+		for (String key : new String[] { "a-x", "a.b.c", "b", "a.b", "a" })
+			headers.add(new FieldPlan(key, true, -1, null), key);
+		headers.sort();
+		assertEquals("a", headers.value(0));
+		assertEquals("a.b", headers.value(1));
+		assertEquals("a.b.c", headers.value(2));
+		assertEquals("a-x", headers.value(3));
+		assertEquals("b", headers.value(4));
+		assertEquals(3, headers.endOfGroup(0, 0, 5));
+		assertEquals(3, headers.endOfGroup(1, 1, 3));
+		assertEquals(4, headers.endOfGroup(3, 0, 5));
+		headers.clear();
+		assertEquals(0, headers.size());
+	}
+
+	@Test
+	public void shouldSortByRankedPlans() throws Exception {
+		List<FieldPlan> plans = new ArrayList<FieldPlan>();
+		for (String key : new String[] { "a-x", "a.b.c", "b", "a.b", "a" })
+			plans.add(new FieldPlan(key, true, -1, null));
+		CollatedHeaders.rank(plans.subList(0, 4), 1);
+		CollatedHeaders headers = new CollatedHeaders();
+		for (int i = 0; i < 4; i++)
+			headers.add(plans.get(i), plans.get(i).key);
+		headers.sort(1);
+		assertEquals("a.b", headers.value(0));
+		assertEquals("a.b.c", headers.value(1));
+		assertEquals("a-x", headers.value(2));
+		assertEquals("b", headers.value(3));
+
+		// a plan that wasn't ranked
+		headers.clear();
+		for (int i = 4; i >= 0; i--)
+			headers.add(plans.get(i), plans.get(i).key);
+		headers.sort(1);
+		assertEquals("a", headers.value(0));
+		assertEquals("a.b", headers.value(1));
+		assertEquals("b", headers.value(4));
+	}
+
+	@Test
+	public void shouldWriteCollisionsUnderTheKeyLeft() throws Exception {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("a", "x");
+		headers.put("a.b", "y");
+		headers.put("c.d", "1");
+		headers.put("c.e.f", "2");
+		Map<String, Object> actual = serialize(newSerializer(-1, false), headers);
+		assertEquals("x", actual.get("a"));
+		assertEquals("y", actual.get("a.b"));
+		assertEquals("{d=1, e={f=2}}", actual.get("c").toString());
+	}
+
+	@Test
+	public void shouldWriteTheSameAsCollatingMapsInSortedOrder() throws Exception {
+		Random random = new Random(1);
+		String[] segments = { "a", "b", "p" };
+		String[] values = { "v", "{\"b\":1,\"q\":{\"z\":2}}", "{\"a\":", "{\"p\":\"x\"}" };
+		for (int depth : new int[] { -1, 1 }) {
+			for (boolean stream : new boolean[] { false, true }) {
+				ExtendedElasticSearchLogStashEventSerializer maps = newSerializer(depth, stream);
+				ExtendedElasticSearchLogStashEventSerializer fixture = newSerializer(depth, stream);
+				Context context = new Context();
+				context.put("streamCollatedFields", "true");
+				fixture.configure(context);
+				for (int n = 0; n < 500; n++) {
+					Map<String, String> headers = new HashMap<String, String>();
+					int count = 1 + random.nextInt(6);
+					for (int h = 0; h < count; h++) {
+						StringBuilder key = new StringBuilder(segments[random.nextInt(segments.length)]);
+						for (int level = random.nextInt(3); level > 0; level--)
+							key.append('.').append(segments[random.nextInt(segments.length)]);
+						headers.put(key.toString(), values[random.nextInt(values.length)]);
+					}
+					Map<String, Object> expected = serialize(maps, sortByPath(headers, depth));
+					Map<String, Object> actual = serialize(fixture, headers);
+					assertEquals(headers.toString(), expected, actual);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldComparePathsBySegment() throws Exception {
+		assertTrue(CollatedHeaders.comparePaths(new String[] { "a" }, new String[] { "a", "b" }) < 0);
+		assertTrue(CollatedHeaders.comparePaths(new String[] { "a", "b" }, new String[] { "a-x" }) < 0);
+		assertEquals(0, CollatedHeaders.comparePaths(new String[] { "a", "b" }, new String[] { "a", "b" }));
+	}
+
+	private static ExtendedElasticSearchLogStashEventSerializer newSerializer(int depth, boolean stream) {
+		ExtendedElasticSearchLogStashEventSerializer serializer = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = new Context();
+		context.put("removeFieldsPrefix", "true");
+		context.put("collateObjects", "true");
+		context.put("collateDepth", String.valueOf(depth));
+		context.put("objectFields", "p,a.p");
+		context.put("streamObjectFields", String.valueOf(stream));
+		serializer.configure(context);
+		return serializer;
+	}
+
+	/**
+	 * The headers in the order the streamed collation writes them.
+	 */
+	private static Map<String, String> sortByPath(Map<String, String> headers, final int depth) {
+		List<String> keys = new ArrayList<String>(headers.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String key1, String key2) {
+				return CollatedHeaders.comparePaths(new FieldPlan(key1, true, depth, null).segments,
+						new FieldPlan(key2, true, depth, null).segments);
+			}
+		});
+		Map<String, String> sorted = new LinkedHashMap<String, String>();
+		for (String key : keys)
+			sorted.put(key, headers.get(key));
+		return sorted;
+	}
+
+	private static Map<String, Object> serialize(ExtendedElasticSearchLogStashEventSerializer serializer,
+			Map<String, String> headers) throws Exception {
+		// EventBuilder copies the headers into a HashMap, losing their order
+		Event event = new SimpleEvent();
+		event.setBody("body".getBytes());
+		event.setHeaders(headers);
+		return XContentHelper.convertToMap(serializer.getXContentBuilder(event).bytes(), false).v2();
+	}
+}
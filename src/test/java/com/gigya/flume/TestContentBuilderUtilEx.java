@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+public class TestContentBuilderUtilEx {
+
+	@Test
+	public void shouldNotTruncateWithoutLimit() throws Exception {
+		String value = "abcdefghij";
+		assertEquals(10, ContentBuilderUtilEx.truncatedLength(value, 0));
+		assertEquals(10, ContentBuilderUtilEx.truncatedLength(value, -1));
+		assertEquals(10, ContentBuilderUtilEx.truncatedLength(value, 10));
+		assertEquals(9, ContentBuilderUtilEx.truncatedLength(value, 9));
+	}
+
+	@Test
+	public void shouldTruncateInUtf8Bytes() throws Exception {
+		// 3 bytes each
+		String cjk = "日本語テキスト";
+		assertEquals(3, ContentBuilderUtilEx.truncatedLength(cjk, 9));
+		assertEquals(3, ContentBuilderUtilEx.truncatedLength(cjk, 11));
+		assertEquals(0, ContentBuilderUtilEx.truncatedLength(cjk, 2));
+		// 2 bytes each
+		String accented = "ééé";
+		assertEquals(2, ContentBuilderUtilEx.truncatedLength(accented, 5));
+	}
+
+	@Test
+	public void shouldNotSplitSurrogatePairs() throws Exception {
+		// a 4 byte emoji, as a surrogate pair
+		String emoji = "a😀b";
+		assertEquals(1, ContentBuilderUtilEx.truncatedLength(emoji, 4));
+		assertEquals(3, ContentBuilderUtilEx.truncatedLength(emoji, 5));
+		assertEquals(4, ContentBuilderUtilEx.truncatedLength(emoji, 6));
+	}
+
+	@Test
+	public void shouldWriteAtMostMaxBytes() throws Exception {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			value.append("日😀");
+		XContentBuilder builder = jsonBuilder().startObject().field("field");
+		ContentBuilderUtilEx.writeString(builder, value.toString(), 32766);
+		builder.endObject();
+		// the limit is on the value, as Elasticsearch decodes it
+		String written = (String) XContentHelper.convertToMap(builder.bytes(), false).v2().get("field");
+		int bytes = written.getBytes(Charsets.UTF_8).length;
+		assertTrue(bytes <= 32766);
+		assertTrue(bytes > 32766 - 4);
+		assertTrue(value.toString().startsWith(written));
+	}
+
+	@Test
+	public void shouldRejectObjectsThatNeverClose() throws Exception {
+		assertTrue(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":1}"));
+		assertTrue(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":{\"b\":[1,2]}} trailing"));
+		assertTrue(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":\"}{\\\"]\"}"));
+		assertFalse(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":{\"b\":1}"));
+		assertFalse(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":\"}"));
+		assertFalse(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":\"b\\\"}"));
+		// left for the parser
+		assertTrue(ContentBuilderUtilEx.mayBeJsonObject("{'a':'}"));
+		assertTrue(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":1 /* } */"));
+		assertFalse(ContentBuilderUtilEx.mayBeJsonObject("{\"a\":{\"b\":1}".getBytes(Charsets.UTF_8)));
+		assertTrue(ContentBuilderUtilEx.mayBeJsonObject("{\"é\":\"}\"}".getBytes(Charsets.UTF_8)));
+	}
+
+	@Test
+	public void shouldWriteTruncatedObjectAsStringWithoutParsing() throws Exception {
+		SerializerMetrics metrics = new SerializerMetrics(1);
+		XContentBuilder builder = jsonBuilder().startObject();
+		// not counted without bound metrics
+		assertFalse(ContentBuilderUtilEx.appendField(builder, "e", "{\"a\":", true, false, 0));
+		metrics.bind();
+		try {
+			assertFalse(ContentBuilderUtilEx.appendField(builder, "f", "{\"a\":{\"b\":1}", true, false, 0));
+			assertTrue(ContentBuilderUtilEx.appendField(builder, "g", "{\"a\":1}", true, true, 0));
+		} finally {
+			SerializerMetrics.unbind();
+		}
+		builder.endObject();
+		assertEquals("{\"e\":\"{\\\"a\\\":\",\"f\":\"{\\\"a\\\":{\\\"b\\\":1}\",\"g\":{\"a\":1}}", builder.string());
+		assertEquals(1, metrics.getObjectPrecheckRejections());
+		assertEquals(1, metrics.getJsonParseFailures());
+	}
+
+	@Test
+	public void shouldMeasureUtf8Bytes() throws Exception {
+		assertEquals(10, ContentBuilderUtilEx.utf8Length("abcdefghij".getBytes(Charsets.UTF_8), 0));
+		assertEquals(9, ContentBuilderUtilEx.utf8Length("abcdefghij".getBytes(Charsets.UTF_8), 9));
+		// 3 bytes each, never cut inside a character
+		byte[] cjk = "日本語テキスト".getBytes(Charsets.UTF_8);
+		assertEquals(9, ContentBuilderUtilEx.utf8Length(cjk, 9));
+		assertEquals(9, ContentBuilderUtilEx.utf8Length(cjk, 11));
+		assertEquals(0, ContentBuilderUtilEx.utf8Length(cjk, 2));
+		byte[] accented = "ééé".getBytes(Charsets.UTF_8);
+		assertEquals(4, ContentBuilderUtilEx.utf8Length(accented, 5));
+		// 4 byte characters are written as strings, as surrogate pairs
+		byte[] emoji = "a😀b".getBytes(Charsets.UTF_8);
+		assertEquals(1, ContentBuilderUtilEx.utf8Length(emoji, 1));
+		assertEquals(-1, ContentBuilderUtilEx.utf8Length(emoji, 0));
+	}
+
+	@Test
+	public void shouldRejectInvalidUtf8() throws Exception {
+		// lone continuation, overlong, surrogate, above U+10FFFF, cut sequence
+		byte[][] invalid = { { 'a', (byte) 0x80 }, { (byte) 0xC0, (byte) 0xAF }, { (byte) 0xE0, (byte) 0x80, (byte) 0xAF },
+				{ (byte) 0xED, (byte) 0xA0, (byte) 0x80 }, { (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 },
+				{ 'a', (byte) 0xE6, (byte) 0x97 } };
+		for (byte[] data : invalid)
+			assertEquals(-1, ContentBuilderUtilEx.utf8Length(data, 0));
+		// the character crossing the limit is checked too, beyond it isn't
+		assertEquals(-1, ContentBuilderUtilEx.utf8Length(new byte[] { 'a', (byte) 0xE6, 'b' }, 2));
+		assertEquals(1, ContentBuilderUtilEx.utf8Length(new byte[] { 'a', 'b', (byte) 0xFF }, 1));
+	}
+
+	@Test
+	public void shouldWriteBytesLikeDecodedString() throws Exception {
+		byte[][] values = { "plain ascii".getBytes(Charsets.UTF_8), "日本語 \"quoted\"\n😀".getBytes(Charsets.UTF_8),
+				{ 'a', (byte) 0xFF, 'b' } };
+		for (byte[] data : values) {
+			for (int maxBytes : new int[] { 0, 1, 4, 5, 9 }) {
+				XContentBuilder expected = jsonBuilder().startObject().field("f");
+				ContentBuilderUtilEx.writeString(expected, new String(data), maxBytes);
+				XContentBuilder actual = jsonBuilder().startObject().field("f");
+				ContentBuilderUtilEx.writeUtf8String(actual, data, maxBytes);
+				assertEquals(expected.endObject().string(), actual.endObject().string());
+			}
+		}
+	}
+
+	@Test
+	public void shouldFindTopLevelJsonFields() throws Exception {
+		String json = " { \"a\" : 1 ,\"b\":\"x,}\\\"y\" , \"c\":{\"d\":[1,{}]},\"é\":[] , \"e\":true } ";
+		byte[] data = json.getBytes(Charsets.UTF_8);
+		int[] offsets = ContentBuilderUtilEx.jsonFieldOffsets(data, null);
+		assertEquals(5, offsets[0]);
+		String[] expected = { "a", "1", "b", "\"x,}\\\"y\"", "c", "{\"d\":[1,{}]}", "é", "[]", "e", "true" };
+		for (int i = 0, o = 1; i < offsets[0]; i++, o += 4) {
+			assertEquals(expected[i * 2], new String(data, offsets[o], offsets[o + 1] - offsets[o], Charsets.UTF_8));
+			assertEquals(expected[i * 2 + 1], new String(data, offsets[o + 2], offsets[o + 3] - offsets[o + 2],
+					Charsets.UTF_8));
+		}
+		// the array is reused
+		assertTrue(offsets == ContentBuilderUtilEx.jsonFieldOffsets("{\"a\":1}".getBytes(Charsets.UTF_8), offsets));
+		assertEquals(1, offsets[0]);
+		assertEquals(0, ContentBuilderUtilEx.jsonFieldOffsets("{ }".getBytes(Charsets.UTF_8), offsets)[0]);
+	}
+
+	@Test
+	public void shouldNotFindFieldsThatCantBeWrittenAsTheyAre() throws Exception {
+		String[] values = { "{\"a\\u0041\":1}", "{\"a\":{\n\"b\":1}}", "{\"a\":/* comment */1}", "[1]" };
+		for (String value : values)
+			assertNull(ContentBuilderUtilEx.jsonFieldOffsets(value.getBytes(Charsets.UTF_8), null));
+		// line breaks between the fields aren't written
+		assertEquals(2, ContentBuilderUtilEx.jsonFieldOffsets("{\n\"a\":1,\r\n\"b\":2\n}".getBytes(Charsets.UTF_8),
+				null)[0]);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+public class TestDocumentBytesStreamOutput {
+
+	@Test
+	public void shouldKeepBytesOfReusedStream() throws Exception {
+		DocumentBytesStreamOutput out = DocumentBytesStreamOutput.reusable(4096);
+		out.reset(null, "first");
+		byte[] first = "{\"a\":1}".getBytes("UTF-8");
+		out.write(first, 0, first.length);
+		BytesReference firstBytes = out.bytes();
+
+		out.reset(null, null);
+		byte[] second = "{\"b\":22}".getBytes("UTF-8");
+		out.write(second, 0, second.length);
+		BytesReference secondBytes = out.bytes();
+
+		// the bytes handed out are copied at their exact size
+		assertEquals("{\"a\":1}", firstBytes.toUtf8());
+		assertEquals(first.length, firstBytes.array().length);
+		assertEquals("first", ((DocumentBytesStreamOutput.DocumentBytesReference) firstBytes).documentId());
+		assertEquals("{\"b\":22}", secondBytes.toUtf8());
+		assertNull(((DocumentBytesStreamOutput.DocumentBytesReference) secondBytes).documentId());
+	}
+
+	@Test
+	public void shouldHashReusedStream() throws Exception {
+		DocumentHasher hasher = DocumentHasher.create(DocumentHasher.MURMUR3_128);
+		DocumentBytesStreamOutput out = DocumentBytesStreamOutput.reusable(4096);
+		byte[] data = "{\"@message\":\"test body\"}".getBytes("UTF-8");
+		for (int i = 0; i < 2; i++) {
+			out.reset(hasher, null);
+			out.write(data, 0, data.length);
+			String expected = DocumentHasher.create(DocumentHasher.MURMUR3_128).documentId(data, 0, data.length);
+			assertEquals(expected, ((DocumentBytesStreamOutput.DocumentBytesReference) out.bytes()).documentId());
+		}
+	}
+
+	@Test
+	public void shouldWriteLargeDocumentsToReusedStream() throws Exception {
+		DocumentBytesStreamOutput out = DocumentBytesStreamOutput.reusable(2048);
+		byte[] large = new byte[10000];
+		for (int i = 0; i < large.length; i++)
+			large[i] = (byte) ('a' + i % 26);
+		out.reset(null, null);
+		out.write(large, 0, large.length);
+		assertEquals(large.length, out.bytes().length());
+
+		// the grown buffer is dropped, the stream still works
+		out.reset(null, null);
+		out.write('x');
+		assertEquals("x", out.bytes().toUtf8());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldNotResetStreamThatIsNotReusable() throws Exception {
+		new DocumentBytesStreamOutput().reset(null, null);
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+
+public class TestDocumentHasher {
+
+	@Test
+	public void shouldMatchGuavaMurmur3() throws Exception {
+		Random random = new Random(42);
+		DocumentHasher hasher = DocumentHasher.create(DocumentHasher.MURMUR3_128);
+		for (int length = 0; length < 200; length++) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+
+			hasher.reset();
+			hasher.update(data, 0, length);
+			assertArrayEquals(Hashing.murmur3_128().hashBytes(data).asBytes(), hasher.digest());
+		}
+	}
+
+	@Test
+	public void shouldHashIncrementally() throws Exception {
+		Random random = new Random(42);
+		byte[] data = new byte[1000];
+		random.nextBytes(data);
+		for (String algorithm : new String[] { DocumentHasher.MD5, DocumentHasher.MURMUR3_128 }) {
+			DocumentHasher hasher = DocumentHasher.create(algorithm);
+			hasher.update(data, 0, data.length);
+			byte[] expected = hasher.digest();
+
+			// feed the same bytes in uneven chunks and single bytes
+			hasher.reset();
+			int pos = 0;
+			while (pos < data.length) {
+				int len = Math.min(random.nextInt(37), data.length - pos);
+				if (len == 0) {
+					hasher.update(data[pos++]);
+				} else {
+					hasher.update(data, pos, len);
+					pos += len;
+				}
+			}
+			assertArrayEquals(algorithm, expected, hasher.digest());
+		}
+	}
+
+	@Test
+	public void shouldHashStringsAsUtf8() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			sb.append("a\u00e9\u4e2d\ud83d\ude00");
+		sb.append("\ud83d");
+		String s = sb.toString();
+		DocumentHasher hasher = DocumentHasher.create(DocumentHasher.MURMUR3_128);
+		hasher.update(s);
+		byte[] data = s.getBytes("UTF-8");
+		assertArrayEquals(Hashing.murmur3_128().hashBytes(data).asBytes(), hasher.digest());
+	}
+
+	@Test
+	public void shouldMatchMessageDigestMd5() throws Exception {
+		byte[] data = "{\"@message\":\"test body\"}".getBytes("UTF-8");
+		DocumentHasher hasher = DocumentHasher.create("MD5");
+		hasher.update(data, 0, data.length);
+		assertArrayEquals(MessageDigest.getInstance("MD5").digest(data), hasher.digest());
+	}
+
+	@Test
+	public void shouldHashWhileWriting() throws Exception {
+		byte[] data = "{\"@message\":\"test body\",\"@fields\":{}}".getBytes("UTF-8");
+		DocumentHasher hasher = DocumentHasher.create(DocumentHasher.MURMUR3_128);
+		DocumentBytesStreamOutput out = new DocumentBytesStreamOutput(hasher);
+		out.write(data, 0, 10);
+		out.write(data[10]);
+		out.write(data, 11, data.length - 11);
+
+		DocumentBytesStreamOutput.DocumentBytesReference bytes = (DocumentBytesStreamOutput.DocumentBytesReference) out
+				.bytes();
+		assertEquals(new BytesArray(data), bytes);
+		assertEquals(DocumentHasher.create(DocumentHasher.MURMUR3_128).documentId(data, 0, data.length),
+				bytes.documentId());
+		assertEquals(22, bytes.documentId().length());
+	}
+
+	@Test
+	public void shouldRehashWhenHasherWasTakenOver() throws Exception {
+		byte[] data = "{\"a\":1}".getBytes("UTF-8");
+		DocumentHasher hasher = DocumentHasher.create(DocumentHasher.MD5);
+		DocumentBytesStreamOutput first = new DocumentBytesStreamOutput(hasher);
+		first.write(data, 0, data.length);
+		// a second document starts on the same hasher before the first one is done
+		DocumentBytesStreamOutput second = new DocumentBytesStreamOutput(hasher);
+		second.write(1);
+
+		String expected = DocumentHasher.create(DocumentHasher.MD5).documentId(data, 0, data.length);
+		assertEquals(expected, ((DocumentBytesStreamOutput.DocumentBytesReference) first.bytes()).documentId());
+		assertNull(((DocumentBytesStreamOutput.DocumentBytesReference) new DocumentBytesStreamOutput().bytes())
+				.documentId());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectUnknownAlgorithm() {
+		DocumentHasher.create("crc32");
+	}
+}
@@ -23,7 +23,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -33,8 +35,11 @@ import org.apache.flume.Event;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.event.SimpleEvent;
 import org.apache.flume.sink.elasticsearch.ElasticSearchIndexRequestBuilderFactory;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.gateway.Gateway;
@@ -107,6 +112,24 @@ public class TestElasticSearchIndexRequestBuilderFactory {
 				indexRequestBuilder.request().index());
 	}
 
+	@Test
+	public void shouldSetIndexNameFromConfiguredDatePattern() throws Exception {
+		String indexPrefix = "qwerty";
+		String indexType = "uiop";
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("indexDatePattern", "yyyy.MM.dd.HH");
+		factory.configure(new Context(parameters));
+		Event event = new SimpleEvent();
+		event.getHeaders().put("timestamp", "1213141516");
+		Event nextHour = new SimpleEvent();
+		nextHour.getHeaders().put("timestamp", "1216741516");
+
+		assertEquals(indexPrefix + "-1970.01.15.00",
+				factory.createIndexRequest(client, indexPrefix, indexType, event).request().index());
+		assertEquals(indexPrefix + "-1970.01.15.01",
+				factory.createIndexRequest(client, indexPrefix, indexType, nextHour).request().index());
+	}
+
 	@Test
 	public void shouldGenerateObjectID() throws Exception {
 		String indexPrefix = "qwerty";
@@ -183,6 +206,150 @@ public class TestElasticSearchIndexRequestBuilderFactory {
 		assertTrue(indexRequestBuilder2.request().id() != null && !indexRequestBuilder2.request().id().isEmpty());
 		assertFalse(indexRequestBuilder1.request().id().equals(indexRequestBuilder2.request().id()));
 	}
+
+	@Test
+	public void shouldGenerateSameObjectIDForSameIdentity() throws Exception {
+		String indexPrefix = "qwerty";
+		String indexType = "uiop";
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("idFields", "requestId");
+		Context context = new Context(parameters);
+		factory.configure(context);
+
+		String message = "test body";
+		Map<String, String> headers1 = Maps.newHashMap();
+		Map<String, String> headers2 = Maps.newHashMap();
+		long timestamp = System.currentTimeMillis();
+		headers1.put("timestamp", String.valueOf(timestamp));
+		headers1.put("requestId", "42");
+		headers2.put("timestamp", String.valueOf(timestamp));
+		headers2.put("requestId", "42");
+		headers2.put("another", "one");
+		Event event1 = EventBuilder.withBody(message.getBytes(charset));
+		event1.setHeaders(headers1);
+		Event event2 = EventBuilder.withBody(message.getBytes(charset));
+		event2.setHeaders(headers2);
+
+		IndexRequestBuilder indexRequestBuilder1 = factory.createIndexRequest(client, indexPrefix, indexType, event1);
+		IndexRequestBuilder indexRequestBuilder2 = factory.createIndexRequest(client, indexPrefix, indexType, event2);
+
+		assertTrue(indexRequestBuilder1.request().id() != null && !indexRequestBuilder1.request().id().isEmpty()); 
+		assertEquals(indexRequestBuilder1.request().id(), indexRequestBuilder2.request().id());
+	}
+
+	@Test
+	public void shouldWriteBulkRequestBody() throws Exception {
+		String indexPrefix = "qwerty";
+		String indexType = "uiop";
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("generateId", "true");
+		parameters.put("idFields", "requestId");
+		Context context = new Context(parameters);
+		factory.configure(context);
+
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 3; i++) {
+			Map<String, String> headers = Maps.newHashMap();
+			headers.put("timestamp", String.valueOf(1213141516L + i * 86400000L));
+			if (i == 1)
+				headers.put("requestId", "42");
+			events.add(EventBuilder.withBody(("test body " + i).getBytes(charset), headers));
+		}
+
+		BulkRequestBody body = factory.createBulkRequestBody(events, indexPrefix, indexType, 0);
+		assertEquals(3, body.itemCount());
+		BytesReference bytes = body.bytes();
+		BulkRequest bulk = new BulkRequest().add(bytes.array(), bytes.arrayOffset(), bytes.length(), false);
+		assertEquals(3, bulk.requests().size());
+		for (int i = 0; i < 3; i++) {
+			// the same request as for a single event
+			IndexRequest expected = factory.createIndexRequest(client, indexPrefix, indexType, events.get(i)).request();
+			IndexRequest actual = (IndexRequest) bulk.requests().get(i);
+			assertEquals(expected.index(), actual.index());
+			assertEquals(expected.type(), actual.type());
+			assertEquals(expected.id(), actual.id());
+			assertEquals(expected.source().toUtf8(), actual.source().toUtf8());
+		}
+	}
+
+	@Test
+	public void shouldTakeIndexTypeAndRoutingFromHeaders() throws Exception {
+		String indexPrefix = "qwerty";
+		String indexType = "uiop";
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("indexHeader", "index");
+		parameters.put("typeHeader", "doc_type");
+		parameters.put("routingHeaders", "tenant, region");
+		factory.configure(new Context(parameters));
+
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 4; i++) {
+			Map<String, String> headers = Maps.newHashMap();
+			headers.put("timestamp", "1213141516");
+			if (i > 0)
+				headers.put("index", "tenant" + (i % 2));
+			if (i > 1)
+				headers.put("doc_type", "event");
+			if (i > 2)
+				headers.put("tenant", "t" + i);
+			headers.put("region", "eu");
+			events.add(EventBuilder.withBody(("test body " + i).getBytes(charset), headers));
+		}
+		String[] indices = { indexPrefix, "tenant1", "tenant0", "tenant1" };
+		String[] types = { indexType, indexType, "event", "event" };
+		String[] routings = { "eu", "eu", "eu", "t3:eu" };
+
+		BulkRequestBody body = factory.createBulkRequestBody(events, indexPrefix, indexType, 0);
+		BytesReference bytes = body.bytes();
+		BulkRequest bulk = new BulkRequest().add(bytes.array(), bytes.arrayOffset(), bytes.length(), false);
+		assertEquals(4, bulk.requests().size());
+		for (int i = 0; i < 4; i++) {
+			IndexRequest expected = factory.createIndexRequest(client, indexPrefix, indexType, events.get(i)).request();
+			IndexRequest actual = (IndexRequest) bulk.requests().get(i);
+			assertEquals(indices[i] + '-' + dateFormat.format(1213141516L), expected.index());
+			assertEquals(types[i], expected.type());
+			assertEquals(routings[i], expected.routing());
+			assertEquals(expected.index(), actual.index());
+			assertEquals(expected.type(), actual.type());
+			assertEquals(expected.routing(), actual.routing());
+			assertEquals(expected.source().toUtf8(), actual.source().toUtf8());
+		}
+	}
+
+	@Test
+	public void shouldSerializeBatchInParallel() throws Exception {
+		String indexPrefix = "qwerty";
+		String indexType = "uiop";
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("generateId", "true");
+		Context context = new Context(parameters);
+		ExtendedElasticSearchIndexRequestBuilderFactory sequential = new ExtendedElasticSearchIndexRequestBuilderFactory();
+		sequential.configure(context);
+		parameters.put("parallelism", "3");
+		parameters.put("parallelThreshold", "10");
+		factory.configure(new Context(parameters));
+
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 50; i++) {
+			Map<String, String> headers = Maps.newHashMap();
+			headers.put("timestamp", String.valueOf(1213141516L + i * 3600000L));
+			headers.put("seq", String.valueOf(i));
+			events.add(EventBuilder.withBody(("test body " + i).getBytes(charset), headers));
+		}
+
+		// the same items, in the same order
+		BulkRequestBody expected = sequential.createBulkRequestBody(events, indexPrefix, indexType, 0);
+		BulkRequestBody actual = factory.createBulkRequestBody(events, indexPrefix, indexType, 0);
+		assertEquals(events.size(), actual.itemCount());
+		assertEquals(expected.bytes().toUtf8(), actual.bytes().toUtf8());
+
+		List<IndexRequestBuilder> requests = factory.createIndexRequests(client, events, indexPrefix, indexType);
+		assertEquals(events.size(), requests.size());
+		for (int i = 0; i < events.size(); i++) {
+			IndexRequest request = sequential.createIndexRequest(client, indexPrefix, indexType, events.get(i)).request();
+			assertEquals(request.id(), requests.get(i).request().id());
+			assertEquals(request.source().toUtf8(), requests.get(i).request().source().toUtf8());
+		}
+	}
 	
 }
-
@@ -21,22 +21,36 @@ package com.gigya.flume;
 import static org.apache.flume.sink.elasticsearch.ElasticSearchEventSerializer.charset;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.security.MessageDigest;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.sink.elasticsearch.DocumentIdBuilder;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.junit.Test;
 
+import com.google.common.hash.Hashing;
+
 public class TestElasticSearchLogStashEventSerializer {
 
 	@Test
@@ -73,7 +87,7 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		assertEquals(new String(expected.bytes().array()), new String(actual.bytes().array()));
+		assertEquals(expected.bytes().toUtf8(), actual.bytes().toUtf8());
 	}
 
 	@Test
@@ -111,7 +125,7 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		assertEquals(new String(expected.bytes().array()), new String(actual.bytes().array()));
+		assertEquals(expected.bytes().toUtf8(), actual.bytes().toUtf8());
 	}
 
 	// @Test
@@ -147,8 +161,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 
@@ -177,8 +191,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 
@@ -211,8 +225,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 	
@@ -248,11 +262,141 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 
+	@Test
+	public void shouldStreamJSONInHeader() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("objectFields", "params, anotherField");
+		parameters.put("streamObjectFields", "true");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		String message = "{flume: somethingnotvalid}";
+		String params = "{\"cmd\":\"api.method\",\"email\":\"my@gmail.com\", \"nested\" : { \"sub\" : 1 }}";
+		Map<String, String> headers = Maps.newHashMap();
+		long timestamp = System.currentTimeMillis();
+		headers.put("timestamp", String.valueOf(timestamp));
+		headers.put("params", params);
+		Event event = EventBuilder.withBody(message.getBytes(charset));
+		event.setHeaders(headers);
+
+		XContentBuilder expected = jsonBuilder().startObject();
+		expected.field("@message", new String(message.getBytes(), charset));
+		expected.field("@timestamp", new Date(timestamp));
+		expected.startObject("@fields");
+		expected.rawField("params", params.getBytes(charset));
+		expected.endObject();
+		expected.endObject();
+
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
+		assertEquals(expectedStr, actualStr);
+	}
+
+	@Test
+	public void shouldStreamJSONInHeaderOnOneLine() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("objectFields", "params");
+		parameters.put("streamObjectFields", "true");
+		parameters.put("removeFieldsPrefix", "true");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("params", "{\n  \"cmd\" : \"api.call\"\r\n}");
+		Event event = EventBuilder.withBody("test body".getBytes(charset), headers);
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		assertEquals("{\"@message\":\"test body\",\"params\":{\"cmd\":\"api.call\"}}", actual.bytes().toUtf8());
+	}
+
+	@Test
+	public void shouldStreamInvalidJSONInHeaderAsString() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("objectFields", "params, anotherField");
+		parameters.put("streamObjectFields", "true");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		String message = "{flume: somethingnotvalid}";
+		String params = "{\"cmd\":\"api.method\",\"email\":";
+		Map<String, String> headers = Maps.newHashMap();
+		long timestamp = System.currentTimeMillis();
+		headers.put("timestamp", String.valueOf(timestamp));
+		headers.put("params", params);
+		Event event = EventBuilder.withBody(message.getBytes(charset));
+		event.setHeaders(headers);
+
+		XContentBuilder expected = jsonBuilder().startObject();
+		expected.field("@message", new String(message.getBytes(), charset));
+		expected.field("@timestamp", new Date(timestamp));
+		expected.startObject("@fields");
+		expected.field("params", params);
+		expected.endObject();
+		expected.endObject();
+
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
+		assertEquals(expectedStr, actualStr);
+	}
+
+	@Test
+	public void shouldStreamJSONInHeaderWhenCollating() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("objectFields", "params, other");
+		parameters.put("collateObjects", "true");
+		parameters.put("collateDepth", "-1");
+		parameters.put("streamObjectFields", "true");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		String message = "{flume: somethingnotvalid}";
+		String params = "{\"another\":\"field\"}";
+		String other = "{\"nested\":{\"sub\":1}}";
+		Map<String, String> headers = Maps.newHashMap();
+		long timestamp = System.currentTimeMillis();
+		headers.put("timestamp", String.valueOf(timestamp));
+		headers.put("params.cmd", "api.call");
+		headers.put("params.timer.start", "1");
+		headers.put("params", params);
+		headers.put("other", other);
+		Event event = EventBuilder.withBody(message.getBytes(charset));
+		event.setHeaders(headers);
+
+		XContentBuilder expected = jsonBuilder().startObject();
+		expected.field("@message", new String(message.getBytes(), charset));
+		expected.field("@timestamp", new Date(timestamp));
+		expected.startObject("@fields");
+		expected.startObject("params");
+		expected.field("another", "field");
+		expected.field("cmd", "api.call");
+		expected.startObject("timer");
+		expected.field("start", "1");
+		expected.endObject();
+		expected.endObject();
+		expected.startObject("other");
+		expected.startObject("nested");
+		expected.field("sub", 1);
+		expected.endObject();
+		expected.endObject();
+		expected.endObject();
+		expected.endObject();
+
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		// field order depends on the collated maps, compare the parsed documents
+		assertEquals(XContentHelper.convertToMap(expected.bytes(), false).v2(),
+				XContentHelper.convertToMap(actual.bytes(), false).v2());
+	}
+
 	@Test
 	public void shouldParseNestedJSONInHeaderWhenCollating() throws Exception {
 		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
@@ -286,8 +430,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 
@@ -328,8 +472,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 
@@ -367,8 +511,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 
@@ -407,8 +551,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 	@Test
@@ -451,8 +595,8 @@ public class TestElasticSearchLogStashEventSerializer {
 		expected.endObject();
 
 		XContentBuilder actual = fixture.getXContentBuilder(event);
-		String expectedStr = new String(expected.bytes().array());
-		String actualStr = new String(actual.bytes().array());
+		String expectedStr = expected.bytes().toUtf8();
+		String actualStr = actual.bytes().toUtf8();
 		assertEquals(expectedStr, actualStr);
 	}
 	
@@ -482,5 +626,572 @@ public class TestElasticSearchLogStashEventSerializer {
 		assertNotNull(id);
 				
 	}
-	
+
+	@Test
+	public void shouldGenerateMD5ObjectIDWhileSerializing() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("generateId", "true");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+		headers.put("headerNameOne", "headerValueOne");
+		Event event = EventBuilder.withBody("test body".getBytes(charset));
+		event.setHeaders(headers);
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		byte[] bytes = actual.bytes().toBytes();
+
+		// the same ID as hashing a copy of the serialized event with MD5
+		String expected = Base64.encodeBytes(MessageDigest.getInstance("MD5").digest(bytes), Base64.URL_SAFE);
+		expected = expected.substring(0, expected.length() - 2);
+		DocumentIdBuilder idBuilder = (DocumentIdBuilder)fixture;
+		assertEquals(expected, idBuilder.getDocumentId(actual.bytes()));
+		assertEquals(expected, idBuilder.getDocumentId(new BytesArray(bytes)));
+	}
+
+	@Test
+	public void shouldWriteHeadersInTheOrderOfAHashMapCopyForGeneratedIds() throws Exception {
+		for (String collate : new String[] { "false", "true" }) {
+			ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put("generateId", "true");
+			parameters.put("collateObjects", collate);
+			fixture.configure(new Context(parameters));
+
+			Map<String, String> linked = new LinkedHashMap<String, String>();
+			Map<String, String> tree = new TreeMap<String, String>();
+			Map<String, String> sized = new HashMap<String, String>(256);
+			for (int i = 40; i > 0; i--) {
+				String key = (i % 3 == 0 ? "obj" + (i % 4) + ".field" : "header") + i;
+				linked.put(key, "value" + i);
+				tree.put(key, "value" + i);
+				sized.put(key, "value" + i);
+			}
+			linked.put("host", "test@localhost");
+			tree.put("host", "test@localhost");
+			sized.put("host", "test@localhost");
+			// the IDs were always hashed from a HashMap copy of the headers
+			assertEquals(serialize(fixture, new HashMap<String, String>(linked)), serialize(fixture, linked));
+			assertEquals(serialize(fixture, new HashMap<String, String>(tree)), serialize(fixture, tree));
+			assertEquals(serialize(fixture, new HashMap<String, String>(sized)), serialize(fixture, sized));
+		}
+	}
+
+	private static String serialize(ExtendedElasticSearchLogStashEventSerializer fixture, Map<String, String> headers)
+			throws Exception {
+		Event event = EventBuilder.withBody("test body".getBytes(charset));
+		event.setHeaders(headers);
+		XContentBuilder builder = fixture.getXContentBuilder(event);
+		return builder.string() + " " + fixture.getDocumentId(builder.bytes());
+	}
+
+	@Test
+	public void shouldGenerateMurmur3ObjectID() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("generateId", "true");
+		parameters.put("idHashAlgorithm", "murmur3_128");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+		Event event = EventBuilder.withBody("test body".getBytes(charset));
+		event.setHeaders(headers);
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		byte[] bytes = actual.bytes().toBytes();
+
+		String expected = DocumentHasher.toDocumentId(Hashing.murmur3_128().hashBytes(bytes).asBytes());
+		DocumentIdBuilder idBuilder = (DocumentIdBuilder)fixture;
+		assertEquals(expected, idBuilder.getDocumentId(actual.bytes()));
+		assertEquals(expected, idBuilder.getDocumentId(new BytesArray(bytes)));
+	}
+
+	@Test
+	public void shouldGenerateIdentityObjectID() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("idFields", "tenant, requestId");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+		headers.put("tenant", "acme");
+		headers.put("requestId", "42");
+		Event event = EventBuilder.withBody("test body".getBytes(charset));
+		event.setHeaders(headers);
+		String expected = fixture.getDocumentId(event);
+		assertNotNull(expected);
+		// the ID travels with the serialized event
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		assertEquals(expected, fixture.getDocumentId(actual.bytes()));
+
+		// other headers and the body don't change the ID
+		Map<String, String> enriched = Maps.newHashMap(headers);
+		enriched.put("host", "enriched");
+		Event other = EventBuilder.withBody("other body".getBytes(charset), enriched);
+		assertEquals(expected, fixture.getDocumentId(other));
+
+		other.getHeaders().put("requestId", "43");
+		assertFalse(expected.equals(fixture.getDocumentId(other)));
+		other.getHeaders().put("requestId", "42");
+		other.getHeaders().remove("tenant");
+		assertFalse(expected.equals(fixture.getDocumentId(other)));
+	}
+
+	@Test
+	public void shouldNotGenerateIdentityIdFromSomeOfTheHeaders() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("idFields", "tenant, requestId");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("tenant", "acme");
+		Event first = EventBuilder.withBody("first".getBytes(charset), headers);
+		Event second = EventBuilder.withBody("second".getBytes(charset), headers);
+		assertNull(fixture.getDocumentId(first));
+
+		// falls back to the hash of the serialized event, which differs
+		parameters.put("generateId", "true");
+		fixture.configure(new Context(parameters));
+		String firstId = fixture.getDocumentId(fixture.getXContentBuilder(first).bytes());
+		String secondId = fixture.getDocumentId(fixture.getXContentBuilder(second).bytes());
+		assertNotNull(firstId);
+		assertFalse(firstId.equals(secondId));
+	}
+
+	@Test
+	public void shouldNotHashValuesHoldingTheNextFieldTheSame() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("idFields", "a, b");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("a", "x\u0000b\u0001z");
+		headers.put("b", "w");
+		Map<String, String> other = Maps.newHashMap();
+		other.put("a", "x");
+		other.put("b", "z\u0000b\u0001w");
+		String id = fixture.getDocumentId(EventBuilder.withBody(new byte[0], headers));
+		assertNotNull(id);
+		assertFalse(id.equals(fixture.getDocumentId(EventBuilder.withBody(new byte[0], other))));
+	}
+
+	@Test
+	public void shouldGenerateIdentityObjectIDWithBody() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("idFields", "requestId");
+		parameters.put("idIncludeBody", "true");
+		parameters.put("idHashAlgorithm", "murmur3_128");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("requestId", "42");
+		String id = fixture.getDocumentId(EventBuilder.withBody("test body".getBytes(charset), headers));
+		assertEquals(id, fixture.getDocumentId(EventBuilder.withBody("test body".getBytes(charset), headers)));
+		assertFalse(id.equals(fixture.getDocumentId(EventBuilder.withBody("other body".getBytes(charset), headers))));
+	}
+
+	@Test
+	public void shouldFallBackWithoutIdentityHeaders() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("idFields", "requestId");
+		Context context = new Context(parameters);
+		fixture.configure(context);
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+		Event event = EventBuilder.withBody("test body".getBytes(charset), headers);
+		assertNull(fixture.getDocumentId(event));
+		assertNull(fixture.getDocumentId(fixture.getXContentBuilder(event).bytes()));
+
+		parameters.put("generateId", "true");
+		fixture.configure(new Context(parameters));
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		String expected = DocumentHasher.toDocumentId(Hashing.md5().hashBytes(actual.bytes().toBytes()).asBytes());
+		assertEquals(expected, fixture.getDocumentId(actual.bytes()));
+	}
+
+	@Test
+	public void shouldReuseBuffers() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		ExtendedElasticSearchLogStashEventSerializer reusing = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("generateId", "true");
+		fixture.configure(new Context(parameters));
+		parameters.put("reuseBuffers", "true");
+		parameters.put("maxReusedBufferSize", "2048");
+		reusing.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+		Event event1 = EventBuilder.withBody(new String(new char[5000]).replace('\0', 'a').getBytes(charset), headers);
+		Event event2 = EventBuilder.withBody("test body".getBytes(charset), headers);
+
+		BytesReference bytes1 = reusing.getXContentBuilder(event1).bytes();
+		BytesReference bytes2 = reusing.getXContentBuilder(event2).bytes();
+		BytesReference expected1 = fixture.getXContentBuilder(event1).bytes();
+		BytesReference expected2 = fixture.getXContentBuilder(event2).bytes();
+		assertEquals(expected1.toUtf8(), bytes1.toUtf8());
+		assertEquals(expected2.toUtf8(), bytes2.toUtf8());
+		assertEquals(fixture.getDocumentId(expected1), reusing.getDocumentId(bytes1));
+		assertEquals(fixture.getDocumentId(expected2), reusing.getDocumentId(bytes2));
+	}
+
+	@Test
+	public void shouldTruncateFieldsByLimit() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("removeFieldsPrefix", "true");
+		parameters.put("maxFieldBytes", "5");
+		parameters.put("maxFieldBytes.long", "8");
+		parameters.put("maxFieldBytes.unlimited", "0");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("short", "abcdefghij");
+		headers.put("long", "abcdefghij");
+		headers.put("unlimited", "abcdefghij");
+		headers.put("host", "abcdefghij");
+		Event event = EventBuilder.withBody("0123456789".getBytes(charset), headers);
+		Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+		// @message only has a limit of its own
+		assertEquals("0123456789", actual.get("@message"));
+		assertEquals("abcde", actual.get("@source_host"));
+		assertEquals("abcde", actual.get("short"));
+		assertEquals("abcdefgh", actual.get("long"));
+		assertEquals("abcdefghij", actual.get("unlimited"));
+	}
+
+	@Test
+	public void shouldNotTruncateMessageByDefault() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		fixture.configure(new Context());
+
+		String body = StringUtils.repeat("at com.example.Trace.method(Trace.java:42)\n", 2000);
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("long", body);
+		Event event = EventBuilder.withBody(body.getBytes(charset), headers);
+		Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+		assertEquals(body, actual.get("@message"));
+		assertEquals(ExtendedElasticSearchLogStashEventSerializer.DEFAULT_MAX_FIELD_BYTES,
+				((Map<?, ?>) actual.get("@fields")).get("long").toString().length());
+
+		// nor as the message header
+		headers.put("message", body);
+		event = EventBuilder.withBody("body".getBytes(charset), headers);
+		actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+		assertEquals(body, actual.get("@message"));
+	}
+
+	@Test
+	public void shouldSkipObjectFieldsThatMostlyFailToParse() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("removeFieldsPrefix", "true");
+		parameters.put("objectFields", "obj");
+		parameters.put("adaptiveObjectFields", "true");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("obj", "{\"a\":");
+		for (int i = 0; i < FieldPlan.ADAPT_WINDOW; i++) {
+			Event event = EventBuilder.withBody("body".getBytes(charset), headers);
+			Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+			assertEquals("{\"a\":", actual.get("obj"));
+		}
+		// no longer parsed, written the same as a value that failed
+		headers.put("obj", "{\"a\":1}");
+		Event event = EventBuilder.withBody("body".getBytes(charset), headers);
+		Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+		assertEquals("{\"a\":1}", actual.get("obj"));
+	}
+
+	@Test
+	public void shouldTruncateMessageHeaderByMessageLimit() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("maxFieldBytes.@message", "4");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("message", "the message");
+		Event event = EventBuilder.withBody("test body".getBytes(charset), headers);
+		Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+		assertEquals("the ", actual.get("@message"));
+	}
+
+	@Test
+	public void shouldTruncateStringsInObjectFields() throws Exception {
+		String params = "{\"cmd\":\"api.method\",\"n\":12345678,\"list\":[\"abcdefgh\",{\"s\":\"abcdefgh\"}]}";
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("params", params);
+		Event event = EventBuilder.withBody("test".getBytes(charset), headers);
+
+		Map<String, Object> expected = XContentHelper.convertToMap(new BytesArray("{\"@message\":\"test\","
+				+ "\"params\":{\"cmd\":\"api\",\"n\":12345678,\"list\":[\"abc\",{\"s\":\"abc\"}]}}"), false).v2();
+		for (String stream : new String[] { "false", "true" }) {
+			for (String collate : new String[] { "false", "true" }) {
+				ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+				Map<String, String> parameters = new HashMap<String, String>();
+				parameters.put("objectFields", "params");
+				parameters.put("removeFieldsPrefix", "true");
+				parameters.put("streamObjectFields", stream);
+				parameters.put("collateObjects", collate);
+				parameters.put("maxFieldBytes.params", "3");
+				fixture.configure(new Context(parameters));
+
+				Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(),
+						false).v2();
+				assertEquals(expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void shouldStreamTruncatedObjectFieldsInTheirOrder() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("objectFields", "params");
+		parameters.put("removeFieldsPrefix", "true");
+		parameters.put("streamObjectFields", "true");
+		parameters.put("maxFieldBytes.params", "3");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("params", "{\"z\":\"abcdefgh\",\"n\":12345678,\"a\":[\"abcdefgh\",{\"s\":\"abcdefgh\"}]}");
+		Event event = EventBuilder.withBody("test".getBytes(charset), headers);
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		assertEquals("{\"@message\":\"test\",\"params\":{\"z\":\"abc\",\"n\":12345678,\"a\":[\"abc\",{\"s\":\"abc\"}]}}",
+				actual.bytes().toUtf8());
+	}
+
+	@Test
+	public void shouldNotTruncateShortObjectFields() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("objectFields", "params");
+		parameters.put("removeFieldsPrefix", "true");
+		parameters.put("streamObjectFields", "true");
+		parameters.put("maxFieldBytes", "100");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("params", "{\"cmd\":\"api.method\"}");
+		Event event = EventBuilder.withBody("test".getBytes(charset), headers);
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		assertEquals("{\"@message\":\"test\",\"params\":{\"cmd\":\"api.method\"}}", actual.bytes().toUtf8());
+	}
+
+	@Test
+	public void shouldWriteTimestampAsEpochMillis() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("timestampFormat", "epoch_millis");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", "1415000075610");
+		Event event = EventBuilder.withBody("test body".getBytes(charset), headers);
+		XContentBuilder actual = fixture.getXContentBuilder(event);
+		assertEquals("{\"@message\":\"test body\",\"@timestamp\":1415000075610,\"@fields\":{}}",
+				actual.bytes().toUtf8());
+	}
+
+	@Test
+	public void shouldSerializeAsBinaryContentType() throws Exception {
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", "1415000075610");
+		headers.put("host", "app-server-1");
+		headers.put("params", "{\n\"cmd\":\"api.call\",\"n\":167,\"tags\":[\"a\",\"b\"]}");
+		Event event = EventBuilder.withBody("test body".getBytes(charset), headers);
+
+		for (String stream : new String[] { "false", "true" }) {
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put("objectFields", "params");
+			parameters.put("streamObjectFields", stream);
+			ExtendedElasticSearchLogStashEventSerializer json = new ExtendedElasticSearchLogStashEventSerializer();
+			json.configure(new Context(parameters));
+			Map<String, Object> expected = XContentHelper.convertToMap(json.getXContentBuilder(event).bytes(), true)
+					.v2();
+
+			for (XContentType contentType : new XContentType[] { XContentType.SMILE, XContentType.CBOR }) {
+				ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+				parameters.put("contentType", contentType.shortName());
+				fixture.configure(new Context(parameters));
+				BytesReference bytes = fixture.getXContentBuilder(event).bytes();
+				assertEquals(contentType, XContentFactory.xContentType(bytes));
+				assertEquals(expected, XContentHelper.convertToMap(bytes, true).v2());
+			}
+		}
+	}
+
+	@Test
+	public void shouldGenerateSameObjectIDForAllContentTypes() throws Exception {
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", "1415000075610");
+		headers.put("params", "{\"cmd\":\"api.call\"}");
+		Event event = EventBuilder.withBody("test body".getBytes(charset), headers);
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("generateId", "true");
+		parameters.put("objectFields", "params");
+		ExtendedElasticSearchLogStashEventSerializer json = new ExtendedElasticSearchLogStashEventSerializer();
+		json.configure(new Context(parameters));
+		String expected = json.getDocumentId(json.getXContentBuilder(event).bytes());
+		assertNotNull(expected);
+
+		for (String contentType : new String[] { "smile", "CBOR" }) {
+			for (String reuse : new String[] { "false", "true" }) {
+				ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+				parameters.put("contentType", contentType);
+				parameters.put("reuseBuffers", reuse);
+				fixture.configure(new Context(parameters));
+				BytesReference bytes = fixture.getXContentBuilder(event).bytes();
+				assertEquals(expected, fixture.getDocumentId(bytes));
+				// bytes that don't carry their ID are hashed in their JSON form
+				assertEquals(expected, fixture.getDocumentId(new BytesArray(bytes.toBytes())));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectUnknownContentType() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("contentType", "xml");
+		fixture.configure(new Context(parameters));
+	}
+
+	@Test
+	public void shouldMergeBodyObjectIntoDocument() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("removeFieldsPrefix", "true");
+		parameters.put("bodyAsDocument", "true");
+		parameters.put("maxFieldBytes.b", "4");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("host", "host1");
+		headers.put("f1", "header");
+		String body = "{\"f1\":{\"x\":[1,2]},\"@source_host\":\"host2\",\"@type\":\"t\","
+				+ "\"b\":{\"s\":\"abcdefgh\",\"l\":[\"abcdefgh\",true,null,1.5]}}";
+		Event event = EventBuilder.withBody(body.getBytes(charset), headers);
+		String json = fixture.getXContentBuilder(event).string();
+		Map<String, Object> actual = XContentHelper.convertToMap(new BytesArray(json), true).v2();
+		// the headers win, and the body's fields of the same name aren't written
+		assertEquals("header", actual.get("f1"));
+		assertEquals("host1", actual.get("@source_host"));
+		assertEquals(json.indexOf("\"f1\""), json.lastIndexOf("\"f1\""));
+		assertEquals(json.indexOf("\"@source_host\""), json.lastIndexOf("\"@source_host\""));
+		assertEquals("t", actual.get("@type"));
+		assertEquals("{s=abcd, l=[abcd, true, null, 1.5]}", actual.get("b").toString());
+		assertFalse(actual.containsKey("@message"));
+	}
+
+	@Test
+	public void shouldDropFilteredHeaders() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("collateObjects", "true");
+		parameters.put("excludeHeaders", "x-*, http.headers.*, *_secret");
+		// the filter has a cache of its own
+		parameters.put("fieldPlanCacheSize", "0");
+		parameters.put("metrics", "true");
+		parameters.put("metricsName", "TestExcludeHeaders");
+		fixture.configure(new Context(parameters));
+		try {
+			Map<String, String> headers = Maps.newHashMap();
+			headers.put("host", "host1");
+			headers.put("x-forwarded-for", "1.2.3.4");
+			headers.put("http.method", "GET");
+			headers.put("http.headers.accept", "*/*");
+			headers.put("api_secret", "qwerty");
+			headers.put("level", "info");
+			Event event = EventBuilder.withBody("test body".getBytes(charset), headers);
+			Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+			assertEquals("host1", actual.get("@source_host"));
+			Map<?, ?> fields = (Map<?, ?>) actual.get("@fields");
+			assertEquals(2, fields.size());
+			assertEquals("info", fields.get("level"));
+			assertEquals("{method=GET}", fields.get("http").toString());
+			assertEquals(3, fixture.getMetrics().getHeadersDropped());
+		} finally {
+			fixture.getMetrics().unregister();
+		}
+	}
+
+	@Test
+	public void shouldMergeBodyWithLineBreaksTheSame() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("bodyAsDocument", "true");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		headers.put("timestamp", "1415000000000");
+		String body = "{\"a\":{\"b\":[1,\"c\",{\"d\":null}]},\"e\":\"f\"}";
+		String expected = fixture.getXContentBuilder(EventBuilder.withBody(body.getBytes(charset), headers)).string();
+		assertTrue(expected.endsWith("\"@fields\":{},\"a\":{\"b\":[1,\"c\",{\"d\":null}]},\"e\":\"f\"}"));
+		// written token by token
+		String pretty = body.replace(",", ",\n  ").replace("{", "{\n  ");
+		assertEquals(expected, fixture.getXContentBuilder(EventBuilder.withBody(pretty.getBytes(charset), headers))
+				.string());
+	}
+
+	@Test
+	public void shouldWriteBodyThatIsNotAnObjectAsMessage() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("bodyAsDocument", "true");
+		fixture.configure(new Context(parameters));
+
+		Map<String, String> headers = Maps.newHashMap();
+		for (String body : new String[] { "plain text", "{\"a\":", "{\"a\":1} {" }) {
+			Event event = EventBuilder.withBody(body.getBytes(charset), headers);
+			Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+			assertEquals(body, actual.get("@message"));
+			assertFalse(actual.containsKey("a"));
+		}
+	}
+
+	@Test
+	public void shouldWriteBodyObjectUnderBodyField() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("removeFieldsPrefix", "true");
+		parameters.put("collateObjects", "true");
+		parameters.put("bodyAsDocument", "true");
+		parameters.put("bodyField", "payload");
+		parameters.put("metrics", "true");
+		parameters.put("metricsName", "TestBodyField");
+		fixture.configure(new Context(parameters));
+		try {
+			Map<String, String> headers = Maps.newHashMap();
+			headers.put("message", "the message");
+			headers.put("params.a", "1");
+			Event event = EventBuilder.withBody("{\"a\":{\"b\":\"c\"}}".getBytes(charset), headers);
+			Map<String, Object> actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+			assertEquals("the message", actual.get("@message"));
+			assertEquals("{a={b=c}}", actual.get("payload").toString());
+
+			// a collated header already wrote the field
+			headers.put("payload.x", "1");
+			event = EventBuilder.withBody("{\"a\":{\"b\":\"c\"}}".getBytes(charset), headers);
+			actual = XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+			assertEquals("{x=1}", actual.get("payload").toString());
+			assertEquals(1, fixture.getMetrics().getBodyFieldsSkipped());
+		} finally {
+			fixture.getMetrics().unregister();
+		}
+	}
 }
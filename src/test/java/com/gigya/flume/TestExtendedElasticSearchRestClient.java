@@ -0,0 +1,468 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.sink.elasticsearch.IndexNameBuilder;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestExtendedElasticSearchRestClient {
+
+	private static final String INDEX_NAME = "foo_index";
+
+	private HttpServer server;
+	private final List<BulkRequest> requests = new CopyOnWriteArrayList<BulkRequest>();
+	private final List<String> encodings = new CopyOnWriteArrayList<String>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private volatile int status = 200;
+	// status and body of the next responses, before the default ones
+	private final Queue<Object[]> responses = new ConcurrentLinkedQueue<Object[]>();
+	private volatile long delayMs = 0;
+
+	private ExtendedElasticSearchLogStashEventSerializer serializer;
+	private IndexNameBuilder nameBuilder;
+	private ExtendedElasticSearchRestClient fixture;
+
+	@Before
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/_bulk", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int current = inFlight.incrementAndGet();
+				try {
+					while (maxInFlight.get() < current && !maxInFlight.compareAndSet(maxInFlight.get(), current)) {
+					}
+					String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+					encodings.add(String.valueOf(encoding));
+					InputStream in = exchange.getRequestBody();
+					if ("gzip".equals(encoding))
+						in = new GZIPInputStream(in);
+					byte[] data = readFully(in);
+					requests.add(new BulkRequest().add(data, 0, data.length, false));
+					if (delayMs > 0)
+						Thread.sleep(delayMs);
+					Object[] next = responses.poll();
+					String content = null != next ? (String) next[1] : "{\"took\":1,\"errors\":false,\"items\":[]}";
+					byte[] response = content.getBytes("UTF-8");
+					exchange.sendResponseHeaders(null != next ? (Integer) next[0] : status, response.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(response);
+					out.close();
+				} catch (Exception e) {
+					exchange.sendResponseHeaders(400, -1);
+				} finally {
+					inFlight.decrementAndGet();
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+
+		serializer = new ExtendedElasticSearchLogStashEventSerializer();
+		serializer.configure(new Context());
+		nameBuilder = mock(IndexNameBuilder.class);
+		when(nameBuilder.getIndexName(any(Event.class))).thenReturn(INDEX_NAME);
+	}
+
+	@After
+	public void tearDown() {
+		if (null != fixture)
+			fixture.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void shouldSendGzippedBulkRequest() throws Exception {
+		fixture = newClient(new Context(), host());
+		for (int i = 0; i < 3; i++)
+			fixture.addEvent(event(i), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertEquals(1, requests.size());
+		assertEquals("gzip", encodings.get(0));
+		BulkRequest request = requests.get(0);
+		assertEquals(3, request.numberOfActions());
+		IndexRequest item = (IndexRequest) request.requests().get(2);
+		assertEquals(INDEX_NAME, item.index());
+		assertEquals("bar_type", item.type());
+		assertTrue(item.source().toUtf8().contains("body 2"));
+	}
+
+	@Test
+	public void shouldSendUncompressedWhenConfigured() throws Exception {
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.COMPRESS, "false");
+		fixture = newClient(context, host());
+		fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertEquals(1, requests.size());
+		assertEquals("null", encodings.get(0));
+		assertEquals(1, requests.get(0).numberOfActions());
+	}
+
+	@Test
+	public void shouldSplitBatchByMaxBulkBytes() throws Exception {
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.MAX_BULK_BYTES, "500");
+		context.put(ExtendedElasticSearchRestClient.MAX_IN_FLIGHT, "2");
+		fixture = newClient(context, host());
+		delayMs = 50;
+		for (int i = 0; i < 20; i++)
+			fixture.addEvent(event(i), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertTrue(requests.size() > 1);
+		int items = 0;
+		for (BulkRequest request : requests)
+			items += request.numberOfActions();
+		assertEquals(20, items);
+		assertTrue(maxInFlight.get() <= 2);
+	}
+
+	@Test
+	public void shouldMoveToNextHostWhenUnreachable() throws Exception {
+		fixture = newClient(new Context(), "127.0.0.1:1", host());
+		for (int i = 0; i < 4; i++) {
+			fixture.addEvent(event(i), nameBuilder, "bar_type", -1);
+			fixture.execute();
+		}
+		assertEquals(4, requests.size());
+	}
+
+	@Test
+	public void shouldFailOnErrorStatus() throws Exception {
+		fixture = newClient(new Context(), host());
+		status = 500;
+		fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+		try {
+			fixture.execute();
+			fail("Expected an EventDeliveryException");
+		} catch (EventDeliveryException e) {
+		}
+
+		// the failed transaction is not sent again with the next one
+		status = 200;
+		fixture.addEvent(event(1), nameBuilder, "bar_type", -1);
+		fixture.execute();
+		assertEquals(2, requests.size());
+		assertEquals(1, requests.get(1).numberOfActions());
+	}
+
+	@Test
+	public void shouldRetryOnlyRejectedItems() throws Exception {
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.RETRY_BACKOFF, "1");
+		fixture = newClient(context, host());
+		respondWith(200, "{\"took\":1,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"_index\":\"foo_index\",\"_type\":\"bar_type\",\"_id\":\"a\",\"_version\":1,\"status\":201}},"
+				+ "{\"index\":{\"_index\":\"foo_index\",\"_type\":\"bar_type\",\"_id\":\"b\",\"status\":429,"
+				+ "\"error\":\"EsRejectedExecutionException[rejected execution]\"}},"
+				+ "{\"index\":{\"_index\":\"foo_index\",\"_type\":\"bar_type\",\"_id\":\"c\",\"status\":400,"
+				+ "\"error\":\"MapperParsingException[failed to parse]\"}}]}");
+		for (int i = 0; i < 3; i++)
+			fixture.addEvent(event(i), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertEquals(2, requests.size());
+		BulkRequest retry = requests.get(1);
+		assertEquals(1, retry.numberOfActions());
+		assertTrue(((IndexRequest) retry.requests().get(0)).source().toUtf8().contains("body 1"));
+	}
+
+	@Test
+	public void shouldRetryBusyRequest() throws Exception {
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.RETRY_BACKOFF, "1");
+		fixture = newClient(context, host());
+		respondWith(503, "{\"error\":\"busy\",\"status\":503}");
+		fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+		fixture.addEvent(event(1), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertEquals(2, requests.size());
+		assertEquals(2, requests.get(1).numberOfActions());
+	}
+
+	@Test
+	public void shouldFailWhenRetriesRunOut() throws Exception {
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.MAX_RETRIES, "2");
+		context.put(ExtendedElasticSearchRestClient.RETRY_BACKOFF, "1");
+		fixture = newClient(context, host());
+		for (int i = 0; i < 3; i++)
+			respondWith(429, "{\"error\":\"busy\",\"status\":429}");
+		fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+		try {
+			fixture.execute();
+			fail("Expected an EventDeliveryException");
+		} catch (EventDeliveryException e) {
+		}
+		assertEquals(3, requests.size());
+	}
+
+	@Test
+	public void shouldDivertFailedItemsToDeadLetterIndex() throws Exception {
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.DEAD_LETTER_INDEX, "failed_events");
+		fixture = newClient(context, host());
+		respondWith(200, "{\"took\":1,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"_index\":\"foo_index\",\"_type\":\"bar_type\",\"_id\":\"a\",\"status\":400,"
+				+ "\"error\":\"MapperParsingException[failed to parse]\"}},"
+				+ "{\"index\":{\"_index\":\"foo_index\",\"_type\":\"bar_type\",\"_id\":\"b\",\"_version\":1,\"status\":201}}]}");
+		fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+		fixture.addEvent(event(1), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertEquals(2, requests.size());
+		BulkRequest letters = requests.get(1);
+		assertEquals(1, letters.numberOfActions());
+		IndexRequest letter = (IndexRequest) letters.requests().get(0);
+		assertEquals("failed_events", letter.index());
+		Map<String, Object> source = XContentHelper.convertToMap(letter.source(), false).v2();
+		assertEquals("foo_index/bar_type/a", source.get("document"));
+		assertEquals(400, source.get("status"));
+		assertEquals("MapperParsingException[failed to parse]", source.get("error"));
+		assertTrue(((String) source.get("source")).contains("body 0"));
+	}
+
+	@Test
+	public void shouldFailOnItemsOfBlockedOrMissingIndex() throws Exception {
+		String[][] failures = { { "403", "ClusterBlockException[blocked by: [FORBIDDEN/8/index write (api)];]" },
+				{ "404", "IndexMissingException[[foo_index] missing]" } };
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.DEAD_LETTER_INDEX, "failed_events");
+		for (String[] failure : failures) {
+			requests.clear();
+			fixture = newClient(context, host());
+			respondWith(200, "{\"took\":1,\"errors\":true,\"items\":["
+					+ "{\"index\":{\"_index\":\"foo_index\",\"_type\":\"bar_type\",\"_id\":\"a\",\"status\":"
+					+ failure[0] + ",\"error\":\"" + failure[1] + "\"}}]}");
+			fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+			try {
+				fixture.execute();
+				fail("Expected an EventDeliveryException");
+			} catch (EventDeliveryException e) {
+			}
+			// not diverted to the dead letter index
+			assertEquals(1, requests.size());
+			fixture.close();
+			fixture = null;
+		}
+	}
+
+	@Test
+	public void shouldFailWhenDeadLetterIndexCantBeWritten() throws Exception {
+		String rejected = "{\"took\":1,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"_index\":\"foo_index\",\"_type\":\"bar_type\",\"_id\":\"a\",\"status\":400,"
+				+ "\"error\":\"MapperParsingException[failed to parse]\"}}]}";
+		String[][] deadLetterResponses = { { "503", "{\"error\":\"busy\",\"status\":503}" },
+				{ "200", rejected.replace("foo_index", "failed_events") },
+				{ "500", "{\"error\":\"failed\",\"status\":500}" } };
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.DEAD_LETTER_INDEX, "failed_events");
+		context.put(ExtendedElasticSearchRestClient.MAX_RETRIES, "0");
+		for (String[] deadLetterResponse : deadLetterResponses) {
+			requests.clear();
+			fixture = newClient(context, host());
+			respondWith(200, rejected);
+			respondWith(Integer.parseInt(deadLetterResponse[0]), deadLetterResponse[1]);
+			fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+			try {
+				fixture.execute();
+				fail("Expected an EventDeliveryException");
+			} catch (EventDeliveryException e) {
+			}
+			assertEquals(2, requests.size());
+			assertEquals("failed_events", ((IndexRequest) requests.get(1).requests().get(0)).index());
+			fixture.close();
+			fixture = null;
+		}
+	}
+
+	@Test
+	public void shouldDropRecentlyIndexedIds() throws Exception {
+		Context serializerContext = new Context();
+		serializerContext.put("generateId", "true");
+		serializer.configure(serializerContext);
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.RECENT_IDS_WINDOW, "10");
+		fixture = newClient(context, host());
+		fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+		fixture.addEvent(event(1), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		// the same transaction again, with a new event
+		fixture.addEvent(event(0), nameBuilder, "bar_type", -1);
+		fixture.addEvent(event(1), nameBuilder, "bar_type", -1);
+		fixture.addEvent(event(2), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertEquals(2, requests.size());
+		assertEquals(1, requests.get(1).numberOfActions());
+		assertTrue(((IndexRequest) requests.get(1).requests().get(0)).source().toUtf8().contains("body 2"));
+		assertEquals(2, fixture.getRecentIdHits());
+		assertEquals(3, fixture.getRecentIdMisses());
+	}
+
+	@Test
+	public void shouldNotRememberIdsOfFailedTransaction() throws Exception {
+		Context serializerContext = new Context();
+		serializerContext.put("idFields", "requestId");
+		serializer.configure(serializerContext);
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.RECENT_IDS_WINDOW, "10");
+		fixture = newClient(context, host());
+		status = 500;
+		fixture.addEvent(requestEvent("r1"), nameBuilder, "bar_type", -1);
+		try {
+			fixture.execute();
+			fail("Expected an EventDeliveryException");
+		} catch (EventDeliveryException e) {
+		}
+
+		status = 200;
+		fixture.addEvent(requestEvent("r1"), nameBuilder, "bar_type", -1);
+		fixture.execute();
+		fixture.addEvent(requestEvent("r1"), nameBuilder, "bar_type", -1);
+		fixture.execute();
+
+		assertEquals(2, requests.size());
+		assertEquals(1, fixture.getRecentIdHits());
+	}
+
+	@Test
+	public void shouldSerializeTransactionInParallelWithFactory() throws Exception {
+		Context factoryContext = new Context();
+		factoryContext.put("generateId", "true");
+		ExtendedElasticSearchIndexRequestBuilderFactory sequential = new ExtendedElasticSearchIndexRequestBuilderFactory();
+		sequential.configure(factoryContext);
+		factoryContext.put("parallelism", "3");
+		factoryContext.put("parallelThreshold", "10");
+		ExtendedElasticSearchIndexRequestBuilderFactory factory = new ExtendedElasticSearchIndexRequestBuilderFactory();
+		factory.configure(factoryContext);
+		when(nameBuilder.getIndexPrefix(any(Event.class))).thenReturn(INDEX_NAME);
+		Context context = new Context();
+		context.put(ExtendedElasticSearchRestClient.MAX_BULK_BYTES, "1000");
+		// one body at a time, so they arrive in order
+		context.put(ExtendedElasticSearchRestClient.MAX_IN_FLIGHT, "1");
+		context.put(ExtendedElasticSearchRestClient.RECENT_IDS_WINDOW, "10");
+		fixture = new ExtendedElasticSearchRestClient(new String[] { host() }, null, factory, null);
+		fixture.configure(context);
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 30; i++) {
+			Event event = event(i);
+			event.getHeaders().put("timestamp", "1400000000000");
+			events.add(event);
+			fixture.addEvent(event, nameBuilder, "bar_type", -1);
+		}
+		// nothing is sent until the batch is serialized
+		assertEquals(0, requests.size());
+		fixture.execute();
+
+		// the same items and IDs as serializing on a single thread, in slices
+		List<String> expectedIds = new ArrayList<String>();
+		sequential.createBulkRequestBody(events, INDEX_NAME, "bar_type", 0, expectedIds);
+		List<String> ids = new ArrayList<String>();
+		for (BulkRequest request : requests) {
+			for (int i = 0; i < request.numberOfActions(); i++)
+				ids.add(((IndexRequest) request.requests().get(i)).id());
+		}
+		assertTrue(requests.size() > 1);
+		assertEquals(expectedIds, ids);
+
+		// recently indexed IDs are dropped once their documents are hashed
+		int sent = requests.size();
+		for (Event event : events)
+			fixture.addEvent(event, nameBuilder, "bar_type", -1);
+		fixture.execute();
+		assertEquals(30, fixture.getRecentIdHits());
+		assertEquals(sent, requests.size());
+	}
+
+	private static Event requestEvent(String requestId) {
+		Event event = EventBuilder.withBody("body".getBytes());
+		event.getHeaders().put("requestId", requestId);
+		return event;
+	}
+
+	private void respondWith(int status, String content) {
+		responses.add(new Object[] { status, content });
+	}
+
+	private ExtendedElasticSearchRestClient newClient(Context context, String... hosts) {
+		ExtendedElasticSearchRestClient client = new ExtendedElasticSearchRestClient(hosts, serializer);
+		client.configure(context);
+		return client;
+	}
+
+	private String host() {
+		return "127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	private static Event event(int i) {
+		return EventBuilder.withBody(("body " + i).getBytes());
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+}
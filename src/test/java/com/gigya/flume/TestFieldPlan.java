@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestFieldPlan {
+
+	@Test
+	public void shouldNotSplitWhenNotCollating() throws Exception {
+		FieldPlan plan = new FieldPlan("params.a", false, -1, null);
+		assertEquals("params.a", plan.key);
+		assertEquals("params.a", plan.name.getValue());
+		assertNull(plan.segments);
+		assertFalse(plan.objectField);
+	}
+
+	@Test
+	public void shouldSplitUpToCollateDepth() throws Exception {
+		FieldPlan plan = new FieldPlan("params.f1.a", true, 1, null);
+		assertArrayEquals(new String[] { "params", "f1.a" }, plan.segments);
+		assertArrayEquals(new String[] { "params.f1.a", "f1.a" }, plan.remainders);
+
+		plan = new FieldPlan("params.f1.a", true, -1, null);
+		assertArrayEquals(new String[] { "params", "f1", "a" }, plan.segments);
+		assertArrayEquals(new String[] { "params.f1.a", "f1.a", "a" }, plan.remainders);
+
+		plan = new FieldPlan("params.f1.a", true, 0, null);
+		assertArrayEquals(new String[] { "params.f1.a" }, plan.segments);
+	}
+
+	@Test
+	public void shouldNotSplitOnLeadingDots() throws Exception {
+		FieldPlan plan = new FieldPlan(".a", true, -1, null);
+		assertArrayEquals(new String[] { ".a" }, plan.segments);
+
+		plan = new FieldPlan("a..b", true, -1, null);
+		assertArrayEquals(new String[] { "a", ".b" }, plan.segments);
+		assertArrayEquals(new String[] { "a..b", ".b" }, plan.remainders);
+	}
+
+	@Test
+	public void shouldFlagObjectFields() throws Exception {
+		Map<String, Boolean> objectFields = new HashMap<String, Boolean>();
+		objectFields.put("params", true);
+		objectFields.put("sub", true);
+		assertTrue(new FieldPlan("params", true, 1, objectFields).leafObjectField);
+		assertTrue(new FieldPlan("params", false, 1, objectFields).objectField);
+
+		FieldPlan plan = new FieldPlan("params.sub", true, 1, objectFields);
+		assertFalse(plan.objectField);
+		assertTrue(plan.leafObjectField);
+	}
+
+	@Test
+	public void shouldSkipObjectsThatMostlyFail() throws Exception {
+		FieldPlan plan = new FieldPlan("f", false, -1, null);
+		for (int i = 0; i < FieldPlan.ADAPT_WINDOW; i++) {
+			assertTrue(plan.tryObject());
+			// one in ten parses
+			plan.objectParsed(i % 10 == 0 && i < 6);
+		}
+		int tried = 0;
+		for (int i = 0; i < FieldPlan.PROBE_INTERVAL * 2; i++) {
+			if (plan.tryObject()) {
+				tried++;
+				plan.objectParsed(false);
+			}
+		}
+		assertEquals(2, tried);
+
+		// a probed value that parses resumes parsing
+		while (!plan.tryObject()) {
+		}
+		plan.objectParsed(true);
+		assertTrue(plan.tryObject());
+		assertTrue(plan.tryObject());
+	}
+
+	@Test
+	public void shouldKeepParsingObjectsThatMostlyParse() throws Exception {
+		FieldPlan plan = new FieldPlan("f", false, -1, null);
+		for (int i = 0; i < FieldPlan.ADAPT_WINDOW * 4; i++) {
+			assertTrue(plan.tryObject());
+			plan.objectParsed(i % 2 == 0);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+public class TestFieldTypeTracker {
+
+	@Test
+	public void shouldRenameValuesOfTheOtherType() throws Exception {
+		FieldTypeTracker tracker = new FieldTypeTracker(100, null);
+		assertEquals("a", tracker.fieldName("a", true));
+		assertEquals("a", tracker.fieldName("a", true));
+		assertEquals("a_str", tracker.fieldName("a", false));
+		assertEquals("b", tracker.fieldName("b", false));
+		assertEquals("b_obj", tracker.fieldName("b", true));
+		assertTrue(tracker.isObject("a"));
+		assertFalse(tracker.isObject("b"));
+		assertNull(tracker.isObject("c"));
+	}
+
+	@Test
+	public void shouldNotTrackFieldsBeyondTheLimit() throws Exception {
+		FieldTypeTracker tracker = new FieldTypeTracker(1, null);
+		tracker.fieldName("a", false);
+		assertEquals("b", tracker.fieldName("b", true));
+		assertEquals("b", tracker.fieldName("b", false));
+		assertEquals(1, tracker.size());
+	}
+
+	@Test
+	public void shouldKeepTypesAcrossRestarts() throws Exception {
+		File file = File.createTempFile("field-types", ".txt");
+		file.delete();
+		try {
+			FieldTypeTracker tracker = new FieldTypeTracker(100, file);
+			tracker.fieldName("a", true);
+			tracker.fieldName("b", false);
+			tracker.fieldName("c\nd", false);
+			tracker.flush();
+			assertTrue(file.exists());
+
+			FieldTypeTracker restarted = new FieldTypeTracker(100, file);
+			assertEquals(2, restarted.size());
+			assertEquals("a_str", restarted.fieldName("a", false));
+			assertEquals("b_obj", restarted.fieldName("b", true));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void shouldWriteConflictingHeadersUnderAnotherName() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = new Context();
+		context.put("removeFieldsPrefix", "true");
+		context.put("objectFields", "obj");
+		context.put("trackFieldTypes", "true");
+		fixture.configure(context);
+
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("obj", "{\"a\":1}");
+		assertEquals("{a=1}", serialize(fixture, headers).get("obj").toString());
+		headers.put("obj", "not json");
+		Map<String, Object> actual = serialize(fixture, headers);
+		assertFalse(actual.containsKey("obj"));
+		assertEquals("not json", actual.get("obj_str"));
+		headers.put("obj", "{\"a\":2}");
+		assertEquals("{a=2}", serialize(fixture, headers).get("obj").toString());
+	}
+
+	@Test
+	public void shouldWriteConflictingCollatedObjectsUnderAnotherName() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = new Context();
+		context.put("removeFieldsPrefix", "true");
+		context.put("collateObjects", "true");
+		context.put("trackFieldTypes", "true");
+		fixture.configure(context);
+
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("params", "plain");
+		assertEquals("plain", serialize(fixture, headers).get("params"));
+		headers.clear();
+		headers.put("params.a", "1");
+		Map<String, Object> actual = serialize(fixture, headers);
+		assertFalse(actual.containsKey("params"));
+		assertEquals("{a=1}", actual.get("params_obj").toString());
+	}
+
+	private static Map<String, Object> serialize(ExtendedElasticSearchLogStashEventSerializer fixture,
+			Map<String, String> headers) throws Exception {
+		Event event = EventBuilder.withBody("body".getBytes(), headers);
+		return XContentHelper.convertToMap(fixture.getXContentBuilder(event).bytes(), true).v2();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestHeaderFilter {
+
+	@Test
+	public void shouldMatchKeysPrefixesAndWildcards() {
+		HeaderFilter filter = new HeaderFilter(null, "x-trace, http.*, *_id, a*b*c", 1024);
+		assertFalse(filter.accept("x-trace"));
+		assertTrue(filter.accept("x-trace2"));
+		assertFalse(filter.accept("http.method"));
+		assertFalse(filter.accept("http."));
+		assertTrue(filter.accept("http"));
+		assertFalse(filter.accept("user_id"));
+		assertFalse(filter.accept("_id"));
+		assertTrue(filter.accept("user_ids"));
+		assertFalse(filter.accept("abc"));
+		assertFalse(filter.accept("a_b_c"));
+		assertTrue(filter.accept("a_c"));
+		assertTrue(filter.accept("acb"));
+		assertTrue(filter.accept("message"));
+		// cached decisions are the same
+		assertFalse(filter.accept("http.method"));
+		assertTrue(filter.accept("message"));
+	}
+
+	@Test
+	public void shouldExcludeFromIncludedHeaders() {
+		HeaderFilter filter = new HeaderFilter("user.*, level", "user.password", 1024);
+		assertTrue(filter.accept("level"));
+		assertTrue(filter.accept("user.name"));
+		assertFalse(filter.accept("user.password"));
+		assertFalse(filter.accept("host"));
+		assertTrue(new HeaderFilter("*", "", 0).accept("host"));
+		assertFalse(new HeaderFilter(" , ", "**", 0).accept("host"));
+	}
+
+	@Test
+	public void shouldClearCacheWhenFull() {
+		HeaderFilter filter = new HeaderFilter(null, "x-*", 4);
+		for (int i = 0; i < 10; i++) {
+			assertFalse(filter.accept("x-" + i));
+			assertTrue(filter.cachedDecisions() <= 4);
+		}
+		// keys that still show up are cached again
+		assertTrue(filter.accept("hot"));
+		assertTrue(filter.accept("hot"));
+		assertTrue(filter.cachedDecisions() >= 1);
+		HeaderFilter uncached = new HeaderFilter(null, "x-*", 0);
+		assertFalse(uncached.accept("x-1"));
+		assertEquals(0, uncached.cachedDecisions());
+	}
+
+	@Test
+	public void shouldNotMatchOverlappingParts() {
+		HeaderFilter filter = new HeaderFilter("ab*ba", null, 0);
+		assertFalse(filter.accept("aba"));
+		assertTrue(filter.accept("abba"));
+		assertTrue(filter.accept("ab-ba"));
+		filter = new HeaderFilter("a*bc*bc", null, 0);
+		assertFalse(filter.accept("abc"));
+		assertFalse(filter.accept("abcbc".substring(0, 4)));
+		assertTrue(filter.accept("abcbc"));
+		assertTrue(filter.accept("axbcybc"));
+	}
+}
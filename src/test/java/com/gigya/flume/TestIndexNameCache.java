@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.time.FastDateFormat;
+import org.junit.Test;
+
+public class TestIndexNameCache {
+
+	private static final String[] PATTERNS = { "yyyy.MM.dd", "yyyy.MM.dd.HH", "yyyy.ww", "yyyy.MM.W", "yyyy.MM",
+			"yyyy", "yyyy.MM.dd.hh a", "yyyy.MM.dd.HH.mm", "'week'-yyyy-ww" };
+	private static final String[] TIME_ZONES = { "Etc/UTC", "America/New_York", "Asia/Kolkata", "Australia/Lord_Howe" };
+
+	@Test
+	public void shouldFindGranularity() throws Exception {
+		assertEquals(Calendar.DAY_OF_MONTH, IndexNameCache.granularity("yyyy.MM.dd"));
+		assertEquals(Calendar.HOUR_OF_DAY, IndexNameCache.granularity("yyyy.MM.dd.HH"));
+		assertEquals(Calendar.WEEK_OF_YEAR, IndexNameCache.granularity("yyyy.ww"));
+		assertEquals(Calendar.MONTH, IndexNameCache.granularity("yyyy.MM"));
+		assertEquals(Calendar.YEAR, IndexNameCache.granularity("yyyy"));
+		assertEquals(Calendar.WEEK_OF_YEAR, IndexNameCache.granularity("'day'-yyyy-ww"));
+		assertEquals(-1, IndexNameCache.granularity("yyyy.MM.dd.HH.mm"));
+		assertEquals(-1, IndexNameCache.granularity("yyyy.MM.dd z"));
+	}
+
+	@Test
+	public void shouldResolveSameNamesAsFormatting() throws Exception {
+		Random random = new Random(1);
+		for (String pattern : PATTERNS) {
+			for (String timeZone : TIME_ZONES) {
+				FastDateFormat dateFormat = FastDateFormat.getInstance(pattern, TimeZone.getTimeZone(timeZone),
+						Locale.US);
+				IndexNameCache cache = new IndexNameCache(dateFormat);
+				// mostly ordered timestamps, around DST changes and year ends, with some late ones
+				long timestamp = 1414800000000L;
+				for (int i = 0; i < 20000; i++) {
+					timestamp += random.nextInt(2 * 60 * 60 * 1000);
+					long eventTime = random.nextInt(10) == 0 ? timestamp - random.nextInt(3 * 24 * 60 * 60 * 1000)
+							: timestamp;
+					String prefix = random.nextInt(50) == 0 ? "other" : "flume";
+					assertEquals(pattern + " " + timeZone, prefix + '-' + dateFormat.format(eventTime),
+							cache.getIndexName(prefix, eventTime));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldCacheIndexActionsPerPrefixAndType() throws Exception {
+		FastDateFormat dateFormat = FastDateFormat.getInstance("yyyy.MM.dd", TimeZone.getTimeZone("Etc/UTC"));
+		IndexNameCache cache = new IndexNameCache(dateFormat);
+		long timestamp = 1415000000000L;
+		byte[] action = cache.getIndexAction("flume", timestamp, "log");
+		assertArrayEquals(BulkRequestBody.indexAction("flume-2014.11.03", "log"), action);
+		// many prefixes and types, as with header driven indices
+		for (int i = 0; i < 100; i++) {
+			cache.getIndexAction("tenant" + i, timestamp, "log");
+			cache.getIndexAction("flume", timestamp, "type" + (i % 4));
+		}
+		assertSame(action, cache.getIndexAction("flume", timestamp + 1000, "log"));
+		assertArrayEquals(BulkRequestBody.indexAction("tenant7-2014.11.03", "type3"),
+				cache.getIndexAction("tenant7", timestamp, "type3"));
+		assertArrayEquals(BulkRequestBody.indexAction("flume-2014.11.04", "log"),
+				cache.getIndexAction("flume", timestamp + 24 * 60 * 60 * 1000L, "log"));
+	}
+
+	@Test
+	public void shouldResolveNamesBeyondCachedPrefixes() throws Exception {
+		FastDateFormat dateFormat = FastDateFormat.getInstance("yyyy.MM.dd", TimeZone.getTimeZone("Etc/UTC"));
+		IndexNameCache cache = new IndexNameCache(dateFormat);
+		for (int i = 0; i < IndexNameCache.MAX_PREFIXES + 10; i++)
+			assertEquals("p" + i + "-2014.11.03", cache.getIndexName("p" + i, 1415000000000L));
+		assertEquals("p" + IndexNameCache.MAX_PREFIXES + "-2014.11.04",
+				cache.getIndexName("p" + IndexNameCache.MAX_PREFIXES, 1415100000000L));
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestRecentIdFilter {
+
+	private static final long MINUTE = 60000;
+
+	@Test
+	public void shouldRememberAddedIds() {
+		RecentIdFilter filter = new RecentIdFilter(MINUTE, 1024 * 1024, 0.000001);
+		for (int i = 0; i < 1000; i++)
+			filter.add(id(i), 0);
+		for (int i = 0; i < 1000; i++)
+			assertTrue(filter.contains(id(i), 1000));
+		int falsePositives = 0;
+		for (int i = 1000; i < 101000; i++) {
+			if (filter.contains(id(i), 1000))
+				falsePositives++;
+		}
+		assertEquals(0, falsePositives);
+		assertEquals(1000, filter.getHits());
+		assertEquals(100000, filter.getMisses());
+	}
+
+	@Test
+	public void shouldForgetIdsAfterTwoWindows() {
+		RecentIdFilter filter = new RecentIdFilter(MINUTE, 64 * 1024, 0.000001);
+		filter.add("a", 0);
+		filter.add("b", MINUTE + 1);
+		assertTrue(filter.contains("a", MINUTE + 2));
+		assertTrue(filter.contains("b", MINUTE + 2));
+		// "a" went to the previous filter after one window, and is dropped after the next
+		assertFalse(filter.contains("a", 2 * MINUTE + 2));
+		assertTrue(filter.contains("b", 2 * MINUTE + 2));
+		assertFalse(filter.contains("b", 10 * MINUTE));
+	}
+
+	@Test
+	public void shouldKeepFalsePositiveRateWhenFull() {
+		RecentIdFilter filter = new RecentIdFilter(MINUTE, 4096, 0.001);
+		long capacity = filter.getCapacity();
+		for (int i = 0; i < capacity * 10; i++)
+			filter.add(id(i), 0);
+		int falsePositives = 0;
+		for (int i = -1; i >= -100000; i--) {
+			if (filter.contains(id(i), 0))
+				falsePositives++;
+		}
+		// two filters, each at most at half the rate
+		assertTrue("false positives: " + falsePositives, falsePositives < 100);
+		// the last IDs added are still remembered
+		assertTrue(filter.contains(id((int) capacity * 10 - 1), 0));
+	}
+
+	private static String id(int i) {
+		byte[] data = String.valueOf(i).getBytes();
+		return DocumentHasher.create(DocumentHasher.MD5).documentId(data, 0, data.length);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.instrumentation.SinkCounter;
+import org.junit.Test;
+
+public class TestSerializerMetrics {
+
+	@Test
+	public void shouldPublishMetricsOverJmx() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = new Context();
+		context.put("metrics", "true");
+		context.put("metricsName", "TestSerializerMetrics");
+		context.put("metricsSampleRate", "1");
+		context.put("objectFields", "obj");
+		context.put("maxFieldBytes", "10");
+		context.put("idFields", "long");
+		fixture.configure(context);
+
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("obj", "{\"a\":1}");
+		headers.put("long", StringUtils.repeat("x", 100));
+		fixture.getContentBuilder(EventBuilder.withBody("body".getBytes(), headers));
+		headers.put("obj", "{\"a\":");
+		fixture.getContentBuilder(EventBuilder.withBody("body".getBytes(), headers));
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.apache.flume.sink:type=TestSerializerMetrics,component=serializer");
+		assertTrue(server.isRegistered(name));
+		assertEquals(2L, server.getAttribute(name, "EventCount"));
+		assertEquals(2L, server.getAttribute(name, "SampledEventCount"));
+		assertTrue((Long) server.getAttribute(name, "SerializeTimeAvg") > 0);
+		assertTrue((Long) server.getAttribute(name, "ObjectFieldsTimeAvg") > 0);
+		assertTrue((Long) server.getAttribute(name, "DocumentIdTimeAvg") > 0);
+		assertEquals(2L, server.getAttribute(name, "FieldsTruncated"));
+		assertEquals(1L, server.getAttribute(name, "JsonParseFailures"));
+
+		// only this serializer's values are counted, and reset clears them
+		ExtendedElasticSearchLogStashEventSerializer other = new ExtendedElasticSearchLogStashEventSerializer();
+		context.put("metricsName", "TestSerializerMetricsOther");
+		other.configure(context);
+		other.getContentBuilder(EventBuilder.withBody("body".getBytes(), headers));
+		assertEquals(2L, server.getAttribute(name, "FieldsTruncated"));
+		assertEquals(1L, other.getMetrics().getFieldsTruncated());
+		fixture.getMetrics().reset();
+		assertEquals(0L, server.getAttribute(name, "FieldsTruncated"));
+		assertEquals(0L, server.getAttribute(name, "JsonParseFailures"));
+		other.getMetrics().unregister();
+
+		// turning the metrics off unregisters them
+		fixture.configure(new Context());
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void shouldNotReplaceSinkCounter() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName sinkName = new ObjectName("org.apache.flume.sink:type=k1");
+		SinkCounter sinkCounter = new SinkCounter("k1");
+		// registers the counter as org.apache.flume.sink:type=k1
+		sinkCounter.start();
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = new Context();
+		context.put("metrics", "true");
+		context.put("metricsName", "k1");
+		try {
+			fixture.configure(context);
+			assertTrue(server.isRegistered(sinkName));
+			assertTrue(server.isInstanceOf(sinkName, SinkCounter.class.getName()));
+			assertTrue(server.isRegistered(new ObjectName("org.apache.flume.sink:type=k1,component=serializer")));
+		} finally {
+			fixture.getMetrics().unregister();
+			server.unregisterMBean(sinkName);
+		}
+	}
+
+	@Test
+	public void shouldCountBytesOfBulkItems() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = new Context();
+		context.put("metrics", "true");
+		context.put("metricsName", "TestSerializerMetricsBulk");
+		fixture.configure(context);
+		try {
+			BulkRequestBody body = new BulkRequestBody();
+			Event event = EventBuilder.withBody("body".getBytes());
+			fixture.appendBulkItem(body, event, "index", "type", 0);
+			fixture.appendBulkItem(body, event, "index", "type", 0);
+			assertEquals(body.size(), fixture.getMetrics().getBytesOut());
+			assertEquals(2, fixture.getMetrics().getEventCount());
+		} finally {
+			fixture.getMetrics().unregister();
+		}
+	}
+
+	@Test
+	public void shouldHaveNoMetricsByDefault() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		fixture.configure(new Context());
+		assertEquals(null, fixture.getMetrics());
+	}
+
+	@Test
+	public void shouldSumStripedCounterAcrossThreads() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++)
+						counter.increment();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(40000, counter.sum());
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.elasticsearch.common.base.Charsets;
+import org.junit.Test;
+
+public class TestSymbolTable {
+
+	@Test
+	public void shouldKeepRepeatedValues() throws Exception {
+		SymbolTable symbols = new SymbolTable(2);
+		assertNull(symbols.get("host1"));
+		assertArrayEquals("host1".getBytes(Charsets.UTF_8), symbols.get("host1"));
+		assertNull(symbols.get("hést2"));
+		assertArrayEquals("hést2".getBytes(Charsets.UTF_8), symbols.get("hést2"));
+		// full
+		assertNull(symbols.get("host3"));
+		assertNull(symbols.get("host3"));
+		// too long
+		String longValue = StringUtils.repeat("x", SymbolTable.MAX_SYMBOL_LENGTH + 1);
+		assertNull(symbols.get(longValue));
+		assertEquals(2, symbols.size());
+		assertEquals(2, symbols.getHits());
+		assertEquals(5, symbols.getMisses());
+	}
+
+	@Test
+	public void shouldNotKeepValuesWithSurrogates() throws Exception {
+		SymbolTable symbols = new SymbolTable(2);
+		assertNull(symbols.get("host😀"));
+		assertNull(symbols.get("host😀"));
+		assertEquals(0, symbols.size());
+	}
+
+	@Test
+	public void shouldSerializeTheSameWithSymbols() throws Exception {
+		ExtendedElasticSearchLogStashEventSerializer plain = new ExtendedElasticSearchLogStashEventSerializer();
+		Context context = new Context();
+		context.put("symbolTableSize", "0");
+		context.put("maxFieldBytes.@source", "4");
+		plain.configure(context);
+		ExtendedElasticSearchLogStashEventSerializer fixture = new ExtendedElasticSearchLogStashEventSerializer();
+		context = new Context();
+		context.put("maxFieldBytes.@source", "4");
+		context.put("metrics", "true");
+		context.put("metricsName", "TestSymbolTable");
+		fixture.configure(context);
+		try {
+			Map<String, String> headers = new HashMap<String, String>();
+			headers.put("host", "hést \"1\"\n");
+			headers.put("type", "access");
+			headers.put("source", "truncated");
+			headers.put("src_path", "/var/log/x");
+			headers.put("f", "v");
+			for (int i = 0; i < 3; i++) {
+				Event event = EventBuilder.withBody("body".getBytes(), headers);
+				assertEquals(plain.getXContentBuilder(event).string(), fixture.getXContentBuilder(event).string());
+			}
+			// other default charsets keep encoding values the way they always did
+			if (Charsets.UTF_8.equals(Charset.defaultCharset())) {
+				assertEquals(8, fixture.getMetrics().getSymbolHits());
+				assertEquals(4, fixture.getMetrics().getSymbolMisses());
+				assertEquals(4, fixture.getMetrics().getSymbolCount());
+			}
+		} finally {
+			fixture.getMetrics().unregister();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gigya.flume;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.junit.Test;
+
+public class TestTimestampWriter {
+
+	@Test
+	public void shouldWriteSameAsDate() throws Exception {
+		TimestampWriter writer = TimestampWriter.create("iso");
+		long[] timestamps = { 1415000075610L, 1415000075611L, 1415000075999L, 1415000076000L, 1415000075001L,
+				0L, 1L, -1L, -999L, -1000L, -1001L, 951782399999L, 951782400000L, 253402300799999L,
+				253402300800000L, -62167219200000L, -62167219200001L };
+		for (long timestamp : timestamps) {
+			assertEquals(String.valueOf(timestamp), expected(timestamp), actual(writer, timestamp));
+		}
+	}
+
+	@Test
+	public void shouldWriteEpochMillis() throws Exception {
+		TimestampWriter writer = TimestampWriter.create("EPOCH_MILLIS");
+		assertEquals("{\"@timestamp\":1415000075610}", actual(writer, 1415000075610L));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectUnknownFormat() throws Exception {
+		TimestampWriter.create("yyyy-MM-dd");
+	}
+
+	private static String expected(long timestamp) throws Exception {
+		return jsonBuilder().startObject().field("@timestamp", new Date(timestamp)).endObject().bytes().toUtf8();
+	}
+
+	private static String actual(TimestampWriter writer, long timestamp) throws Exception {
+		XContentBuilder builder = jsonBuilder().startObject();
+		writer.writeTimestamp(builder, timestamp);
+		return builder.endObject().bytes().toUtf8();
+	}
+
+}